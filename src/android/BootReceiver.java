@@ -6,7 +6,7 @@ import android.content.Intent;
 
 import edu.berkeley.eecs.emission.R;
 import edu.berkeley.eecs.emission.cordova.unifiedlogger.Log;
-import edu.berkeley.eecs.emission.cordova.usercache.UserCacheFactory;
+import edu.berkeley.eecs.emission.cordova.tracker.location.LastTransitionCache;
 import edu.berkeley.eecs.emission.cordova.tracker.wrapper.Transition;
 import edu.berkeley.eecs.emission.cordova.tracker.location.TripDiaryStateMachineService;
 
@@ -23,7 +23,7 @@ public class BootReceiver extends BroadcastReceiver {
         	System.out.println("BootReceiver.onReceive called");
             Log.i(ctx, TAG, "BootReceiver.onReceive called");
             // TODO: Use a different wrapper? Or a different key?
-            UserCacheFactory.getUserCache(ctx).putMessage(R.string.key_usercache_transition,
+            LastTransitionCache.getInstance().putTransition(ctx,
                     new Transition("unknown", "booted", ((double)System.currentTimeMillis())/1000));
 
             /*
@@ -41,6 +41,7 @@ public class ConfigManager {
                 cachedConfig = new LocationTrackingConfig();
                 updateConfig(context, cachedConfig);
             }
+            TrackerLog.setLevel(cachedConfig.getLogLevel());
         }
         return cachedConfig;
     }
@@ -54,6 +55,7 @@ public class ConfigManager {
         UserCacheFactory.getUserCache(context)
                 .putReadWriteDocument(R.string.key_usercache_sensor_config, newConfig);
         cachedConfig = newConfig;
+        TrackerLog.setLevel(newConfig.getLogLevel());
     }
 
     public static String getReqConsent(Context ctxt) {
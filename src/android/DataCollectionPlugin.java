@@ -16,10 +16,8 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.BroadcastReceiver;
 import android.content.IntentSender;
-import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Build;
-import android.preference.PreferenceManager;
 
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.location.LocationRequest;
@@ -170,8 +168,7 @@ public class DataCollectionPlugin extends CordovaPlugin {
             return true;
         } else if (action.equals("getState")) {
             Context ctxt = cordova.getActivity();
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctxt);
-            String state = prefs.getString(ctxt.getString(R.string.curr_state_key), ctxt.getString(R.string.state_start));
+            String state = TripDiaryStateMachineService.getState(ctxt);
             callbackContext.success(state);
             return true;
         } else if (action.equals("forceTransition")) {
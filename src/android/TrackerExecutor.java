@@ -0,0 +1,217 @@
+package edu.berkeley.eecs.emission.cordova.tracker;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.berkeley.eecs.emission.cordova.unifiedlogger.Log;
+
+/**
+ * The one place where the tracker runs background work that is not an event from google play
+ * services (those go through the TrackingEventPipeline).
+ *
+ * The state machine services used to start a new Thread for every trip end and every geofence
+ * creation, restartCollection started one to poll for the state, and the background checker
+ * created a new scheduled executor (and so a new thread that was never shut down) on every
+ * check. A burst of transitions could create any number of threads.
+ *
+ * Now, the work is run on a pool of at most MAX_THREADS threads, which time out when they are
+ * idle, with an unbounded queue in front of them. The callers include the main thread, and the
+ * tasks (e.g. ending a trip, creating a geofence) block on play services, so we never run a task
+ * on the caller's thread, and we never drop one, since that would lose a transition. The
+ * transition tasks each finish their own journal entry, so they can't be coalesced either, and the
+ * queue is not bounded. Instead, the sources are: there is one task per state machine transition,
+ * and the events that cause the transitions come through the TrackingEventPipeline, which is
+ * bounded. Checks that are repeated for every event (e.g. the walking geofence exit check) are
+ * submitted through executeLatest, which keeps at most one of them waiting for each name. So the
+ * queue stays short; if it gets longer than QUEUE_WARN_DEPTH, we log it. Delayed work is
+ * dispatched by a single scheduler thread, but runs on the pool.
+ *
+ * The number of running and queued tasks can be read through getActiveCount() and
+ * getQueuedCount(), and the counters are periodically logged through getStatsSummary().
+ */
+public class TrackerExecutor {
+    private static final String TAG = "TrackerExecutor";
+
+    private static final int MAX_THREADS = 4;
+    private static final int QUEUE_WARN_DEPTH = 32;
+    private static final int KEEP_ALIVE_SECS = 30;
+    private static final int LOG_STATS_EVERY = 50;
+
+    private static TrackerExecutor sInstance = null;
+
+    private final Context mCtxt;
+    private final ThreadPoolExecutor mExecutor;
+    private final ScheduledExecutorService mScheduler;
+
+    private final AtomicInteger mActive = new AtomicInteger(0);
+    // the executeLatest tasks that have been submitted but not started, by name
+    private final Map<String, NamedTask> mWaitingLatest = new HashMap<String, NamedTask>();
+    private long mSubmitted = 0;
+    private long mCoalesced = 0;
+    private long mCompleted = 0;
+    private long mFailed = 0;
+    private int mMaxActive = 0;
+    private int mMaxQueued = 0;
+    private long mMaxRunningMs = 0;
+
+    private TrackerExecutor(Context ctxt) {
+        this.mCtxt = ctxt.getApplicationContext();
+        mExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE_SECS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(TAG));
+        mExecutor.allowCoreThreadTimeOut(true);
+        mScheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(TAG + "-scheduler"));
+    }
+
+    public static synchronized TrackerExecutor getInstance(Context ctxt) {
+        if (sInstance == null) {
+            sInstance = new TrackerExecutor(ctxt);
+        }
+        return sInstance;
+    }
+
+    /*
+     * The name is only used for logging
+     */
+    public void execute(final String name, final Runnable work) {
+        mExecutor.execute(new NamedTask(name, work, false));
+        recordSubmitted(name, mExecutor.getQueue().size());
+    }
+
+    /*
+     * Like execute, but for work where only the newest request matters. If a task with the same
+     * name is still waiting to start, its work is replaced with this one, and nothing new is
+     * queued. A task that has already started runs to completion.
+     */
+    public void executeLatest(final String name, final Runnable work) {
+        NamedTask task;
+        synchronized (this) {
+            NamedTask waiting = mWaitingLatest.get(name);
+            if (waiting != null) {
+                waiting.mWork = work;
+                mCoalesced++;
+                TrackerLog.d(mCtxt, TAG, () -> "coalesced "+name+" with the waiting task");
+                return;
+            }
+            task = new NamedTask(name, work, true);
+            mWaitingLatest.put(name, task);
+        }
+        mExecutor.execute(task);
+        recordSubmitted(name, mExecutor.getQueue().size());
+    }
+
+    /*
+     * Runs the work on the pool after the delay. The work can be cancelled through the returned
+     * future until it has been handed off to the pool.
+     */
+    public ScheduledFuture<?> schedule(final String name, final Runnable work, long delay, TimeUnit unit) {
+        return mScheduler.schedule(() -> execute(name, work), delay, unit);
+    }
+
+    public int getActiveCount() {
+        return mActive.get();
+    }
+
+    public int getQueuedCount() {
+        return mExecutor.getQueue().size();
+    }
+
+    public synchronized String getStatsSummary() {
+        return "executor stats: active = "+mActive.get()+" max active = "+mMaxActive
+                +" queued = "+mExecutor.getQueue().size()+" submitted = "+mSubmitted
+                +" coalesced = "+mCoalesced
+                +" completed = "+mCompleted+" failed = "+mFailed+" max queued = "+mMaxQueued
+                +" max running = "+mMaxRunningMs+" ms";
+    }
+
+    private synchronized void recordSubmitted(String name, int queued) {
+        mSubmitted++;
+        if (queued > mMaxQueued) {
+            mMaxQueued = queued;
+        }
+        if (queued > QUEUE_WARN_DEPTH) {
+            Log.e(mCtxt, TAG, "queued "+name+" behind "+queued+" tasks, "+getStatsSummary());
+        }
+    }
+
+    private synchronized void recordStarted(int active) {
+        if (active > mMaxActive) {
+            mMaxActive = active;
+        }
+    }
+
+    private synchronized void recordCompleted(boolean success, long runningMs) {
+        mCompleted++;
+        if (!success) {
+            mFailed++;
+        }
+        if (runningMs > mMaxRunningMs) {
+            mMaxRunningMs = runningMs;
+        }
+        if (mCompleted % LOG_STATS_EVERY == 0) {
+            TrackerLog.i(mCtxt, TAG, () -> getStatsSummary());
+        }
+    }
+
+    private class NamedTask implements Runnable {
+        private final String mName;
+        private final boolean mLatest;
+        // replaced by executeLatest until the task starts, guarded by the executor's lock
+        private Runnable mWork;
+
+        NamedTask(String name, Runnable work, boolean latest) {
+            this.mName = name;
+            this.mWork = work;
+            this.mLatest = latest;
+        }
+
+        @Override
+        public void run() {
+            Runnable work;
+            synchronized (TrackerExecutor.this) {
+                if (mLatest && mWaitingLatest.get(mName) == this) {
+                    mWaitingLatest.remove(mName);
+                }
+                work = mWork;
+            }
+            recordStarted(mActive.incrementAndGet());
+            long startMs = SystemClock.elapsedRealtime();
+            boolean success = true;
+            try {
+                TrackerLog.d(mCtxt, TAG, () -> "running "+mName+" on "+Thread.currentThread().getName());
+                work.run();
+            } catch (RuntimeException e) {
+                // Don't let one bad task take the thread down with it
+                Log.exception(mCtxt, TAG, e);
+                success = false;
+            } finally {
+                mActive.decrementAndGet();
+            }
+            recordCompleted(success, SystemClock.elapsedRealtime() - startMs);
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mPrefix;
+        private final AtomicInteger mCount = new AtomicInteger(0);
+
+        NamedThreadFactory(String prefix) {
+            this.mPrefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, mPrefix + "-" + mCount.incrementAndGet());
+        }
+    }
+}
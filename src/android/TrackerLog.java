@@ -0,0 +1,86 @@
+package edu.berkeley.eecs.emission.cordova.tracker;
+
+import android.content.Context;
+
+import java.util.function.Supplier;
+
+import edu.berkeley.eecs.emission.cordova.unifiedlogger.Log;
+
+/**
+ * Level-gated front end to the unified logger for the tracker code.
+ *
+ * Every Log.d call builds its message (string concatenation, Arrays.toString, toString on the
+ * locations...) and writes it to the logger database, even if nobody is going to look at it. On
+ * the location path, that happens several times for every point. The messages for the chatty
+ * levels are passed in as suppliers here, so they are only built if the level is enabled, e.g.
+ *
+ *     TrackerLog.d(ctxt, TAG, () -> "Read locations "+locList+" from intent");
+ *
+ * Constant messages can be passed in directly. If the message uses a local that is not
+ * effectively final (e.g. a loop accumulator), guard a regular Log call with isDebugEnabled()
+ * instead. The level is read from the android_log_level field of the tracking config (using the
+ * android.util.Log priorities), and defaults to DEBUG, which logs everything, as before.
+ */
+public final class TrackerLog {
+    // Same values as the android.util.Log priorities
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private static volatile int sLevel = DEBUG;
+
+    private TrackerLog() {}
+
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    public static boolean isDebugEnabled() {
+        return sLevel <= DEBUG;
+    }
+
+    public static boolean isInfoEnabled() {
+        return sLevel <= INFO;
+    }
+
+    public static void d(Context ctxt, String tag, String msg) {
+        if (sLevel <= DEBUG) {
+            Log.d(ctxt, tag, msg);
+        }
+    }
+
+    public static void d(Context ctxt, String tag, Supplier<String> msg) {
+        if (sLevel <= DEBUG) {
+            Log.d(ctxt, tag, msg.get());
+        }
+    }
+
+    public static void i(Context ctxt, String tag, String msg) {
+        if (sLevel <= INFO) {
+            Log.i(ctxt, tag, msg);
+        }
+    }
+
+    public static void i(Context ctxt, String tag, Supplier<String> msg) {
+        if (sLevel <= INFO) {
+            Log.i(ctxt, tag, msg.get());
+        }
+    }
+
+    public static void w(Context ctxt, String tag, String msg) {
+        if (sLevel <= WARN) {
+            Log.w(ctxt, tag, msg);
+        }
+    }
+
+    public static void w(Context ctxt, String tag, Supplier<String> msg) {
+        if (sLevel <= WARN) {
+            Log.w(ctxt, tag, msg.get());
+        }
+    }
+}
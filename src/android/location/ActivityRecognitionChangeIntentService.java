@@ -11,9 +11,10 @@ import edu.berkeley.eecs.emission.cordova.unifiedlogger.NotificationHelper;
 import edu.berkeley.eecs.emission.R;
 
 import android.app.IntentService;
+import android.content.Context;
 import android.content.Intent;
 
-import edu.berkeley.eecs.emission.cordova.unifiedlogger.Log;
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerLog;
 import edu.berkeley.eecs.emission.cordova.usercache.UserCache;
 import edu.berkeley.eecs.emission.cordova.usercache.UserCacheFactory;
 
@@ -29,27 +30,38 @@ public class ActivityRecognitionChangeIntentService extends IntentService {
 
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
-		Log.d(this, TAG, "onStartCommand called with intent "+intent+" flags "+flags+" startId "+startId);
+		TrackerLog.d(this, TAG, () -> "onStartCommand called with intent "+intent+" flags "+flags+" startId "+startId);
 		return super.onStartCommand(intent, flags, startId);
 	}
 
 	@Override
 	public void onDestroy() {
-		Log.d(this, TAG, "onDestroy called");
+		TrackerLog.d(this, TAG, "onDestroy called");
 		super.onDestroy();
 	}
 
 	@Override
 	protected void onHandleIntent(Intent intent) {
-		Log.d(this, TAG, "FINALLY! Got activity update, intent is "+intent);
-//		Log.d(this, TAG, "Intent extras are "+intent.getExtras().describeContents());
-//		Log.d(this, TAG, "Intent extra key list is "+Arrays.toString(intent.getExtras().keySet().toArray()));
+		TrackingEventPipeline.getInstance(this).enqueue(TrackingEventPipeline.ACTION_ACTIVITY_UPDATE, intent);
+	}
+
+	/*
+	 * Called from the TrackingEventPipeline, which is the only consumer of these updates. The
+	 * updates that are still sent to this service are handed off to it in onHandleIntent above.
+	 */
+	public static void handleActivityUpdate(Context ctxt, Intent intent) {
+		TrackerLog.d(ctxt, TAG, () -> "FINALLY! Got activity update, intent is "+intent);
+//		Log.d(ctxt, TAG, "Intent extras are "+intent.getExtras().describeContents());
+//		Log.d(ctxt, TAG, "Intent extra key list is "+Arrays.toString(intent.getExtras().keySet().toArray()));
 		if (ActivityRecognitionResult.hasResult(intent)) {
 			ActivityRecognitionResult result = ActivityRecognitionResult.extractResult(intent);
 			DetectedActivity mostProbableActivity = result.getMostProbableActivity();
-			Log.i(this, TAG, "Detected new activity "+mostProbableActivity);
-			if (ConfigManager.getConfig(this).isSimulateUserInteraction()) {
-			NotificationHelper.createNotification(this, ACTIVITY_IN_NUMBERS, null, this.getString(R.string.detected_new_activity, activityType2Name(mostProbableActivity.getType(), this)));
+			TrackerLog.i(ctxt, TAG, () -> "Detected new activity "+mostProbableActivity);
+			// For the early trip end in the location path
+			StillActivityTracker.getInstance().onActivity(mostProbableActivity,
+					((double)System.currentTimeMillis())/1000);
+			if (ConfigManager.getConfig(ctxt).isSimulateUserInteraction()) {
+			NotificationHelper.createNotification(ctxt, ACTIVITY_IN_NUMBERS, null, ctxt.getString(R.string.detected_new_activity, activityType2Name(mostProbableActivity.getType(), ctxt)));
 			}
 			// TODO: Do we want to compare activity and only store when different?
             // Can easily do that by getting the last activity
@@ -59,22 +71,22 @@ public class ActivityRecognitionChangeIntentService extends IntentService {
 			// Let us just suck everything up for now and see if the smoothing HMM from PerCom works
 			// better.
             // if (mostProbableActivity.getConfidence() > 90) {
-                UserCache userCache = UserCacheFactory.getUserCache(this);
+                UserCache userCache = UserCacheFactory.getUserCache(ctxt);
                 MotionActivity mpma = new MotionActivity(mostProbableActivity);
                 userCache.putSensorData(R.string.key_usercache_activity, mpma);
             // }
 			/*
-			DetectedActivity currentActivity = DataUtils.getCurrentMode(this).getLastActivity();
+			DetectedActivity currentActivity = DataUtils.getCurrentMode(ctxt).getLastActivity();
 			if (currentActivity.getType() == mostProbableActivity.getType()) {
-				Log.d(this, TAG, "currentActivity ("+currentActivity+") == newActivity ("+mostProbableActivity+"), skipping update");
+				Log.d(ctxt, TAG, "currentActivity ("+currentActivity+") == newActivity ("+mostProbableActivity+"), skipping update");
 			} else {
                 //    At least in the current version of the API, the confidence is given in percent (i.e. 90 instead of 0.9)
-				Log.d(this, TAG, "currentActivity ("+currentActivity+") != newActivity ("+mostProbableActivity+"), checking confidence");
+				Log.d(ctxt, TAG, "currentActivity ("+currentActivity+") != newActivity ("+mostProbableActivity+"), checking confidence");
 				if (mostProbableActivity.getConfidence() > 90) {
                     if (!isFilteredActivity(mostProbableActivity.getType())) {
-                        Log.d(this, TAG, "currentActivity (" + currentActivity + ") != newActivity (" + mostProbableActivity + ") with confidence (" +
+                        Log.d(ctxt, TAG, "currentActivity (" + currentActivity + ") != newActivity (" + mostProbableActivity + ") with confidence (" +
                                 mostProbableActivity.getConfidence() + " > 90, updating current state");
-                        DataUtils.addModeChange(this, SystemClock.elapsedRealtimeNanos(), mostProbableActivity);
+                        DataUtils.addModeChange(ctxt, SystemClock.elapsedRealtimeNanos(), mostProbableActivity);
                     }
 				}
 			}
@@ -100,21 +112,21 @@ public class ActivityRecognitionChangeIntentService extends IntentService {
 	 *@param activityType The detected activity type
 	 *@return A user-readable name for the type
 	 */
-	public static String activityType2Name(int activityType, IntentService intentService) {
+	public static String activityType2Name(int activityType, Context ctxt) {
 		switch(activityType) {
 			case DetectedActivity.IN_VEHICLE:
-				return intentService.getString(R.string.activity_transport);
+				return ctxt.getString(R.string.activity_transport);
 			case DetectedActivity.ON_BICYCLE:
-				return intentService.getString(R.string.activity_cycling);
+				return ctxt.getString(R.string.activity_cycling);
 			case DetectedActivity.ON_FOOT:
-				return intentService.getString(R.string.activity_walking);
+				return ctxt.getString(R.string.activity_walking);
 			case DetectedActivity.STILL:
-				return intentService.getString(R.string.activity_still);
+				return ctxt.getString(R.string.activity_still);
 			case DetectedActivity.UNKNOWN:
-				return intentService.getString(R.string.activity_unknown);
+				return ctxt.getString(R.string.activity_unknown);
 			case DetectedActivity.TILTING:
-				return intentService.getString(R.string.activity_tilting);
+				return ctxt.getString(R.string.activity_tilting);
 		}
-		return intentService.getString(R.string.activity_unknown);
+		return ctxt.getString(R.string.activity_unknown);
 	}
 }
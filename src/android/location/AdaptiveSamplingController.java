@@ -0,0 +1,114 @@
+package edu.berkeley.eecs.emission.cordova.tracker.location;
+
+import android.location.Location;
+
+import edu.berkeley.eecs.emission.cordova.tracker.wrapper.GeoDistance;
+
+/**
+ * Picks the location request interval during a trip, if adaptive sampling is turned on.
+ *
+ * We normally ask for a location every filter_time for the whole trip. On a long, steady drive
+ * most of those fixes are redundant, so when the speed and the heading have been stable for a few
+ * fixes, we double the interval, up to the configured max. As soon as we see a turn, a change in
+ * speed, or a slow speed (including a stop), we go back to filter_time, so that the shape of the
+ * trip and the trip end check (which expects points every filter_time) are not affected.
+ *
+ * The caller re-issues the location request when onLocation returns true.
+ */
+public class AdaptiveSamplingController {
+    // Below this, we might be walking, in traffic, or about to stop, so we sample at the min
+    private static final float MIN_STEADY_SPEED = 5; // m/s, 18 km/h
+    private static final float MAX_SPEED_CHANGE_FRACTION = 0.2f;
+    private static final float MAX_SPEED_CHANGE = 2; // m/s, for low speeds
+    private static final float MAX_HEADING_CHANGE = 20; // degrees
+    private static final int STEADY_FIXES_TO_GROW = 3;
+
+    private static AdaptiveSamplingController sInstance = null;
+
+    private int mInterval = -1;
+    private int mSteadyCount = 0;
+    private Location mLastLoc = null;
+
+    private AdaptiveSamplingController() {}
+
+    public static synchronized AdaptiveSamplingController getInstance() {
+        if (sInstance == null) {
+            sInstance = new AdaptiveSamplingController();
+        }
+        return sInstance;
+    }
+
+    /*
+     * Called when we (re)start tracking, so that every trip starts at the min interval.
+     */
+    public synchronized void reset() {
+        mInterval = -1;
+        mSteadyCount = 0;
+        mLastLoc = null;
+    }
+
+    public synchronized int getInterval(int minInterval, int maxInterval) {
+        if (mInterval < 0) {
+            return minInterval;
+        }
+        return Math.max(minInterval, Math.min(mInterval, maxInterval));
+    }
+
+    /*
+     * Returns true if the interval has changed, and the location request should be re-issued.
+     */
+    public synchronized boolean onLocation(Location loc, int minInterval, int maxInterval) {
+        int prevInterval = getInterval(minInterval, maxInterval);
+        Location lastLoc = mLastLoc;
+        mLastLoc = loc;
+        if (lastLoc == null || loc.getTime() <= lastLoc.getTime()) {
+            return false;
+        }
+
+        if (isSteady(lastLoc, loc)) {
+            mSteadyCount++;
+            if (mSteadyCount >= STEADY_FIXES_TO_GROW) {
+                mSteadyCount = 0;
+                mInterval = (int) Math.min((long) prevInterval * 2, maxInterval);
+            }
+        } else {
+            mSteadyCount = 0;
+            mInterval = minInterval;
+        }
+        return getInterval(minInterval, maxInterval) != prevInterval;
+    }
+
+    private static boolean isSteady(Location prev, Location curr) {
+        float prevSpeed = getSpeed(prev, null);
+        float currSpeed = getSpeed(curr, prev);
+        if (prevSpeed < MIN_STEADY_SPEED || currSpeed < MIN_STEADY_SPEED) {
+            return false;
+        }
+        float maxChange = Math.max(MAX_SPEED_CHANGE, prevSpeed * MAX_SPEED_CHANGE_FRACTION);
+        if (Math.abs(currSpeed - prevSpeed) > maxChange) {
+            return false;
+        }
+        if (!prev.hasBearing() || !curr.hasBearing()) {
+            // we can't tell if we are turning, so let's assume that we are
+            return false;
+        }
+        float headingChange = Math.abs(curr.getBearing() - prev.getBearing()) % 360;
+        if (headingChange > 180) {
+            headingChange = 360 - headingChange;
+        }
+        return headingChange <= MAX_HEADING_CHANGE;
+    }
+
+    // The sensed speed if we have it, otherwise the speed from the previous location, if any
+    private static float getSpeed(Location loc, Location prev) {
+        if (loc.hasSpeed()) {
+            return loc.getSpeed();
+        }
+        if (prev == null) {
+            return 0;
+        }
+        double dt = (loc.getTime() - prev.getTime()) / 1000.0;
+        return (float) (GeoDistance.fast(prev.getLatitude(), prev.getLongitude(),
+                loc.getLatitude(), loc.getLongitude()) / dt);
+    }
+}
@@ -0,0 +1,233 @@
+package edu.berkeley.eecs.emission.cordova.tracker.location;
+
+import java.util.Arrays;
+
+import edu.berkeley.eecs.emission.cordova.tracker.wrapper.SimpleLocation;
+
+/**
+ * Bounded index of the recently saved filtered points, keyed by grid cell, to suppress stationary
+ * jitter.
+ *
+ * The duplicate check only catches points that are exactly the same as the last one, so when we
+ * are stationary, every fix that is off by a few meters is saved. If jitter suppression is turned
+ * on, we don't save a point that is within the jitter radius of a point that we saved recently.
+ * The radius is the smaller of the two accuracies, clamped to [MIN_RADIUS, MAX_RADIUS]. Since
+ * MAX_RADIUS is less than the distance we cover between fixes even at walking speeds, this only
+ * affects points while we are (nearly) stationary.
+ *
+ * The cells are MAX_RADIUS on each side, so all candidates are in the 3x3 cells around the new
+ * point, and we only remember the last saved point in each cell. So a check is at most nine
+ * lookups, independent of the number of points.
+ *
+ * This runs for every location update, so the cells are in an open addressing table keyed by the
+ * primitive cell key (no boxing), and in an intrusive list in the order in which they were last
+ * updated (moving a cell to the end, or evicting the oldest one, is O(1)). The table has twice as
+ * many slots as MAX_CELLS, so the probes stay short.
+ *
+ * We check the point that would be saved, i.e. the smoothed point if smoothing is on, since that
+ * is what ends up next to the points that we have saved. A suppressed point is still a valid
+ * point, and it is still used for the trip end check; we just don't save it. We don't suppress against points that are more than MAX_SUPPRESS_SECS old, so
+ * that we save at least one point a minute even if we don't move at all.
+ */
+public class DwellPointIndex {
+    private static final double MIN_RADIUS = 5;
+    private static final double MAX_RADIUS = 25;
+    private static final double CELL_SIZE = MAX_RADIUS;
+    private static final double MAX_SUPPRESS_SECS = 60;
+    private static final int MAX_CELLS = 256;
+    // A power of two, at least twice MAX_CELLS
+    private static final int TABLE_SIZE = 512;
+    private static final double METERS_PER_DEGREE = 6371008.8 * Math.PI / 180;
+
+    private static DwellPointIndex sInstance = null;
+
+    // Linear probing, null is an empty slot
+    private final Cell[] mTable = new Cell[TABLE_SIZE];
+    private int mSize = 0;
+    // In the order in which they were last updated, for eviction
+    private Cell mOldest = null;
+    private Cell mNewest = null;
+    private long mChecked = 0;
+    private long mSuppressed = 0;
+
+    private static class Cell {
+        final long key;
+        SimpleLocation loc;
+        Cell older;
+        Cell newer;
+
+        Cell(long key, SimpleLocation loc) {
+            this.key = key;
+            this.loc = loc;
+        }
+    }
+
+    private DwellPointIndex() {}
+
+    public static synchronized DwellPointIndex getInstance() {
+        if (sInstance == null) {
+            sInstance = new DwellPointIndex();
+        }
+        return sInstance;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(mTable, null);
+        mSize = 0;
+        mOldest = null;
+        mNewest = null;
+    }
+
+    /*
+     * Returns true if the point should not be saved, and otherwise records it as saved.
+     */
+    public synchronized boolean suppress(SimpleLocation loc) {
+        mChecked++;
+        evictOlderThan(loc.getTs() - MAX_SUPPRESS_SECS);
+        long row = row(loc.getLatitude());
+        for (long r = row - 1; r <= row + 1; r++) {
+            long col = col(loc.getLongitude(), r);
+            for (long c = col - 1; c <= col + 1; c++) {
+                Cell cell = get(key(r, c));
+                if (cell != null && isJitter(loc, cell.loc)) {
+                    mSuppressed++;
+                    return true;
+                }
+            }
+        }
+        record(key(row, col(loc.getLongitude(), row)), loc);
+        return false;
+    }
+
+    public synchronized String getStatsSummary() {
+        return "jitter suppression: checked = "+mChecked+" suppressed = "+mSuppressed;
+    }
+
+    private static boolean isJitter(SimpleLocation loc, SimpleLocation saved) {
+        double age = loc.getTs() - saved.getTs();
+        if (age < 0 || age >= MAX_SUPPRESS_SECS) {
+            return false;
+        }
+        double radius = Math.min(loc.getAccuracy(), saved.getAccuracy());
+        radius = Math.max(MIN_RADIUS, Math.min(MAX_RADIUS, radius));
+        return loc.distanceTo(saved) <= radius;
+    }
+
+    private void record(long key, SimpleLocation loc) {
+        Cell cell = get(key);
+        if (cell != null) {
+            unlink(cell);
+            cell.loc = loc;
+        } else {
+            cell = new Cell(key, loc);
+            put(cell);
+        }
+        linkNewest(cell);
+        while (mSize > MAX_CELLS) {
+            evictOldest();
+        }
+    }
+
+    private void evictOlderThan(double cutoffTs) {
+        while (mOldest != null && mOldest.loc.getTs() < cutoffTs) {
+            evictOldest();
+        }
+    }
+
+    private void evictOldest() {
+        Cell cell = mOldest;
+        unlink(cell);
+        remove(cell.key);
+    }
+
+    private void linkNewest(Cell cell) {
+        cell.older = mNewest;
+        cell.newer = null;
+        if (mNewest != null) {
+            mNewest.newer = cell;
+        } else {
+            mOldest = cell;
+        }
+        mNewest = cell;
+    }
+
+    private void unlink(Cell cell) {
+        if (cell.older != null) {
+            cell.older.newer = cell.newer;
+        } else {
+            mOldest = cell.newer;
+        }
+        if (cell.newer != null) {
+            cell.newer.older = cell.older;
+        } else {
+            mNewest = cell.older;
+        }
+        cell.older = null;
+        cell.newer = null;
+    }
+
+    private Cell get(long key) {
+        for (int i = slot(key); mTable[i] != null; i = (i + 1) & (TABLE_SIZE - 1)) {
+            if (mTable[i].key == key) {
+                return mTable[i];
+            }
+        }
+        return null;
+    }
+
+    // The key must not be in the table
+    private void put(Cell cell) {
+        int i = slot(cell.key);
+        while (mTable[i] != null) {
+            i = (i + 1) & (TABLE_SIZE - 1);
+        }
+        mTable[i] = cell;
+        mSize++;
+    }
+
+    /*
+     * Backward shift deletion, so that we don't need tombstones: every entry after the removed
+     * one in the same run moves into the hole, unless that would put it before its home slot.
+     */
+    private void remove(long key) {
+        int hole = slot(key);
+        while (mTable[hole].key != key) {
+            hole = (hole + 1) & (TABLE_SIZE - 1);
+        }
+        mTable[hole] = null;
+        mSize--;
+        for (int i = (hole + 1) & (TABLE_SIZE - 1); mTable[i] != null; i = (i + 1) & (TABLE_SIZE - 1)) {
+            int home = slot(mTable[i].key);
+            // is home cyclically outside (hole, i]?
+            if (((i - home) & (TABLE_SIZE - 1)) >= ((i - hole) & (TABLE_SIZE - 1))) {
+                mTable[hole] = mTable[i];
+                mTable[i] = null;
+                hole = i;
+            }
+        }
+    }
+
+    private static int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (TABLE_SIZE - 1);
+    }
+
+    private static long row(double lat) {
+        return (long) Math.floor(lat * METERS_PER_DEGREE / CELL_SIZE);
+    }
+
+    /*
+     * The width of a degree of longitude depends on the latitude, so every row uses the scale at
+     * its center. Across the antimeridian, we can miss a candidate, i.e. save a point that we
+     * could have dropped.
+     */
+    private static long col(double lng, long row) {
+        double rowLat = (row + 0.5) * CELL_SIZE / METERS_PER_DEGREE;
+        double cosLat = Math.max(Math.cos(Math.toRadians(rowLat)), 0.01);
+        return (long) Math.floor(lng * METERS_PER_DEGREE * cosLat / CELL_SIZE);
+    }
+
+    private static long key(long row, long col) {
+        return (row << 32) ^ (col & 0xffffffffL);
+    }
+}
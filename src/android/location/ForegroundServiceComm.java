@@ -10,6 +10,7 @@ import android.os.IBinder;
 import androidx.annotation.RequiresApi;
 
 import edu.berkeley.eecs.emission.cordova.tracker.Constants;
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerLog;
 import edu.berkeley.eecs.emission.cordova.unifiedlogger.Log;
 import edu.berkeley.eecs.emission.cordova.unifiedlogger.NotificationHelper;
 import edu.berkeley.eecs.emission.R;
@@ -30,16 +31,16 @@ public class ForegroundServiceComm {
   public void setNewState(String newState) {
     nRecursion++;
     if (mBound) {
-      Log.d(mCtxt, TAG, "Service successfully bound, setting state");
+      TrackerLog.d(mCtxt, TAG, "Service successfully bound, setting state");
       mService.setStateMessage(newState);
     } else {
           Intent fsi = getForegroundServiceIntent();
         if (nRecursion < 5) {
-          Log.d(mCtxt, TAG, "nRecursion = "+nRecursion+" rebinding ");
+          TrackerLog.d(mCtxt, TAG, () -> "nRecursion = "+nRecursion+" rebinding ");
           pendingMsgState = newState;
           mCtxt.bindService(fsi, connection, 0);
         } else if (nRecursion < 10) {
-          Log.d(mCtxt, TAG, "nRecursion = "+nRecursion+" restarting before rebind ");
+          TrackerLog.d(mCtxt, TAG, () -> "nRecursion = "+nRecursion+" restarting before rebind ");
           pendingMsgState = newState;
           TripDiaryStateMachineForegroundService.startProperly(mCtxt);
           mCtxt.bindService(fsi, connection, 0);
@@ -52,7 +53,7 @@ public class ForegroundServiceComm {
   }
 
   public void unbind() {
-    Log.d(mCtxt, TAG, "Destroying FSM service, unbinding foreground service");
+    TrackerLog.d(mCtxt, TAG, "Destroying FSM service, unbinding foreground service");
     mCtxt.unbindService(connection);
   }
 
@@ -76,10 +77,10 @@ public class ForegroundServiceComm {
     public void onServiceDisconnected(ComponentName arg0) {
       mService = null;
       mBound = false;
-      Log.d(mCtxt, TAG, "service disconnected, nRetries = "+nRetries);
+      TrackerLog.d(mCtxt, TAG, () -> "service disconnected, nRetries = "+nRetries);
       TripDiaryStateMachineForegroundService.startProperly(mCtxt);
       if (nRetries < 10) {
-        Log.d(mCtxt, TAG, "starting service and retrying ");
+        TrackerLog.d(mCtxt, TAG, "starting service and retrying ");
         mCtxt.bindService(getForegroundServiceIntent(), connection, 0);
         try {
           Thread.sleep(30 * 1000);
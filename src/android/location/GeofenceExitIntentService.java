@@ -3,9 +3,12 @@ package edu.berkeley.eecs.emission.cordova.tracker.location;
 import edu.berkeley.eecs.emission.R;
 
 import android.app.IntentService;
+import android.content.Context;
 import android.content.Intent;
 
+import edu.berkeley.eecs.emission.cordova.tracker.ConfigManager;
 import edu.berkeley.eecs.emission.cordova.tracker.ExplicitIntent;
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerLog;
 import edu.berkeley.eecs.emission.cordova.unifiedlogger.Log;
 import edu.berkeley.eecs.emission.cordova.usercache.UserCacheFactory;
 import edu.berkeley.eecs.emission.cordova.tracker.wrapper.SimpleLocation;
@@ -22,65 +25,74 @@ public class GeofenceExitIntentService extends IntentService {
 	
 	@Override
 	public void onCreate() {
-		Log.d(this, TAG, "onCreate called");
+		TrackerLog.d(this, TAG, "onCreate called");
 		super.onCreate();
 	}
 	
 	@Override
 	public void onStart(Intent i, int startId) {
-		Log.d(this, TAG, "onStart called with startId "+startId);
+		TrackerLog.d(this, TAG, () -> "onStart called with startId "+startId);
 		super.onStart(i, startId);
 	}
 	
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
-		Log.d(this, TAG, "onStartCommand called with intent "+intent+" flags "+flags+" startId "+startId);
+		TrackerLog.d(this, TAG, () -> "onStartCommand called with intent "+intent+" flags "+flags+" startId "+startId);
 		return super.onStartCommand(intent, flags, startId);		
 	}
 
 	@Override
 	public void onDestroy() {
-		Log.d(this, TAG, "onDestroy called");
+		TrackerLog.d(this, TAG, "onDestroy called");
 		super.onDestroy();
 	}
 
 	@Override
 	protected void onHandleIntent(Intent intent) {
+		TrackingEventPipeline.getInstance(this).enqueue(TrackingEventPipeline.ACTION_GEOFENCE_EXIT, intent);
+	}
+
+	/*
+	 * Called from the TrackingEventPipeline, which is the only consumer of these events. The
+	 * events that are still sent to this service are handed off to it in onHandleIntent above.
+	 */
+	public static void handleGeofenceExit(Context ctxt, Intent intent) {
 		/*
 		 * The intent is called when we leave a geofence. 
 		 */
-        Log.d(this, TAG, "geofence exit intent action = "+intent.getAction());
+        TrackerLog.d(ctxt, TAG, () -> "geofence exit intent action = "+intent.getAction());
         GeofencingEvent parsedEvent = GeofencingEvent.fromIntent(intent);
-		Log.d(this, TAG, "parsedEvent = "+parsedEvent);
-        Log.d(this, TAG, "got geofence intent callback with type "+parsedEvent.getGeofenceTransition()+
+		TrackerLog.d(ctxt, TAG, () -> "parsedEvent = "+parsedEvent);
+        TrackerLog.d(ctxt, TAG, () -> "got geofence intent callback with type "+parsedEvent.getGeofenceTransition()+
             " and location "+parsedEvent.getTriggeringLocation());
 
         // This is the only transition we are listening to
         assert(parsedEvent.getGeofenceTransition() == Geofence.GEOFENCE_TRANSITION_EXIT);
         if (parsedEvent.getGeofenceTransition() == Geofence.GEOFENCE_TRANSITION_EXIT) {
-    		Log.d(this, TAG, "Geofence exited! Intent = "+ intent+" Starting ongoing monitoring...");
+    		TrackerLog.d(ctxt, TAG, () -> "Geofence exited! Intent = "+ intent+" Starting ongoing monitoring...");
             // Add the exit location to the tracking database
-			UserCacheFactory.getUserCache(this).putSensorData(R.string.key_usercache_location,
-                    new SimpleLocation(parsedEvent.getTriggeringLocation()));
-            // DataUtils.addPoint(this, parsedEvent.getTriggeringLocation());
+			UserCacheFactory.getUserCache(ctxt).putSensorData(R.string.key_usercache_location,
+                    new SimpleLocation(parsedEvent.getTriggeringLocation(),
+                        !ConfigManager.getConfig(ctxt).isSkipFmtTime()));
+            // DataUtils.addPoint(ctxt, parsedEvent.getTriggeringLocation());
             // Let's just re-use the same event for the broadcast, since it has the location information
             // in case we need it on the other side.
             // intent.setAction(getString(R.string.transition_exited_geofence));
-            // sendBroadcast(intent);
-            sendBroadcast(new ExplicitIntent(this, R.string.transition_exited_geofence));
+            // ctxt.sendBroadcast(intent);
+            ctxt.sendBroadcast(new ExplicitIntent(ctxt, R.string.transition_exited_geofence));
         } else if (parsedEvent.getGeofenceTransition() == -1) {
 			// This must be a location services on/off transition
 			// https://github.com/e-mission/e-mission-data-collection/issues/128#issuecomment-250304943
 			if (parsedEvent.hasError()) {
-				Log.i(this, TAG, "Found error "+parsedEvent.getErrorCode()+
+				TrackerLog.i(ctxt, TAG, () -> "Found error "+parsedEvent.getErrorCode()+
 								" generating tracking error");
-				sendBroadcast(new ExplicitIntent(this, R.string.transition_tracking_error));
+				ctxt.sendBroadcast(new ExplicitIntent(ctxt, R.string.transition_tracking_error));
 			} else {
-				Log.i(this, TAG, "Got event with transition = "+parsedEvent.getGeofenceTransition()+
+				TrackerLog.i(ctxt, TAG, () -> "Got event with transition = "+parsedEvent.getGeofenceTransition()+
 					" but hasError = false, ignoring");
 			}
         } else {
-            Log.w(this, TAG, "Got geofencing event with unknown transition "+
+            Log.w(ctxt, TAG, "Got geofencing event with unknown transition "+
                 parsedEvent.getGeofenceTransition() + " ignoring...");
         }
 	}
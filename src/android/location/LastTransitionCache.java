@@ -0,0 +1,65 @@
+package edu.berkeley.eecs.emission.cordova.tracker.location;
+
+import android.content.Context;
+
+import edu.berkeley.eecs.emission.R;
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerLog;
+import edu.berkeley.eecs.emission.cordova.tracker.wrapper.Transition;
+import edu.berkeley.eecs.emission.cordova.usercache.BuiltinUserCache;
+import edu.berkeley.eecs.emission.cordova.usercache.UserCache;
+import edu.berkeley.eecs.emission.cordova.usercache.UserCacheFactory;
+
+/**
+ * In-memory copy of the ts of the last exited_geofence transition, so that we don't query the
+ * usercache for it on every location update.
+ *
+ * All the transitions are written through putTransition, so once we have loaded the ts in this
+ * process, we can keep it up to date without reading it back. After the process is restarted, we
+ * load it lazily from the usercache (BuiltinUserCache.getTsOfLastTransition) the first time that
+ * it is read. A write of any other transition doesn't tell us that ts, so we only skip the query
+ * once we have either seen an exited_geofence in this process, or loaded it.
+ */
+public class LastTransitionCache {
+    private static final String TAG = "LastTransitionCache";
+
+    private static LastTransitionCache sInstance = null;
+
+    private double mLastExitTs = 0;
+    private boolean mLastExitLoaded = false;
+
+    private LastTransitionCache() {}
+
+    public static synchronized LastTransitionCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new LastTransitionCache();
+        }
+        return sInstance;
+    }
+
+    /*
+     * Saves the transition to the usercache, and remembers its ts if it is an exit.
+     */
+    public synchronized void putTransition(Context ctxt, Transition transition) {
+        UserCacheFactory.getUserCache(ctxt).putMessage(R.string.key_usercache_transition,
+                transition);
+        if (ctxt.getString(R.string.transition_exited_geofence).equals(transition.getTransition())) {
+            // The write_ts is set a little later, in putMessage, but the difference doesn't
+            // matter for the location fix times that we compare this with
+            mLastExitTs = transition.getTs();
+            mLastExitLoaded = true;
+        }
+    }
+
+    /*
+     * Same as BuiltinUserCache.getTsOfLastTransition, but only queries the first time.
+     */
+    public synchronized double getTsOfLastExit(Context ctxt) {
+        if (!mLastExitLoaded) {
+            UserCache uc = UserCacheFactory.getUserCache(ctxt);
+            mLastExitTs = ((BuiltinUserCache)uc).getTsOfLastTransition();
+            mLastExitLoaded = true;
+            TrackerLog.d(ctxt, TAG, () -> "Loaded ts of last exit "+mLastExitTs);
+        }
+        return mLastExitTs;
+    }
+}
@@ -13,17 +13,17 @@ import edu.berkeley.eecs.emission.R;
 
 
 import edu.berkeley.eecs.emission.cordova.tracker.ExplicitIntent;
+import edu.berkeley.eecs.emission.cordova.tracker.location.actions.LocationTrackingActions;
 import edu.berkeley.eecs.emission.cordova.tracker.sensors.PollSensorManager;
 import android.app.IntentService;
+import android.content.Context;
 import android.content.Intent;
 import android.location.Location;
 
 import edu.berkeley.eecs.emission.cordova.tracker.wrapper.LocationTrackingConfig;
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerLog;
 import edu.berkeley.eecs.emission.cordova.unifiedlogger.Log;
 import edu.berkeley.eecs.emission.cordova.unifiedlogger.NotificationHelper;
-import edu.berkeley.eecs.emission.cordova.usercache.BuiltinUserCache;
-import edu.berkeley.eecs.emission.cordova.usercache.UserCache;
-import edu.berkeley.eecs.emission.cordova.usercache.UserCacheFactory;
 import edu.berkeley.eecs.emission.cordova.tracker.wrapper.SimpleLocation;
 
 import com.google.android.gms.location.FusedLocationProviderApi;
@@ -33,6 +33,14 @@ import com.google.android.gms.location.LocationResult;
 public class LocationChangeIntentService extends IntentService {
 	private static final String TAG = "LocationChangeIntentService";
 	private static final int TRIP_END_RADIUS = Constants.TRIP_EDGE_THRESHOLD;
+	private static final int LOG_STATS_EVERY = 50;
+	// The early trip end needs at least these many points since the STILL started
+	private static final int MIN_STILL_POINTS = 3;
+
+	// To see how many wakeups batching saves
+	private static long sWakeups = 0;
+	private static long sPoints = 0;
+	private static int sMaxBatch = 0;
 	
 	public LocationChangeIntentService() {
 		super("LocationChangeIntentService");
@@ -40,32 +48,38 @@ public class LocationChangeIntentService extends IntentService {
 	
 	@Override
 	public void onCreate() {
-		Log.d(this, TAG, "onCreate called");
+		TrackerLog.d(this, TAG, "onCreate called");
 		super.onCreate();
 	}
 	
 	@Override
 	public int onStartCommand(Intent i, int flags, int startId) {
-		Log.d(this, TAG, "onStart called with "+i+" startId "+startId);
+		TrackerLog.d(this, TAG, () -> "onStart called with "+i+" startId "+startId);
 		return super.onStartCommand(i, flags, startId);
 	}
 
 	@Override
 	public void onDestroy() {
-		Log.d(this, TAG, "onDestroy called");
+		TrackerLog.d(this, TAG, "onDestroy called");
 		super.onDestroy();
 	}
 
 	@Override
 	protected void onHandleIntent(Intent intent) {
+		TrackingEventPipeline.getInstance(this).enqueue(TrackingEventPipeline.ACTION_LOCATION_UPDATE, intent);
+	}
+
+	/*
+	 * Called from the TrackingEventPipeline, which is the only consumer of these updates. The
+	 * updates that are still sent to this service are handed off to it in onHandleIntent above.
+	 */
+	public static void handleLocationUpdate(Context ctxt, Intent intent) {
 		/*
 		 * The intent is called when we get a location update.
 		 */
-		Log.d(this, TAG, "FINALLY! Got location update, intent is "+intent);
-		Log.d(this, TAG, "Extras keys are "+Arrays.toString(intent.getExtras().keySet().toArray()));
-		int ACCURACY_THRESHOLD = ConfigManager.getConfig(this).getAccuracyThreshold();
-
-        UserCache uc = UserCacheFactory.getUserCache(this);
+		TrackerLog.d(ctxt, TAG, () -> "FINALLY! Got location update, intent is "+intent);
+		TrackerLog.d(ctxt, TAG, () -> "Extras keys are "+Arrays.toString(intent.getExtras().keySet().toArray()));
+		int ACCURACY_THRESHOLD = ConfigManager.getConfig(ctxt).getAccuracyThreshold();
 
         /*
          * For the sensors that are not managed by the android sensor manager, but instead, require
@@ -74,15 +88,15 @@ public class LocationChangeIntentService extends IntentService {
          * in this fashion will avoid the overhead of building a scheduler, launching a new process
          * for the polling, and the power drain of waking up the CPU.
          */
-        PollSensorManager.getAndSaveAllValues(this);
+        PollSensorManager.getAndSaveAllValues(ctxt);
 
 		List<Location> locList = LocationResult.hasResult(intent)? LocationResult.extractResult(intent).getLocations() : null;
 		LocationAvailability locationAvailability = LocationAvailability.extractLocationAvailability(intent);
-		Log.d(this, TAG, "Read locations "+locList+" from intent");
+		TrackerLog.d(ctxt, TAG, () -> "Read locations "+locList+" from intent");
 		if (locationAvailability != null) {
-			Log.d(this, TAG, "availability = "+locationAvailability.isLocationAvailable());
+			TrackerLog.d(ctxt, TAG, () -> "availability = "+locationAvailability.isLocationAvailable());
 			if (!locationAvailability.isLocationAvailable()) {
-				Log.d(this, TAG, "location is not available, move to start state?");
+				TrackerLog.d(ctxt, TAG, "location is not available, move to start state?");
 			}
 		}
 
@@ -96,10 +110,19 @@ public class LocationChangeIntentService extends IntentService {
 		 */
 
 		if (locList == null) return;
+		recordWakeup(ctxt, locList.size());
 
+		/*
+		 * The raw and filtered points from this result are written together in a single
+		 * transaction at the end, instead of one transaction per point.
+		 */
+		SensorDataBatch writeBatch = new SensorDataBatch();
+		List<SimpleLocation> simpleLocList = new ArrayList<SimpleLocation>(locList.size());
+		boolean includeFmtTime = !ConfigManager.getConfig(ctxt).isSkipFmtTime();
 		for (Location loc: locList) {
-        SimpleLocation simpleLoc = new SimpleLocation(loc);
-        uc.putSensorData(R.string.key_usercache_location, simpleLoc);
+        SimpleLocation simpleLoc = new SimpleLocation(loc, includeFmtTime);
+        simpleLocList.add(simpleLoc);
+        writeBatch.add(R.string.key_usercache_location, simpleLoc);
     }
 
 		/*
@@ -107,7 +130,7 @@ public class LocationChangeIntentService extends IntentService {
 		 * points. We can deal with everything exclusively on the server side.
 		 */
 
-		if (!ConfigManager.getConfig(this).isDutyCycling()) {
+		if (!ConfigManager.getConfig(ctxt).isDutyCycling()) {
 			// Server-side currently expects filtered location, but if we just put everything
 			// into filtered location, it won't be filtered any more.
 			// Let's just assume that we will have to generate filtered_location on the server side
@@ -115,6 +138,7 @@ public class LocationChangeIntentService extends IntentService {
 			// So in that case, we won't do anything here.
 			// We could filter, but that seems like extra work, so it is not a fair comparison with
 			// just dumping the data to the server.
+			writeBatch.write(ctxt);
 			return;
 		}
 
@@ -125,164 +149,180 @@ public class LocationChangeIntentService extends IntentService {
 		 * sure that the algorithm is correct. So we store both the raw location and the filtered
 		 * location and use the filtered location for our calculations.
 		 */
-		int tripEndSecs = ConfigManager.getConfig(this).getTripEndStationaryMins() * 60;
+		int tripEndSecs = ConfigManager.getConfig(ctxt).getTripEndStationaryMins() * 60;
         int pointsToQuery = tripEndSecs * 1000 /
-				ConfigManager.getConfig(this).getFilterTime();
-        Log.d(this, TAG, "Finding the last "+pointsToQuery+" points");
+				ConfigManager.getConfig(ctxt).getFilterTime();
+        TrackerLog.d(ctxt, TAG, () -> "Finding the last "+pointsToQuery+" points");
 
-        SimpleLocation[] last10Points = uc.getLastSensorData(R.string.key_usercache_filtered_location, pointsToQuery , SimpleLocation.class);
+        // We are the only writer of filtered_location, so we read the recent points from
+        // memory instead of querying (and deserializing) them from the usercache every time
+        RecentLocationWindow recentWindow = RecentLocationWindow.getInstance();
+        recentWindow.ensureLoaded(ctxt, pointsToQuery, tripEndSecs);
+        // The oldest of the last pointsToQuery points, which is what we compare with for duplicates
+        SimpleLocation dupCheckLoc = recentWindow.getOldestOfLastPoints(pointsToQuery);
 
         double nowSecs = ((double)System.currentTimeMillis())/1000;
-        UserCache.TimeQuery tq = new UserCache.TimeQuery(getString(R.string.metadata_usercache_write_ts),
-                nowSecs - tripEndSecs - 10, nowSecs);
-
-        Log.d(this, TAG, "Finding points in the range "+tq);
-        SimpleLocation[] points5MinsAgo = uc.getSensorDataForInterval(R.string.key_usercache_filtered_location,
-                tq, SimpleLocation.class);
+        TrackerLog.d(ctxt, TAG, () -> "Checking points in the range "+(nowSecs - tripEndSecs - 10)+" -> "+nowSecs);
+        // The decision is based on the points before this batch, so we make it before adding them.
+        // The check is incremental (see StationaryDetector), so it does not need to recompute
+        // all the distances every time.
+        double lastTransitionTs = LastTransitionCache.getInstance().getTsOfLastExit(ctxt);
+        // Based on the accuracy of the recent points if a base radius is configured
+        int baseRadius = ConfigManager.getConfig(ctxt).getTripEndBaseRadius();
+        int tripEndRadius = recentWindow.getTripEndRadius(baseRadius, TRIP_END_RADIUS, pointsToQuery,
+                nowSecs);
+        boolean tripEnded = recentWindow.isTripEnded(nowSecs, lastTransitionTs,
+                pointsToQuery, tripEndSecs, tripEndRadius) ||
+                isStillTripEnded(ctxt, recentWindow, nowSecs, lastTransitionTs, tripEndRadius);
+        TrackerLog.d(ctxt, TAG, () -> "After filtering at "+lastTransitionTs+" with radius "+tripEndRadius
+                +", isTripEnded = "+tripEnded);
 
         List<Location> validLocList = new LinkedList<Location>();
         List<SimpleLocation> validSimpleLocList = new ArrayList<SimpleLocation>();
+        // The points that survive the simplification, which is off by default
+        TrajectorySimplifier simplifier = TrajectorySimplifier.getInstance();
+        int simplifyTolerance = ConfigManager.getConfig(ctxt).getSimplifyTolerance();
+        List<SimpleLocation> toSave = new ArrayList<SimpleLocation>();
+        LocationSmoother smoother = LocationSmoother.getInstance();
+        boolean smoothing = ConfigManager.getConfig(ctxt).isKalmanSmoothing();
+        if (!smoothing) {
+            // so that we start over if it is turned back on
+            smoother.reset();
+        }
+        DwellPointIndex dwellIndex = DwellPointIndex.getInstance();
+        boolean suppressJitter = ConfigManager.getConfig(ctxt).isJitterSuppression();
+        if (!suppressJitter) {
+            dwellIndex.clear();
+        }
 
-        for (Location loc: locList) {
+        for (int i = 0; i < locList.size(); i++) {
+          Location loc = locList.get(i);
           boolean validPoint = false;
-          SimpleLocation simpleLoc = new SimpleLocation(loc);
+          SimpleLocation simpleLoc = simpleLocList.get(i);
         if (loc.getAccuracy() < ACCURACY_THRESHOLD) {
-            if (last10Points.length == 0) {
+            if (dupCheckLoc == null) {
                 // Insert at least one entry before we can start comparing for duplicates
                 validPoint = true;
             } else {
-                assert(last10Points.length > 0);
-                if (simpleLoc.distanceTo(last10Points[last10Points.length - 1]) != 0) {
+                // The window has the smoothed points, so we compare with the last raw point if
+                // we have it
+                SimpleLocation lastLoc = smoother.getLastRaw();
+                if (!smoothing || lastLoc == null) {
+                    lastLoc = dupCheckLoc;
+                }
+                if (simpleLoc.distanceTo(lastLoc) != 0) {
                     validPoint = true;
                 } else {
-                    Log.i(this, TAG, "Duplicate point," + loc + " skipping ");
+                    TrackerLog.i(ctxt, TAG, () -> "Duplicate point," + loc + " skipping ");
                 }
             }
         } else {
-            Log.d(this, TAG, "Found bad quality point "+loc+" skipping");
+            TrackerLog.d(ctxt, TAG, () -> "Found bad quality point "+loc+" skipping");
         }
 
-        Log.d(this, TAG, "Current point status = "+validPoint);
+        if (TrackerLog.isDebugEnabled()) {
+            Log.d(ctxt, TAG, "Current point status = "+validPoint);
+        }
 
         if (validPoint) {
-            uc.putSensorData(R.string.key_usercache_filtered_location, simpleLoc);
+            SimpleLocation filteredLoc = smoothing ? smoother.smooth(simpleLoc) : simpleLoc;
+            // A suppressed point is still used for the trip end check, it just isn't saved. We
+            // check the point that would be saved, not the raw one
+            if (suppressJitter && dwellIndex.suppress(filteredLoc)) {
+                TrackerLog.d(ctxt, TAG, () -> "Point "+loc+" is stationary jitter, not saving it");
+            } else {
+                simplifier.add(filteredLoc, simplifyTolerance, TRIP_END_RADIUS, toSave);
+            }
+            recentWindow.add(filteredLoc, ((double)System.currentTimeMillis())/1000);
             validLocList.add(loc);
-            validSimpleLocList.add(simpleLoc);
+            validSimpleLocList.add(filteredLoc);
           }
         }
-
-		double lastTransitionTs = ((BuiltinUserCache)uc).getTsOfLastTransition();
-		last10Points = filterAfterTransition(last10Points, lastTransitionTs);
-		points5MinsAgo = filterAfterTransition(points5MinsAgo, lastTransitionTs);
+        boolean endTrip = validLocList.size() > 0 && tripEnded;
+        if (!endTrip && validLocList.size() > 1) {
+            // With batched delivery, the points in this result can span up to max_wait_time, so
+            // we also check with them included, instead of waiting for the next batch. This
+            // bounds the trip end latency by the max wait.
+            double batchNowSecs = ((double)System.currentTimeMillis())/1000;
+            endTrip = recentWindow.isTripEnded(batchNowSecs, lastTransitionTs,
+                    pointsToQuery, tripEndSecs,
+                    recentWindow.getTripEndRadius(baseRadius, TRIP_END_RADIUS, pointsToQuery,
+                            batchNowSecs));
+            if (endTrip) {
+                TrackerLog.d(ctxt, TAG, () -> "Trip ended within the batch of "+validLocList.size()+" points");
+            }
+        }
+        if (endTrip) {
+            // Don't leave the end of the trip in memory
+            simplifier.flush(toSave);
+        }
+        for (SimpleLocation savedLoc : toSave) {
+            writeBatch.add(R.string.key_usercache_filtered_location, savedLoc);
+        }
+        writeBatch.write(ctxt);
+
+        LocationTrackingConfig cfg = ConfigManager.getConfig(ctxt);
+        if (cfg.isAdaptiveSampling() && !endTrip) {
+            AdaptiveSamplingController controller = AdaptiveSamplingController.getInstance();
+            boolean intervalChanged = false;
+            for (Location loc : validLocList) {
+                intervalChanged |= controller.onLocation(loc, cfg.getFilterTime(),
+                        cfg.getAdaptiveMaxFilterTime());
+            }
+            if (intervalChanged) {
+                TrackerLog.i(ctxt, TAG, () -> "Adaptive sampling, changing the interval to "
+                    + controller.getInterval(cfg.getFilterTime(), cfg.getAdaptiveMaxFilterTime()));
+                new LocationTrackingActions(ctxt).updateInterval();
+            }
+        }
 
         // We will check whether the trip ended only when the point is valid.
         // Otherwise, we might end up with the duplicates triggering trip ends.
-		if (validLocList.size() > 0 && isTripEnded(last10Points, points5MinsAgo, tripEndSecs)) {
+		if (endTrip) {
 			// Stop listening to more updates
 			Intent stopMonitoringIntent = new Intent();
-			stopMonitoringIntent.setAction(getString(R.string.transition_stopped_moving));
+			stopMonitoringIntent.setAction(ctxt.getString(R.string.transition_stopped_moving));
 			// stopMonitoringIntent.putExtra(FusedLocationProviderApi.KEY_LOCATION_CHANGED, validLocList.get(0));
-			sendBroadcast(new ExplicitIntent(this, stopMonitoringIntent));
-            Log.d(this, TAG, "Finished broadcasting state change to receiver, ending trip now");
-            // DataUtils.endTrip(this);
+			ctxt.sendBroadcast(new ExplicitIntent(ctxt, stopMonitoringIntent));
+            TrackerLog.d(ctxt, TAG, "Finished broadcasting state change to receiver, ending trip now");
+            // DataUtils.endTrip(ctxt);
 		}
 	}
 
-	public SimpleLocation[] filterAfterTransition(SimpleLocation[] orig, double lastTransitionTs) {
-		ArrayList<SimpleLocation> tempArray = new ArrayList<SimpleLocation>();
-		for (SimpleLocation loc: orig) {
-			if (loc.getTs() > lastTransitionTs) {
-				tempArray.add(loc);
-			}
-		}
-		Log.d(this, TAG, "After filtering at "+lastTransitionTs+" number of points goes from "+
-				orig.length+" -> "+tempArray.size());
-		SimpleLocation[] retArray = new SimpleLocation[tempArray.size()];
-		return tempArray.toArray(retArray);
-	}
-	
-	public boolean isTripEnded(SimpleLocation[] last10Points, SimpleLocation[] points5MinsAgo, int tripEndSecs) {
-		/* We have requested 10 points, but we might get less than 10 if the trip has just started
-		 * We request updates every 30 secs, but we might get updates more frequently if other apps have
-		 * requested that. So maybe relying on the last n updates is not such a good idea.
-		 *
-		 * TODO: Switching to all updates in the past 5 minutes may be a better choice
-		 */
-		Log.d(this, TAG, "last10Points.length = "+ last10Points.length);
-        Log.d(this, TAG, "points5MinsAgo.length = "+ points5MinsAgo.length);
-
-		if (last10Points.length < 10 || points5MinsAgo.length == 0) {
-			Log.i(this, TAG, "last10Points.length = "+last10Points.length+
-                    " points5MinsAgo.length = " + points5MinsAgo.length +
-					" points, not enough to decide, returning false");
-			return false;
-		}
-		double[] last9Distances = getDistances(last10Points);
-        double[] last5MinsDistances = getDistances(points5MinsAgo);
-
-		Log.d(this, TAG, "last9Distances = "+ Arrays.toString(last9Distances));
-        Log.d(this, TAG, "last5MinsDistances = "+ Arrays.toString(last5MinsDistances));
-
-		double last5MinsSpan = points5MinsAgo[0].getTs()
-									- points5MinsAgo[points5MinsAgo.length - 1].getTs();
-
-		Log.d(this, TAG, "last5MinsSpan = "+last5MinsSpan+" secs, threshold + fuzz = "+(tripEndSecs - 30));
-		// -30 fuzz factor because we only look for the range in now - tripEndSecs - 10 anyway
-		if (stoppedMoving(last9Distances) && last5MinsSpan > (tripEndSecs - 60) &&
-				stoppedMoving(last5MinsDistances)) {
-			Log.i(this, TAG, "isTripEnded: stoppedMoving = true");
-			return true;
-		}
-		Log.i(this, TAG, "isTripEnded: stoppedMoving = false");
-		return false;
-	}
-	
-	public double[] getDistances(SimpleLocation[] points) {
-		if (points.length < 2) {
-			return new double[0];
-		}
-		double[] last9Distances = new double[points.length - 1];
-		/*
-		 * Since we get the last n points, they are sorted in
-		 * reverse order by timestamp. So the most recent point is
-		 * really the first point and we need to compare it against
-		 * all the others. 
-		 */
-		SimpleLocation lastPoint = points[0];
-		for (int i = 0; i < points.length - 1; i++) {
-			last9Distances[i] = lastPoint.distanceTo(points[i+1]);
-		}
-		return last9Distances;
-	}
-	
 	/*
-	 * The current check to detect that we have stopped moving is that all the last 4 points are within
-	 * the TRIP_END_RADIUS from the last point.
+	 * Early trip end: if activity recognition has reported STILL for android_still_trip_end_secs,
+	 * and the filtered points since the STILL started are all within the trip end radius, we don't
+	 * need to wait for the full trip_end_stationary_mins of points.
 	 */
-	public boolean stoppedMoving(double[] last9Distances) {
-		if (last9Distances.length < 1) {
-			// We don't have enough points to decide whether we have finished or not, so let's wait a bit longer
+	private static boolean isStillTripEnded(Context ctxt, RecentLocationWindow recentWindow,
+			double nowSecs, double lastTransitionTs, int tripEndRadius) {
+		int stillTripEndSecs = ConfigManager.getConfig(ctxt).getStillTripEndSecs();
+		if (stillTripEndSecs <= 0) {
 			return false;
 		}
-		// We don't want to start with maxDistance == 0 because then we will always
-		// be within the threshold. We already know that there is at least one element, so we
-		// start with that element
-		double maxDistance = last9Distances[0];
-
-		for(int i = 1; i < last9Distances.length; i++) {
-			double currDistance = last9Distances[i];
-			if (currDistance > maxDistance) {
-				maxDistance = currDistance;
-			}
-		}
-		Log.d(this, TAG, "maxDistance = "+maxDistance+" TRIP_END_RADIUS = "+TRIP_END_RADIUS);
-		// If all the distances are below the trip radius, then we have ended
-		if (maxDistance < TRIP_END_RADIUS) {
-			Log.d(this, TAG, "stoppedMoving: stoppedMoving = true");
-			return true;
-		} else {
-			Log.d(this, TAG, "stoppedMoving: stoppedMoving = false");
+		double stillSinceTs = StillActivityTracker.getInstance().getStillSinceTs(nowSecs,
+				lastTransitionTs, stillTripEndSecs);
+		if (stillSinceTs < 0) {
 			return false;
 		}
+		boolean stationary = recentWindow.isStationarySince(stillSinceTs, MIN_STILL_POINTS,
+				tripEndRadius);
+		TrackerLog.i(ctxt, TAG, () -> "STILL since "+stillSinceTs+", points agree = "+stationary);
+		return stationary;
+	}
+
+	private static synchronized void recordWakeup(Context ctxt, int nPoints) {
+		sWakeups++;
+		sPoints += nPoints;
+		sMaxBatch = Math.max(sMaxBatch, nPoints);
+		if (sWakeups % LOG_STATS_EVERY == 0) {
+			TrackerLog.i(ctxt, TAG, getBatchingStats());
+		}
+	}
+
+	public static synchronized String getBatchingStats() {
+		return "location wakeups = "+sWakeups+" points = "+sPoints
+				+" points per wakeup = "+(sWakeups == 0 ? 0 : ((double)sPoints)/sWakeups)
+				+" max batch = "+sMaxBatch;
 	}
 }
@@ -0,0 +1,142 @@
+package edu.berkeley.eecs.emission.cordova.tracker.location;
+
+import edu.berkeley.eecs.emission.cordova.tracker.wrapper.SimpleLocation;
+
+/**
+ * Constant velocity Kalman filter over the filtered locations.
+ *
+ * The accuracy threshold and the duplicate check let through every noisy fix that is accurate
+ * "enough", and the jitter inflates the distances and delays the trip end check. If smoothing is
+ * turned on, we run the points through this filter and save (and check for trip end on) the
+ * smoothed points instead. The raw points are still saved to the location key.
+ *
+ * The east and north axes are filtered independently, in meters, with the reported accuracy as
+ * the standard deviation of the measurement and white noise acceleration as the process noise.
+ * Both axes have the same time steps and measurement noise, so they share the covariance. To
+ * avoid errors from projecting far away from the origin, we move the origin to the estimate after
+ * every point. So the state is just the two velocities and the covariance, and every point is a
+ * fixed amount of work, without any allocations other than the returned location.
+ *
+ * A residual that is too large to be measurement noise means that we are maneuvering, and we then
+ * inflate the covariance, so that we don't lag behind the turns.
+ */
+public class LocationSmoother {
+    // Standard deviation of the acceleration that we don't model, in m/s^2. This is low so that we
+    // actually smooth at our ~30 sec intervals; turns and speed changes are caught by the gate.
+    private static final double ACCEL_NOISE = 0.05;
+    private static final double ACCEL_VAR = ACCEL_NOISE * ACCEL_NOISE;
+    // 99% point of the chi-squared distribution with 2 degrees of freedom
+    private static final double MANEUVER_GATE = 9.21;
+    // Initial velocity variance, i.e. anything up to highway speeds
+    private static final double INITIAL_VEL_VAR = 30 * 30;
+    // After a gap this long, the velocity is meaningless, so we start over
+    private static final double MAX_GAP_SECS = 10 * 60;
+    private static final double EARTH_RADIUS = 6371008.8;
+
+    private static LocationSmoother sInstance = null;
+
+    private boolean mInitialized = false;
+    // The last estimate, which is also the origin of the local coordinates
+    private double mLat, mLng, mTs;
+    private double mVelEast, mVelNorth;
+    // Shared covariance of [position, velocity] for both axes
+    private double mP00, mP01, mP11;
+    // The last raw point that we were given, for the duplicate check
+    private SimpleLocation mLastRaw = null;
+
+    private LocationSmoother() {}
+
+    public static synchronized LocationSmoother getInstance() {
+        if (sInstance == null) {
+            sInstance = new LocationSmoother();
+        }
+        return sInstance;
+    }
+
+    public synchronized void reset() {
+        mInitialized = false;
+        mLastRaw = null;
+    }
+
+    /*
+     * The raw point that we smoothed last, or null if we haven't seen any in this process.
+     */
+    public synchronized SimpleLocation getLastRaw() {
+        return mLastRaw;
+    }
+
+    public synchronized SimpleLocation smooth(SimpleLocation raw) {
+        mLastRaw = raw;
+        double measVar = Math.max(raw.getAccuracy(), 1.0);
+        measVar = measVar * measVar;
+        double dt = raw.getTs() - mTs;
+        if (!mInitialized || dt > MAX_GAP_SECS) {
+            mInitialized = true;
+            mLat = raw.getLatitude();
+            mLng = raw.getLongitude();
+            mTs = raw.getTs();
+            mVelEast = 0;
+            mVelNorth = 0;
+            mP00 = measVar;
+            mP01 = 0;
+            mP11 = INITIAL_VEL_VAR;
+            return raw;
+        }
+        if (dt < 0) {
+            // out of order, just update the position
+            dt = 0;
+        }
+
+        // Predict, relative to the current origin
+        double dt2 = dt * dt;
+        double east = mVelEast * dt;
+        double north = mVelNorth * dt;
+        double p00 = mP00 + 2 * dt * mP01 + dt2 * mP11 + ACCEL_VAR * dt2 * dt2 / 4;
+        double p01 = mP01 + dt * mP11 + ACCEL_VAR * dt2 * dt / 2;
+        double p11 = mP11 + ACCEL_VAR * dt2;
+
+        // Update with the measurement, in local meters
+        double cosLat = Math.cos(Math.toRadians(mLat));
+        double dLng = raw.getLongitude() - mLng;
+        if (dLng > 180) {
+            dLng -= 360;
+        } else if (dLng < -180) {
+            dLng += 360;
+        }
+        double measEast = Math.toRadians(dLng) * cosLat * EARTH_RADIUS;
+        double measNorth = Math.toRadians(raw.getLatitude() - mLat) * EARTH_RADIUS;
+        double resEast = measEast - east;
+        double resNorth = measNorth - north;
+        double s = p00 + measVar;
+        // If the residual is too large to be noise, we are turning or changing speed, so we trust
+        // the prediction less, enough for the residual to be at the edge of the gate
+        double nis = (resEast * resEast + resNorth * resNorth) / s;
+        if (nis > MANEUVER_GATE) {
+            double scale = nis / MANEUVER_GATE;
+            p00 *= scale;
+            p01 *= scale;
+            p11 *= scale;
+            s = p00 + measVar;
+        }
+        double k0 = p00 / s;
+        double k1 = p01 / s;
+        east += k0 * resEast;
+        north += k0 * resNorth;
+        mVelEast += k1 * resEast;
+        mVelNorth += k1 * resNorth;
+        mP00 = (1 - k0) * p00;
+        mP01 = (1 - k0) * p01;
+        mP11 = p11 - k1 * p01;
+
+        // Move the origin to the new estimate
+        mLat += Math.toDegrees(north / EARTH_RADIUS);
+        mLng += Math.toDegrees(east / (EARTH_RADIUS * cosLat));
+        if (mLng > 180) {
+            mLng -= 360;
+        } else if (mLng < -180) {
+            mLng += 360;
+        }
+        mTs = Math.max(mTs, raw.getTs());
+        return raw.withLatLng(mLat, mLng);
+    }
+}
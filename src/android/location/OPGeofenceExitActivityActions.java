@@ -14,8 +14,9 @@ import com.google.android.gms.tasks.Task;
 
 import edu.berkeley.eecs.emission.cordova.tracker.ConfigManager;
 import edu.berkeley.eecs.emission.cordova.tracker.location.TripDiaryStateMachineForegroundService;
-import edu.berkeley.eecs.emission.cordova.unifiedlogger.Log;
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerLog;
 import edu.berkeley.eecs.emission.cordova.tracker.location.OPGeofenceExitActivityIntentService;
+import edu.berkeley.eecs.emission.cordova.tracker.location.TrackingEventPipeline;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -55,23 +56,31 @@ public class OPGeofenceExitActivityActions {
                 .setActivityTransition(ActivityTransition.ACTIVITY_TRANSITION_ENTER)
                 .build());
         
-        Log.d(mCtxt, TAG, "Starting listening to activity transitions for list = "+activityTransitionList);
+        TrackerLog.d(mCtxt, TAG, () -> "Starting listening to activity transitions for list = "+activityTransitionList);
         ActivityTransitionRequest request = new ActivityTransitionRequest(activityTransitionList);
         return ActivityRecognition.getClient(mCtxt).requestActivityTransitionUpdates(request,
                 getActivityTransitionPendingIntent(mCtxt));
     }
 
     public static PendingIntent getActivityTransitionPendingIntent(Context ctxt) {
-        Intent innerIntent = new Intent(ctxt, OPGeofenceExitActivityIntentService.class);
 		/*
 		 * Setting FLAG_UPDATE_CURRENT so that sending the PendingIntent again updates the original.
 		 * We only want to have one geofence active at one point of time.
 		 */
+        return TripDiaryStateMachineForegroundService.getPipelinePendingIntent(ctxt,
+                TrackingEventPipeline.ACTION_ACTIVITY_TRANSITION);
+    }
+
+    private static PendingIntent getLegacyActivityTransitionPendingIntent(Context ctxt) {
+        Intent innerIntent = new Intent(ctxt, OPGeofenceExitActivityIntentService.class);
         return TripDiaryStateMachineForegroundService.getProperPendingIntent(ctxt, innerIntent);
     }
 
     public Task<Void> stop() {
-        Log.d(mCtxt, TAG, "Stopped listening to activity transitions");
+        TrackerLog.d(mCtxt, TAG, "Stopped listening to activity transitions");
+        // Best effort cleanup of the transitions requested by older versions
+        ActivityRecognition.getClient(mCtxt).removeActivityTransitionUpdates(
+                getLegacyActivityTransitionPendingIntent(mCtxt));
         return ActivityRecognition.getClient(mCtxt).removeActivityTransitionUpdates(
                 getActivityTransitionPendingIntent(mCtxt));
     }
@@ -47,6 +47,7 @@ import android.location.Location;
 import android.content.Context;
 import android.os.Looper;
 
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerLog;
 import edu.berkeley.eecs.emission.cordova.unifiedlogger.Log;
 import edu.berkeley.eecs.emission.cordova.usercache.UserCache;
 import edu.berkeley.eecs.emission.cordova.usercache.UserCacheFactory;
@@ -74,7 +75,7 @@ public class OPGeofenceExitActivityIntentService extends IntentService {
 
 	public OPGeofenceExitActivityIntentService() {
 		super("OPGeofenceExitActivityIntentService");
-		Log.d(this, TAG, "initializer called");
+		TrackerLog.d(this, TAG, "initializer called");
         this.uc = UserCacheFactory.getUserCache(this);
 	}
 
@@ -82,36 +83,44 @@ public class OPGeofenceExitActivityIntentService extends IntentService {
 
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
-		Log.d(this, TAG, "onStartCommand called with intent "+intent+" flags "+flags+" startId "+startId);
+		TrackerLog.d(this, TAG, () -> "onStartCommand called with intent "+intent+" flags "+flags+" startId "+startId);
 		return super.onStartCommand(intent, flags, startId);
 	}
 
 	@Override
 	public void onDestroy() {
-		Log.d(this, TAG, "onDestroy called");
+		TrackerLog.d(this, TAG, "onDestroy called");
 		super.onDestroy();
 	}
 
 	@Override
 	protected void onHandleIntent(Intent intent) {
-		Log.d(this, TAG, "FINALLY! Got activity transition, intent is "+intent);
-//		Log.d(this, TAG, "Intent extras are "+intent.getExtras().describeContents());
-//		Log.d(this, TAG, "Intent extra key list is "+Arrays.toString(intent.getExtras().keySet().toArray()));
+		TrackingEventPipeline.getInstance(this).enqueue(TrackingEventPipeline.ACTION_ACTIVITY_TRANSITION, intent);
+	}
+
+	/*
+	 * Called from the TrackingEventPipeline, which is the only consumer of these transitions. The
+	 * transitions that are still sent to this service are handed off to it in onHandleIntent above.
+	 */
+	public static void handleActivityTransition(Context ctxt, Intent intent) {
+		TrackerLog.d(ctxt, TAG, () -> "FINALLY! Got activity transition, intent is "+intent);
+//		Log.d(ctxt, TAG, "Intent extras are "+intent.getExtras().describeContents());
+//		Log.d(ctxt, TAG, "Intent extra key list is "+Arrays.toString(intent.getExtras().keySet().toArray()));
 		if (ActivityTransitionResult.hasResult(intent)) {
 			ActivityTransitionResult result = ActivityTransitionResult.extractResult(intent);
             for (ActivityTransitionEvent event : result.getTransitionEvents()) {
                 String info = "Transition: " + toActivityString(event.getActivityType()) +
                     " (" + toTransitionType(event.getTransitionType()) + ")" + "   " +
                     new SimpleDateFormat("HH:mm:ss", Locale.US).format(new Date());
-                Log.d(this, TAG, info);
+                TrackerLog.d(ctxt, TAG, () -> info);
                 /*
-                NotificationHelper.createNotification(this, ACTIVITY_IN_NUMBERS,
+                NotificationHelper.createNotification(ctxt, ACTIVITY_IN_NUMBERS,
                     null, new SimpleDateFormat("HH:mm:ss", Locale.US).format(new Date())
                         +" "+toActivityString(event.getActivityType())
                         +" "+toTransitionType(event.getTransitionType()));
                 */
                 if (event.getTransitionType() != ActivityTransition.ACTIVITY_TRANSITION_ENTER) {
-                    NotificationHelper.createNotification(this, ACTIVITY_ERROR_IN_NUMBERS,
+                    NotificationHelper.createNotification(ctxt, ACTIVITY_ERROR_IN_NUMBERS,
                         null, new SimpleDateFormat("HH:mm:ss", Locale.US).format(new Date())
                             +" Expected enter transition, found "+toActivityString(event.getActivityType())
                             +" "+toTransitionType(event.getTransitionType()));
@@ -123,18 +132,18 @@ public class OPGeofenceExitActivityIntentService extends IntentService {
                 // former lets us get a new source of sensor data
                 switch(event.getActivityType()) {
                     case DetectedActivity.STILL:
-                        cancelPendingDelayedCheck();
+                        cancelPendingDelayedCheck(ctxt);
                         break;
                     case DetectedActivity.WALKING:
                     case DetectedActivity.RUNNING:
-                        handleWalkingTransition();
+                        handleWalkingTransition(ctxt);
                         break;
                     case DetectedActivity.ON_BICYCLE:
                     case DetectedActivity.IN_VEHICLE:
-                        handleNonWalkingTransition();
+                        handleNonWalkingTransition(ctxt);
                         break;
                     default:
-                        NotificationHelper.createNotification(this, ACTIVITY_ERROR_IN_NUMBERS,
+                        NotificationHelper.createNotification(ctxt, ACTIVITY_ERROR_IN_NUMBERS,
                             null, new SimpleDateFormat("HH:mm:ss", Locale.US).format(new Date())
                                 +" Expected enter transition, found "+toActivityString(event.getActivityType())
                                 +" "+toTransitionType(event.getTransitionType()));
@@ -143,48 +152,21 @@ public class OPGeofenceExitActivityIntentService extends IntentService {
 		}
 	}
 
-    private void handleNonWalkingTransition() {
-        Log.i(this, TAG, "Found non-walking transition in custom geofence, sending exited_geofence message");
-        cancelPendingDelayedCheck();
-        sendBroadcast(new ExplicitIntent(this, R.string.transition_exited_geofence));
-    }
-
-    private void handleWalkingTransition() {
-        Log.i(this, TAG, "Found walking transition in custom geofence, starting to read location");
-        LocationGeofenceStatus isOutsideStatus =
-            OPGeofenceExitActivityIntentService.isOutsideGeofence(this, LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY);
-        if (isOutsideStatus != LocationGeofenceStatus.UNKNOWN) {
-            handleKnownResult(isOutsideStatus);
-        } else {
-            Log.i(this, TAG, "handle walking transition: unknown status with balanced accuracy, retrying with high accuracy");
-            LocationGeofenceStatus highAccuracyOutsideStatus = OPGeofenceExitActivityIntentService.isOutsideGeofence(this,
-                LocationRequest.PRIORITY_HIGH_ACCURACY);
-            if (highAccuracyOutsideStatus == LocationGeofenceStatus.UNKNOWN) {
-                handleUnknownResult();
-            } else {
-                handleKnownResult(highAccuracyOutsideStatus);
-            }
-        }
+    private static void handleNonWalkingTransition(Context ctxt) {
+        TrackerLog.i(ctxt, TAG, "Found non-walking transition in custom geofence, sending exited_geofence message");
+        cancelPendingDelayedCheck(ctxt);
+        ctxt.sendBroadcast(new ExplicitIntent(ctxt, R.string.transition_exited_geofence));
     }
 
-    private void handleKnownResult(LocationGeofenceStatus outsideStatus) {
-        if (outsideStatus == LocationGeofenceStatus.INSIDE) {
-            Log.i(this, TAG, "handle walking transition: stayed inside geofence, not an exit, ignoring");
-            scheduleDelayedCheck();
-            return;
-        }
-        if (outsideStatus == LocationGeofenceStatus.OUTSIDE) {
-            Log.i(this, TAG, "handle walking transition: exited geofence, sending broadcast");
-            sendBroadcast(new ExplicitIntent(this, R.string.transition_exited_geofence));
-            return;
-        }
-    }
-
-    private void handleUnknownResult() {
-        scheduleDelayedCheck();
-        NotificationHelper.createNotification(this, ACTIVITY_ERROR_IN_NUMBERS,
-            null, new SimpleDateFormat("HH:mm:ss", Locale.US).format(new Date())
-                +" walking transition but status is unknown, skipping ");
+    /*
+     * Checking whether we have left the geofence waits for up to two location reads of up to two
+     * minutes each, so it must not run on the pipeline thread, which handles all the other
+     * events. The check runs right away on the TrackerExecutor, and the worker runs the delayed
+     * re-checks.
+     */
+    private static void handleWalkingTransition(Context ctxt) {
+        TrackerLog.i(ctxt, TAG, "Found walking transition in custom geofence, checking location in background");
+        OPGeofenceWalkExitWorker.checkWalkGeofenceExitNow(ctxt);
     }
 
     public static LocationGeofenceStatus isOutsideGeofence(Context ctxt, int priority) {
@@ -212,12 +194,12 @@ public class OPGeofenceExitActivityIntentService extends IntentService {
                         initialReadCancelToken.getToken()),
                     2, TimeUnit.MINUTES);
             if (currLoc == null) {
-                Log.d(ctxt, TAG, "isOutsideGeofence: currLocation = null,"
+                TrackerLog.d(ctxt, TAG, () -> "isOutsideGeofence: currLocation = null,"
                     +"returning UNKNOWN");
                 return LocationGeofenceStatus.UNKNOWN;
             }
             JSONObject currGeofenceLoc = UserCacheFactory.getUserCache(ctxt).getLocalStorage(GeofenceActions.GEOFENCE_LOC_KEY, false);
-            Log.d(ctxt, TAG, "isOutsideGeofence: currLocation = "+currLoc
+            TrackerLog.d(ctxt, TAG, () -> "isOutsideGeofence: currLocation = "+currLoc
                 +"checking with stored loc "+currGeofenceLoc);
             if (currGeofenceLoc == null) {
                 throw new JSONException("Unable to retrieve local storage at key "+
@@ -226,15 +208,15 @@ public class OPGeofenceExitActivityIntentService extends IntentService {
             float distanceToCurrGeofence = SimpleLocation.distanceTo(currLoc,
                 currGeofenceLoc);
             if (distanceToCurrGeofence > 100) {
-                Log.d(ctxt, TAG, "isOutsideGeofence: distanceToCurrGeofence = "
+                TrackerLog.d(ctxt, TAG, () -> "isOutsideGeofence: distanceToCurrGeofence = "
                 +distanceToCurrGeofence+" returning OUTSIDE");
                 // Add the exit location to the tracking database, just like we do
                 // for the geofence exit intent service
                 UserCacheFactory.getUserCache(ctxt).putSensorData(R.string.key_usercache_location,
-                    new SimpleLocation(currLoc));
+                    new SimpleLocation(currLoc, !ConfigManager.getConfig(ctxt).isSkipFmtTime()));
                 return LocationGeofenceStatus.OUTSIDE;
             } else {
-                Log.d(ctxt, TAG, "isOutsideGeofence: distanceToCurrGeofence = "
+                TrackerLog.d(ctxt, TAG, () -> "isOutsideGeofence: distanceToCurrGeofence = "
                     +distanceToCurrGeofence+" returning INSIDE");
                 // TODO: Also figure out whether we should store the location
                 // even when we are inside.
@@ -259,40 +241,21 @@ public class OPGeofenceExitActivityIntentService extends IntentService {
         }
     }
 
-    private void scheduleDelayedCheck() {
-        Log.i(this, TAG, "scheduleDelayedCheck, creating work request");
-        OPGeofenceWalkExitWorker.scheduleCheckWalkGeofenceExit(this);
-        /*
-        Log.i(this, TAG, "scheduleDelayedCheck, creating location looper");
-        try {
-            JSONObject currGeofenceLoc = uc.getLocalStorage(
-                GeofenceActions.GEOFENCE_LOC_KEY, false);
-            walkExitCallback = new WalkExitGeofenceLocationCallback(currGeofenceLoc);
-            LocationServices.getFusedLocationProviderClient(this).requestLocationUpdates(
-                getMediumAccuracyOneMinuteRequest(),
-                walkExitCallback,
-                Looper.getMainLooper());
-        } catch (JSONException e) {
-            Log.exception(this, TAG, e);
-        }
-        */
-    }
-
-    private void cancelPendingDelayedCheck() {
-        Log.i(this, TAG, "cancelPendingDelayedCheck, cancelling workers");
-        OPGeofenceWalkExitWorker.cancelCheckWalkGeofenceExit(this);
+    private static void cancelPendingDelayedCheck(Context ctxt) {
+        TrackerLog.i(ctxt, TAG, "cancelPendingDelayedCheck, cancelling workers");
+        OPGeofenceWalkExitWorker.cancelCheckWalkGeofenceExit(ctxt);
 
         /*
-        Log.i(this, TAG, "cancelPendingDelayedCheck, cancelling callback "+walkExitCallback);
+        Log.i(ctxt, TAG, "cancelPendingDelayedCheck, cancelling callback "+walkExitCallback);
         if (walkExitCallback != null) {
             try {
-                Tasks.await(LocationServices.getFusedLocationProviderClient(this).removeLocationUpdates(walkExitCallback));
-                Log.i(this, TAG, "cancelPendingDelayedCheck, finished cancelling, setting callback to null ");
+                Tasks.await(LocationServices.getFusedLocationProviderClient(ctxt).removeLocationUpdates(walkExitCallback));
+                Log.i(ctxt, TAG, "cancelPendingDelayedCheck, finished cancelling, setting callback to null ");
                 walkExitCallback = null;
             } catch (ExecutionException e) {
-                Log.exception(this, TAG, e);
+                Log.exception(ctxt, TAG, e);
             } catch (InterruptedException e) {
-                Log.exception(this, TAG, e);
+                Log.exception(ctxt, TAG, e);
             }
         }
         */
@@ -337,7 +300,7 @@ public class OPGeofenceExitActivityIntentService extends IntentService {
         @Override
         public void onLocationResult(LocationResult locationResult) {
             if (locationResult == null) {
-                Log.d(OPGeofenceExitActivityIntentService.this, TAG, "onLocationResult: currLocation = null "
+                TrackerLog.d(OPGeofenceExitActivityIntentService.this, TAG, () -> "onLocationResult: currLocation = null "
                 +"returning UNKNOWN");
                 return;
             }
@@ -346,23 +309,24 @@ public class OPGeofenceExitActivityIntentService extends IntentService {
                     float distanceToCurrGeofence = SimpleLocation.distanceTo(
                         currLoc,
                         currGeofenceLoc);
-                    Log.d(OPGeofenceExitActivityIntentService.this, TAG,
-                        "onLocationResult: currLocation = "+currLoc
+                    TrackerLog.d(OPGeofenceExitActivityIntentService.this, TAG,
+                        () -> "onLocationResult: currLocation = "+currLoc
                         +"checking with stored loc "+currGeofenceLoc);
                     if (distanceToCurrGeofence > 100) {
-                        Log.d(OPGeofenceExitActivityIntentService.this, TAG,
-                            "onLocationResult: distanceToCurrGeofence = "
+                        TrackerLog.d(OPGeofenceExitActivityIntentService.this, TAG,
+                            () -> "onLocationResult: distanceToCurrGeofence = "
                             +distanceToCurrGeofence+" sending geofence_exit message");
                         OPGeofenceExitActivityIntentService.this.uc.putSensorData(
                             R.string.key_usercache_location,
-                            new SimpleLocation(currLoc));
+                            new SimpleLocation(currLoc, !ConfigManager.getConfig(
+                                OPGeofenceExitActivityIntentService.this).isSkipFmtTime()));
                         OPGeofenceExitActivityIntentService.this.sendBroadcast(
                             new ExplicitIntent(OPGeofenceExitActivityIntentService.this,
                             R.string.transition_exited_geofence));
                         return;
                     } else {
-                        Log.d(OPGeofenceExitActivityIntentService.this,
-                            TAG, "onLocationResult: distanceToCurrGeofence = "
+                        TrackerLog.d(OPGeofenceExitActivityIntentService.this,
+                            TAG, () -> "onLocationResult: distanceToCurrGeofence = "
                             +distanceToCurrGeofence+" skipping exit");
                         return;
                     }
@@ -14,6 +14,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ExecutionException;
 import java.lang.InterruptedException;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONObject;
 import org.json.JSONArray;
@@ -37,6 +38,7 @@ import com.google.android.gms.tasks.CancellationTokenSource;
 import edu.berkeley.eecs.emission.cordova.tracker.ConfigManager;
 import edu.berkeley.eecs.emission.cordova.tracker.Constants;
 import edu.berkeley.eecs.emission.cordova.tracker.ExplicitIntent;
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerExecutor;
 import edu.berkeley.eecs.emission.cordova.tracker.wrapper.MotionActivity;
 import edu.berkeley.eecs.emission.cordova.tracker.wrapper.SimpleLocation;
 import edu.berkeley.eecs.emission.cordova.tracker.location.actions.GeofenceActions;
@@ -49,7 +51,7 @@ import android.content.Intent;
 import android.location.Location;
 import android.content.Context;
 
-import edu.berkeley.eecs.emission.cordova.unifiedlogger.Log;
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerLog;
 import edu.berkeley.eecs.emission.cordova.usercache.UserCache;
 import edu.berkeley.eecs.emission.cordova.usercache.UserCacheFactory;
 
@@ -75,52 +77,100 @@ public class OPGeofenceWalkExitWorker extends Worker {
     }
 
 	private static final String TAG = "OPGeofenceWalkExitWorker";
+    // Incremented every time the checks are cancelled
+    private static final AtomicInteger sCheckGeneration = new AtomicInteger(0);
 
     @Override
     public Result doWork() {
-        Log.i(ctxt, TAG, "Initiating delayed read for walking transition");
+        TrackerLog.i(ctxt, TAG, "Initiating delayed read for walking transition");
+        if (checkWalkGeofenceExit(ctxt, sCheckGeneration.get())) {
+            return Result.success();
+        } else {
+            // Indicate whether the work finished successfully with the Result
+            return Result.failure();
+        }
+    }
+
+    /*
+     * Returns false if we could not read the location, in which case we check again in a minute.
+     * The generation is the one when the check started; if the checks have been cancelled since
+     * (e.g. by a still transition), we don't schedule the next one.
+     */
+    private static boolean checkWalkGeofenceExit(Context ctxt, int generation) {
         OPGeofenceExitActivityIntentService.LocationGeofenceStatus isOutsideStatus =
             OPGeofenceExitActivityIntentService.isOutsideGeofence(
                 ctxt, LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY);
         if (isOutsideStatus != OPGeofenceExitActivityIntentService.LocationGeofenceStatus.UNKNOWN) {
-            return handleKnownResult(isOutsideStatus);
+            return handleKnownResult(ctxt, isOutsideStatus, generation);
         } else {
-            Log.i(ctxt, TAG, "handle walking transition: unknown status with balanced accuracy, retrying with high accuracy");
+            TrackerLog.i(ctxt, TAG, "handle walking transition: unknown status with balanced accuracy, retrying with high accuracy");
             OPGeofenceExitActivityIntentService.LocationGeofenceStatus highAccuracyOutsideStatus = OPGeofenceExitActivityIntentService.isOutsideGeofence(ctxt,
                 LocationRequest.PRIORITY_HIGH_ACCURACY);
             if (highAccuracyOutsideStatus == OPGeofenceExitActivityIntentService.LocationGeofenceStatus.UNKNOWN) {
-                return handleUnknownResult();
+                return handleUnknownResult(ctxt, generation);
             } else {
-                return handleKnownResult(highAccuracyOutsideStatus);
+                return handleKnownResult(ctxt, highAccuracyOutsideStatus, generation);
             }
         }
     }
 
-    private Result handleKnownResult(OPGeofenceExitActivityIntentService.LocationGeofenceStatus outsideStatus) {
+    private static boolean handleKnownResult(Context ctxt,
+            OPGeofenceExitActivityIntentService.LocationGeofenceStatus outsideStatus, int generation) {
         if (outsideStatus == OPGeofenceExitActivityIntentService.LocationGeofenceStatus.INSIDE) {
-            Log.i(ctxt, TAG, "is outside check: stayed inside geofence, not an exit, ignoring");
-            scheduleCheckWalkGeofenceExit(ctxt);
+            TrackerLog.i(ctxt, TAG, "is outside check: stayed inside geofence, not an exit, ignoring");
+            rescheduleIfNotCancelled(ctxt, generation);
         }
         if (outsideStatus == OPGeofenceExitActivityIntentService.LocationGeofenceStatus.OUTSIDE) {
-            Log.i(ctxt, TAG, "is outside check: exited geofence, sending broadcast");
+            TrackerLog.i(ctxt, TAG, "is outside check: exited geofence, sending broadcast");
             ctxt.sendBroadcast(new ExplicitIntent(ctxt, R.string.transition_exited_geofence));
         }
-        return Result.success();
+        return true;
     }
 
-    private Result handleUnknownResult() {
-        scheduleCheckWalkGeofenceExit(ctxt);
+    private static boolean handleUnknownResult(Context ctxt, int generation) {
+        rescheduleIfNotCancelled(ctxt, generation);
         NotificationHelper.createNotification(ctxt, ACTIVITY_ERROR_IN_NUMBERS,
             null, new SimpleDateFormat("HH:mm:ss", Locale.US).format(new Date())
             +" walking transition but status is unknown, skipping ");
-        // Indicate whether the work finished successfully with the Result
-        return Result.failure();
+        return false;
+    }
+
+    private static void rescheduleIfNotCancelled(Context ctxt, int generation) {
+        if (generation != sCheckGeneration.get()) {
+            TrackerLog.i(ctxt, TAG, "checks were cancelled while we were reading the location, not rescheduling");
+            return;
+        }
+        scheduleCheckWalkGeofenceExit(ctxt);
     }
 
     public static void scheduleCheckWalkGeofenceExit(Context ctxt) {
+        enqueueCheck(ctxt, 1);
+    }
+
+    /*
+     * For the initial check on a walking transition, which used to block the thread that
+     * handles the transitions.
+     *
+     * This runs on the TrackerExecutor, not through WorkManager, since WorkManager can postpone
+     * even work without a delay until the next maintenance window under doze or app standby,
+     * which would delay the start of the trip. The check is not persisted, so if the process is
+     * killed while we are reading the location, it is lost, but so is the transition, and the
+     * next walking transition checks again. The re-checks a minute later stay on WorkManager,
+     * since they need to survive the process, and they are already best effort. A burst of walking
+     * transitions only queues one check, with the generation of the newest transition.
+     */
+    public static void checkWalkGeofenceExitNow(final Context ctxt) {
+        final int generation = sCheckGeneration.get();
+        TrackerExecutor.getInstance(ctxt).executeLatest("walk_geofence_exit_check", () -> {
+            TrackerLog.i(ctxt, TAG, "Initiating immediate read for walking transition");
+            checkWalkGeofenceExit(ctxt, generation);
+        });
+    }
+
+    private static void enqueueCheck(Context ctxt, long delayMins) {
         WorkRequest walkExitGeofenceRequest =
             new OneTimeWorkRequest.Builder(OPGeofenceWalkExitWorker.class)
-                .setInitialDelay(1, TimeUnit.MINUTES)
+                .setInitialDelay(delayMins, TimeUnit.MINUTES)
                 .addTag(getAppSpecificWorkTag(ctxt))
                 .build();
 
@@ -138,6 +188,8 @@ public class OPGeofenceWalkExitWorker extends Worker {
     }
 
     public static void cancelCheckWalkGeofenceExit(Context ctxt) {
+        // A check that is already reading the location can't be cancelled, but it won't reschedule
+        sCheckGeneration.incrementAndGet();
         WorkManager.getInstance(ctxt).cancelAllWorkByTag(getAppSpecificWorkTag(ctxt));
     }
 
@@ -149,7 +201,7 @@ public class OPGeofenceWalkExitWorker extends Worker {
             pkgName = pkgName.substring(0, 80);
         }
         String retVal = pkgName+"_"+"DELAYED_WALK_EXIT_CHECK";
-        Log.d(ctxt, TAG, "Returning app-specific work tag "+retVal);
+        TrackerLog.d(ctxt, TAG, () -> "Returning app-specific work tag "+retVal);
         return retVal;
     }
 
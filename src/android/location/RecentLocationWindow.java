@@ -0,0 +1,232 @@
+package edu.berkeley.eecs.emission.cordova.tracker.location;
+
+import android.content.Context;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import edu.berkeley.eecs.emission.R;
+
+import edu.berkeley.eecs.emission.cordova.tracker.wrapper.SimpleLocation;
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerLog;
+import edu.berkeley.eecs.emission.cordova.usercache.UserCache;
+import edu.berkeley.eecs.emission.cordova.usercache.UserCacheFactory;
+
+/**
+ * Process-wide, time ordered window of the most recent filtered locations.
+ *
+ * Every location update used to read the last n filtered points and the filtered points from
+ * the last tripEndSecs back from the usercache, deserializing every row with gson. But we are the
+ * only writer of filtered_location, so we can just remember what we wrote. The window is fed from
+ * the same code path that writes filtered_location, rebuilt from the usercache once after a cold
+ * start, and answers both the "last n" and the "last tripEndSecs" questions from memory.
+ *
+ * Entries are kept oldest first, and the query results are returned newest first, to match the
+ * order returned by the usercache.
+ *
+ * The window gets every valid point, including the ones that are not saved as they are: points
+ * suppressed as stationary jitter (DwellPointIndex) are never saved, and points held back by the
+ * TrajectorySimplifier are saved later, or dropped. A window that is rebuilt from the usercache
+ * after a restart does not have those points, so until the points from before the restart have
+ * aged out (tripEndSecs + RETENTION_FUZZ_SECS), it can decide the trip end differently from the
+ * window of a process that kept running. The simplifier never drops points near a stop, so in
+ * practice this is jitter suppression thinning out the stop, which delays the trip end after a
+ * restart. We keep the suppressed points in the window since the trip end check needs them: with
+ * only the saved points, a stop has about one point a minute. tools/replay measures the
+ * difference, see --jitter-suppression and --cold in its README.
+ */
+public class RecentLocationWindow {
+    private static final String TAG = "RecentLocationWindow";
+    // We query for the points in [now - tripEndSecs - 10, now], so let's keep a bit more than that
+    // around in case the wakeups are delayed
+    private static final int RETENTION_FUZZ_SECS = 60;
+    // Safety valve in case other apps drive the fused provider at a very high frequency
+    private static final int MAX_ENTRIES = 2000;
+
+    private static RecentLocationWindow sInstance = null;
+
+    private final ArrayDeque<Entry> mEntries = new ArrayDeque<Entry>();
+    // mirrors mEntries, so that we can check for the end of the trip incrementally
+    private final StationaryDetector mDetector = new StationaryDetector();
+    private boolean mLoaded = false;
+    private int mRetainPoints = 0;
+    private int mRetainSecs = 0;
+    // scratch space for the accuracies, to compute the trip end radius without allocating
+    private float[] mAccuracies = new float[16];
+
+    /*
+     * The write_ts is not part of the SimpleLocation, so we track it separately.
+     * The interval query is on the write_ts, not on the location ts.
+     */
+    static class Entry {
+        final SimpleLocation loc;
+        final double writeTs;
+
+        Entry(SimpleLocation loc, double writeTs) {
+            this.loc = loc;
+            this.writeTs = writeTs;
+        }
+    }
+
+    private RecentLocationWindow() {}
+
+    // For tools/bench, which has no usercache to load the window from
+    RecentLocationWindow(int retainPoints, int retainSecs) {
+        this.mRetainPoints = retainPoints;
+        this.mRetainSecs = retainSecs;
+        this.mLoaded = true;
+    }
+
+    public static synchronized RecentLocationWindow getInstance() {
+        if (sInstance == null) {
+            sInstance = new RecentLocationWindow();
+        }
+        return sInstance;
+    }
+
+    /*
+     * Rebuilds the window from the usercache the first time it is used in this process, or if the
+     * config has changed so that we need to retain more points than we currently have.
+     */
+    public synchronized void ensureLoaded(Context ctxt, int nPoints, int tripEndSecs) {
+        if (mLoaded && nPoints <= mRetainPoints && tripEndSecs <= mRetainSecs) {
+            return;
+        }
+        mRetainPoints = nPoints;
+        mRetainSecs = tripEndSecs;
+
+        UserCache uc = UserCacheFactory.getUserCache(ctxt);
+        double nowSecs = ((double)System.currentTimeMillis())/1000;
+        double startTs = nowSecs - tripEndSecs - RETENTION_FUZZ_SECS;
+        SimpleLocation[] lastPoints = uc.getLastSensorData(R.string.key_usercache_filtered_location,
+                nPoints, SimpleLocation.class);
+        UserCache.TimeQuery tq = new UserCache.TimeQuery(ctxt.getString(R.string.metadata_usercache_write_ts),
+                startTs, nowSecs);
+        SimpleLocation[] intervalPoints = uc.getSensorDataForInterval(R.string.key_usercache_filtered_location,
+                tq, SimpleLocation.class);
+
+        // Both results are suffixes of the same write_ts ordered sequence, so the longer one
+        // includes the shorter one
+        SimpleLocation[] newestFirst = lastPoints.length > intervalPoints.length ? lastPoints : intervalPoints;
+        mEntries.clear();
+        mDetector.clear();
+        for (int i = newestFirst.length - 1; i >= 0; i--) {
+            SimpleLocation currLoc = newestFirst[i];
+            // We don't get the write_ts back from the usercache. The location ts is a lower bound,
+            // and everything returned by the interval query was written after startTs
+            double estWriteTs = currLoc.getTs();
+            if (i < intervalPoints.length && estWriteTs < startTs) {
+                estWriteTs = startTs;
+            }
+            mEntries.addLast(new Entry(currLoc, estWriteTs));
+            mDetector.push(currLoc.getLatitude(), currLoc.getLongitude(), currLoc.getTs(), estWriteTs);
+        }
+        mLoaded = true;
+        TrackerLog.d(ctxt, TAG, () -> "Rebuilt window from usercache with "+mEntries.size()+" entries"
+                +" (last n = "+lastPoints.length+", interval = "+intervalPoints.length+")");
+    }
+
+    public synchronized void add(SimpleLocation loc, double writeTs) {
+        mEntries.addLast(new Entry(loc, writeTs));
+        mDetector.push(loc.getLatitude(), loc.getLongitude(), loc.getTs(), writeTs);
+        double cutoffTs = writeTs - mRetainSecs - RETENTION_FUZZ_SECS;
+        while (mEntries.size() > MAX_ENTRIES ||
+                (mEntries.size() > mRetainPoints && mEntries.peekFirst().writeTs < cutoffTs)) {
+            mEntries.removeFirst();
+            mDetector.evictOldest();
+        }
+    }
+
+    /*
+     * Whether the last nPoints points, and the points written in
+     * [nowSecs - tripEndSecs - 10, nowSecs], are all after the last transition and within the
+     * radius of the newest point. See StationaryDetector.
+     */
+    public synchronized boolean isTripEnded(double nowSecs, double lastTransitionTs,
+                                            int nPoints, int tripEndSecs, int radius) {
+        return mDetector.isTripEnded(nowSecs, lastTransitionTs, nPoints, tripEndSecs, radius);
+    }
+
+    /*
+     * True if at least minPoints points were written since sinceWriteTs, and all of them are
+     * within the radius of the newest point, with the same distances as the trip end check.
+     */
+    public synchronized boolean isStationarySince(double sinceWriteTs, int minPoints, int radius) {
+        if (mEntries.isEmpty() || mEntries.peekLast().writeTs < sinceWriteTs) {
+            return false;
+        }
+        Iterator<Entry> it = mEntries.descendingIterator();
+        SimpleLocation newest = it.next().loc;
+        int nPoints = 1;
+        while (it.hasNext()) {
+            Entry currEntry = it.next();
+            if (currEntry.writeTs < sinceWriteTs) {
+                break;
+            }
+            if (newest.distanceTo(currEntry.loc) >= radius) {
+                return false;
+            }
+            nPoints++;
+        }
+        return nPoints >= minPoints;
+    }
+
+    /*
+     * The radius for the trip end check, based on the accuracies of the last nPoints points, and
+     * the points written in [nowSecs - TripEndRadius.STILL_SECS, nowSecs]. See TripEndRadius.
+     */
+    public synchronized int getTripEndRadius(int baseRadius, int fixedRadius, int nPoints,
+                                             double nowSecs) {
+        if (baseRadius <= 0 || mEntries.isEmpty()) {
+            return fixedRadius;
+        }
+        int nAccuracies = Math.min(nPoints, mEntries.size());
+        if (mAccuracies.length < nAccuracies) {
+            mAccuracies = new float[nAccuracies];
+        }
+        Iterator<Entry> it = mEntries.descendingIterator();
+        for (int i = 0; i < nAccuracies; i++) {
+            mAccuracies[i] = it.next().loc.getAccuracy();
+        }
+
+        double stillSinceTs = nowSecs - TripEndRadius.STILL_SECS;
+        double stillSpread = 0;
+        int nStillPoints = 0;
+        it = mEntries.descendingIterator();
+        Entry newest = it.next();
+        if (newest.writeTs >= stillSinceTs && newest.writeTs <= nowSecs) {
+            nStillPoints = 1;
+            while (it.hasNext()) {
+                Entry currEntry = it.next();
+                if (currEntry.writeTs < stillSinceTs) {
+                    break;
+                }
+                stillSpread = Math.max(stillSpread, newest.loc.distanceTo(currEntry.loc));
+                nStillPoints++;
+            }
+        }
+        return TripEndRadius.compute(baseRadius, fixedRadius, mAccuracies, nAccuracies,
+                stillSpread, nStillPoints);
+    }
+
+    /*
+     * The oldest of the last nPoints points, i.e. the last entry of
+     * uc.getLastSensorData(key_usercache_filtered_location, nPoints), or null if the window is
+     * empty. The window keeps a few more points than nPoints, so we walk from the oldest end.
+     */
+    public synchronized SimpleLocation getOldestOfLastPoints(int nPoints) {
+        if (mEntries.isEmpty() || nPoints <= 0) {
+            return null;
+        }
+        int toSkip = mEntries.size() - Math.min(nPoints, mEntries.size());
+        Iterator<Entry> it = mEntries.iterator();
+        for (int i = 0; i < toSkip; i++) {
+            it.next();
+        }
+        return it.next().loc;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+}
@@ -0,0 +1,84 @@
+package edu.berkeley.eecs.emission.cordova.tracker.location;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.berkeley.eecs.emission.cordova.unifiedlogger.Log;
+import edu.berkeley.eecs.emission.cordova.usercache.BuiltinUserCache;
+import edu.berkeley.eecs.emission.cordova.usercache.UserCache;
+import edu.berkeley.eecs.emission.cordova.usercache.UserCacheFactory;
+
+/**
+ * Collects the sensor data entries generated while handling a single wakeup (e.g. the raw and
+ * filtered points from one LocationResult) and writes them in a single transaction.
+ *
+ * The fused location provider can deliver bursts of locations, and writing every one of them in
+ * its own transaction means a separate journal sync for every point. The entries are still written
+ * one by one through the usercache, in the order in which they were added, so every entry gets its
+ * own, increasing, write_ts.
+ *
+ * If the batch fails for any reason, the transaction is rolled back and we fall back to writing
+ * the entries one at a time, which is what we used to do. If that happens, we don't try to batch
+ * again for the lifetime of the process.
+ */
+public class SensorDataBatch {
+    private static final String TAG = "SensorDataBatch";
+    private static volatile boolean sBatchingBroken = false;
+
+    private final List<Integer> mKeys = new ArrayList<Integer>();
+    private final List<Object> mValues = new ArrayList<Object>();
+
+    public void add(int keyRes, Object value) {
+        mKeys.add(keyRes);
+        mValues.add(value);
+    }
+
+    public int size() {
+        return mKeys.size();
+    }
+
+    public void write(Context ctxt) {
+        if (mKeys.isEmpty()) {
+            return;
+        }
+        UserCache uc = UserCacheFactory.getUserCache(ctxt);
+        if (!sBatchingBroken && mKeys.size() > 1 && uc instanceof BuiltinUserCache) {
+            try {
+                writeInTransaction((BuiltinUserCache) uc);
+                clear();
+                return;
+            } catch (RuntimeException e) {
+                Log.e(ctxt, TAG, "Batch write of "+mKeys.size()+" entries failed with "+e
+                        +", falling back to writing them one at a time");
+                sBatchingBroken = true;
+            }
+        }
+        writeOneByOne(uc);
+        clear();
+    }
+
+    private void writeInTransaction(BuiltinUserCache uc) {
+        SQLiteDatabase db = uc.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            writeOneByOne(uc);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void writeOneByOne(UserCache uc) {
+        for (int i = 0; i < mKeys.size(); i++) {
+            uc.putSensorData(mKeys.get(i), mValues.get(i));
+        }
+    }
+
+    private void clear() {
+        mKeys.clear();
+        mValues.clear();
+    }
+}
@@ -0,0 +1,370 @@
+package edu.berkeley.eecs.emission.cordova.tracker.location;
+
+import edu.berkeley.eecs.emission.cordova.tracker.wrapper.GeoDistance;
+
+/**
+ * Streaming version of the trip end check that LocationChangeIntentService used to run on every
+ * update.
+ *
+ * That check took the last n filtered points and the filtered points written in the last
+ * tripEndSecs, and checked that all of them are within TRIP_END_RADIUS of the most recent point.
+ * It rebuilt both distance arrays from scratch on every update.
+ * tools/parity/StationaryDetectorParity has a copy of it, and checks that we make the same
+ * decisions, including the float rounding of the distances. Here, we take one point at a time and
+ * keep:
+ * - the points themselves, in a ring buffer of primitives, mirroring the RecentLocationWindow
+ * - the distance of every point from an anchor point
+ * - a monotonic deque with the running max of those anchor distances over the window
+ *
+ * By the triangle inequality, if the newest point + the max radius around the anchor is within
+ * the trip end radius, every point is within it, and if the max radius is further out than the
+ * newest point + the trip end radius, some point is outside it. The window span and sizes come
+ * from binary searches over the (sorted) timestamps.
+ *
+ * The costs, for a window of n points:
+ * - push and evictOldest are amortized O(1) (the deque and the ring buffer only grow by doubling)
+ * - isTripEnded is O(log n) when one of the bounds decides it, or when the point that the last
+ *   scan found outside the radius (the witness) is still outside it
+ * - otherwise (e.g. while we are slowing down for a stop, or hovering around the radius), we scan
+ *   the window from the newest point. If we find a point outside the radius, it becomes the
+ *   witness, and the scan only cost the points up to it. If all the points are within the radius,
+ *   we rebase the anchor to the newest point and rebuild the anchor distances, which is O(n).
+ *   After a rebase, the bounds decide again until the points have moved about the radius away
+ *   from the new anchor. So the full scans are rare while we are clearly moving or clearly
+ *   stopped, but a trace that hovers around the radius can scan on every check, like the
+ *   reference does
+ * - while a point with out of order timestamps (or written after the check) is in the window, we
+ *   can't binary search, and every check is an O(n) scan
+ *
+ * Not thread-safe, the RecentLocationWindow synchronizes access.
+ */
+class StationaryDetector {
+    private static final int INITIAL_CAPACITY = 64;
+    // GeoDistance.fast is only approximately a metric, so we leave some slack in the bounds.
+    // Over the distances for which we use the bounds, the error is under a mm.
+    private static final double BOUND_EPSILON = 0.01; // meters
+    private static final double MAX_BOUND_DISTANCE = 1000; // meters
+    // the reference check needs at least these many of the last n points to decide
+    private static final int MIN_LAST_N_POINTS = 10;
+
+    private double[] mLat = new double[INITIAL_CAPACITY];
+    private double[] mLng = new double[INITIAL_CAPACITY];
+    private double[] mTs = new double[INITIAL_CAPACITY];
+    private double[] mWriteTs = new double[INITIAL_CAPACITY];
+    private double[] mAnchorDist = new double[INITIAL_CAPACITY];
+    // points are identified by a sequence number that increases with every push
+    private long mFirstSeq = 0;
+    private int mHead = 0;
+    private int mSize = 0;
+
+    private long mAnchorSeq = -1;
+    private double mAnchorLat;
+    private double mAnchorLng;
+
+    // seqs of the points with decreasing anchor distances, so the first one is the max
+    private long[] mMaxDeque = new long[INITIAL_CAPACITY];
+    private int mDequeHead = 0;
+    private int mDequeSize = 0;
+    // the deque can only answer for windows starting at or after this seq
+    private long mDequeFloor = 0;
+
+    // if the timestamps are out of order, we can't binary search. Remember the last point that
+    // was out of order, and use the exact scan until it has been evicted
+    private long mLastDisorderSeq = -1;
+    // a point that the last exact scan found outside the radius of the newest point. While we are
+    // moving, it usually stays outside the radius of the next newest points as well
+    private long mWitnessSeq = -1;
+
+    private long mBoundDecisions = 0;
+    private long mExactScans = 0;
+
+    void push(double lat, double lng, double ts, double writeTs) {
+        if (mSize == mLat.length) {
+            grow();
+        }
+        long seq = mFirstSeq + mSize;
+        int slot = slot(seq);
+        if (mSize > 0) {
+            int prevSlot = slot(seq - 1);
+            if (ts < mTs[prevSlot] || writeTs < mWriteTs[prevSlot]) {
+                mLastDisorderSeq = seq;
+            }
+        }
+        mLat[slot] = lat;
+        mLng[slot] = lng;
+        mTs[slot] = ts;
+        mWriteTs[slot] = writeTs;
+        if (mAnchorSeq < 0) {
+            mAnchorSeq = seq;
+            mAnchorLat = lat;
+            mAnchorLng = lng;
+        }
+        mAnchorDist[slot] = GeoDistance.fast(mAnchorLat, mAnchorLng, lat, lng);
+        mSize++;
+        pushMax(seq);
+    }
+
+    void evictOldest() {
+        if (mSize == 0) {
+            return;
+        }
+        if (mDequeSize > 0 && mMaxDeque[mDequeHead] == mFirstSeq) {
+            popMaxFront();
+        }
+        mHead = (mHead + 1) % mLat.length;
+        mFirstSeq++;
+        mSize--;
+        if (mDequeFloor < mFirstSeq) {
+            mDequeFloor = mFirstSeq;
+        }
+        // the anchor coordinates are still valid as a reference after the anchor is evicted,
+        // we only lose the exact check against the anchor point itself
+    }
+
+    void clear() {
+        mFirstSeq += mSize;
+        mHead = 0;
+        mSize = 0;
+        mAnchorSeq = -1;
+        mWitnessSeq = -1;
+        mDequeHead = 0;
+        mDequeSize = 0;
+        mDequeFloor = mFirstSeq;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    long getBoundDecisions() {
+        return mBoundDecisions;
+    }
+
+    long getExactScans() {
+        return mExactScans;
+    }
+
+    /*
+     * Same decision as the reference check on the last nPoints points and the points written in
+     * [nowSecs - tripEndSecs - 10, nowSecs], both after the last transition, for the points
+     * currently in the window.
+     */
+    boolean isTripEnded(double nowSecs, double lastTransitionTs, int nPoints, int tripEndSecs, int radius) {
+        if (mSize == 0) {
+            return false;
+        }
+        long newestSeq = mFirstSeq + mSize - 1;
+        if (mLastDisorderSeq > mFirstSeq || mWriteTs[slot(newestSeq)] > nowSecs) {
+            return isTripEndedExact(nowSecs, lastTransitionTs, nPoints, tripEndSecs, radius);
+        }
+
+        long afterTransitionSeq = firstSeqAfter(mTs, lastTransitionTs, false);
+        long lastNPoints = Math.min(nPoints, newestSeq - afterTransitionSeq + 1);
+        if (lastNPoints < MIN_LAST_N_POINTS) {
+            return false;
+        }
+        long inIntervalSeq = Math.max(afterTransitionSeq,
+                firstSeqAfter(mWriteTs, nowSecs - tripEndSecs - 10, true));
+        long intervalPoints = newestSeq - inIntervalSeq + 1;
+        // with a single point, there are no distances, so stoppedMoving is false
+        if (intervalPoints < 2) {
+            return false;
+        }
+        double intervalSpan = mTs[slot(newestSeq)] - mTs[slot(inIntervalSeq)];
+        if (!(intervalSpan > (tripEndSecs - 60))) {
+            return false;
+        }
+        long windowStartSeq = newestSeq - Math.max(lastNPoints, intervalPoints) + 1;
+        return allWithinRadius(windowStartSeq, newestSeq, radius);
+    }
+
+    private boolean allWithinRadius(long startSeq, long newestSeq, int radius) {
+        int newestSlot = slot(newestSeq);
+        double newestLat = mLat[newestSlot];
+        double newestLng = mLng[newestSlot];
+        if (mAnchorSeq >= startSeq && mAnchorSeq < newestSeq) {
+            // computed the same way as the exact scan, so this is exact
+            float anchorDistance = (float) GeoDistance.fast(newestLat, newestLng, mAnchorLat, mAnchorLng);
+            if (anchorDistance >= radius) {
+                mBoundDecisions++;
+                return false;
+            }
+        }
+        if (mWitnessSeq >= startSeq && mWitnessSeq < newestSeq) {
+            // same as for the anchor
+            int witnessSlot = slot(mWitnessSeq);
+            if ((float) GeoDistance.fast(newestLat, newestLng, mLat[witnessSlot], mLng[witnessSlot]) >= radius) {
+                mBoundDecisions++;
+                return false;
+            }
+        }
+        if (startSeq >= mDequeFloor) {
+            double maxAnchorDist = maxAnchorDistFrom(startSeq);
+            double newestAnchorDist = mAnchorDist[newestSlot];
+            if (newestAnchorDist + maxAnchorDist < radius - BOUND_EPSILON) {
+                mBoundDecisions++;
+                return true;
+            }
+            if (maxAnchorDist <= MAX_BOUND_DISTANCE &&
+                    maxAnchorDist - newestAnchorDist >= radius + BOUND_EPSILON) {
+                mBoundDecisions++;
+                return false;
+            }
+        }
+
+        mExactScans++;
+        for (long seq = newestSeq - 1; seq >= startSeq; seq--) {
+            int currSlot = slot(seq);
+            if ((float) GeoDistance.fast(newestLat, newestLng, mLat[currSlot], mLng[currSlot]) >= radius) {
+                // the scan usually stops after a few points, a rebase would cost more than that
+                mWitnessSeq = seq;
+                return false;
+            }
+        }
+        rebase(newestSeq);
+        return true;
+    }
+
+    /*
+     * Straightforward version of the reference check over the ring buffer, for when the
+     * timestamps are not sorted.
+     */
+    private boolean isTripEndedExact(double nowSecs, double lastTransitionTs, int nPoints,
+                                     int tripEndSecs, int radius) {
+        mExactScans++;
+        long newestSeq = mFirstSeq + mSize - 1;
+        long lastNStart = Math.max(mFirstSeq, newestSeq - nPoints + 1);
+
+        int lastNCount = 0;
+        int lastNNewest = -1;
+        float lastNMax = -1;
+        int intervalCount = 0;
+        int intervalNewest = -1;
+        int intervalOldest = -1;
+        float intervalMax = -1;
+        double intervalStart = nowSecs - tripEndSecs - 10;
+        for (long seq = newestSeq; seq >= mFirstSeq; seq--) {
+            int currSlot = slot(seq);
+            if (!(mTs[currSlot] > lastTransitionTs)) {
+                continue;
+            }
+            if (seq >= lastNStart) {
+                if (lastNNewest < 0) {
+                    lastNNewest = currSlot;
+                } else {
+                    lastNMax = Math.max(lastNMax, distance(lastNNewest, currSlot));
+                }
+                lastNCount++;
+            }
+            if (mWriteTs[currSlot] >= intervalStart && mWriteTs[currSlot] <= nowSecs) {
+                if (intervalNewest < 0) {
+                    intervalNewest = currSlot;
+                } else {
+                    intervalMax = Math.max(intervalMax, distance(intervalNewest, currSlot));
+                }
+                intervalOldest = currSlot;
+                intervalCount++;
+            }
+        }
+        if (lastNCount < MIN_LAST_N_POINTS || intervalCount == 0) {
+            return false;
+        }
+        double intervalSpan = mTs[intervalNewest] - mTs[intervalOldest];
+        return lastNMax >= 0 && lastNMax < radius &&
+                intervalSpan > (tripEndSecs - 60) &&
+                intervalMax >= 0 && intervalMax < radius;
+    }
+
+    private float distance(int fromSlot, int toSlot) {
+        return (float) GeoDistance.fast(mLat[fromSlot], mLng[fromSlot], mLat[toSlot], mLng[toSlot]);
+    }
+
+    /*
+     * First seq whose value is > threshold (or >= if inclusive), or one past the newest if
+     * there is none. Assumes that the values are sorted.
+     */
+    private long firstSeqAfter(double[] values, double threshold, boolean inclusive) {
+        long lo = mFirstSeq;
+        long hi = mFirstSeq + mSize;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            double value = values[slot(mid)];
+            if (inclusive ? value >= threshold : value > threshold) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    private void rebase(long anchorSeq) {
+        int anchorSlot = slot(anchorSeq);
+        mAnchorSeq = anchorSeq;
+        mAnchorLat = mLat[anchorSlot];
+        mAnchorLng = mLng[anchorSlot];
+        mDequeHead = 0;
+        mDequeSize = 0;
+        mDequeFloor = mFirstSeq;
+        for (long seq = mFirstSeq; seq < mFirstSeq + mSize; seq++) {
+            int currSlot = slot(seq);
+            mAnchorDist[currSlot] = GeoDistance.fast(mAnchorLat, mAnchorLng, mLat[currSlot], mLng[currSlot]);
+            pushMax(seq);
+        }
+    }
+
+    private double maxAnchorDistFrom(long startSeq) {
+        while (mDequeSize > 0 && mMaxDeque[mDequeHead] < startSeq) {
+            popMaxFront();
+        }
+        if (startSeq > mDequeFloor) {
+            mDequeFloor = startSeq;
+        }
+        // the newest point is never popped from the front, so the deque is not empty
+        return mAnchorDist[slot(mMaxDeque[mDequeHead])];
+    }
+
+    private void pushMax(long seq) {
+        double currDist = mAnchorDist[slot(seq)];
+        while (mDequeSize > 0 &&
+                mAnchorDist[slot(mMaxDeque[(mDequeHead + mDequeSize - 1) % mMaxDeque.length])] <= currDist) {
+            mDequeSize--;
+        }
+        mMaxDeque[(mDequeHead + mDequeSize) % mMaxDeque.length] = seq;
+        mDequeSize++;
+    }
+
+    private void popMaxFront() {
+        mDequeHead = (mDequeHead + 1) % mMaxDeque.length;
+        mDequeSize--;
+    }
+
+    private int slot(long seq) {
+        return (int) ((mHead + (seq - mFirstSeq)) % mLat.length);
+    }
+
+    private void grow() {
+        int oldCapacity = mLat.length;
+        int newCapacity = oldCapacity * 2;
+        mLat = regrow(mLat, newCapacity);
+        mLng = regrow(mLng, newCapacity);
+        mTs = regrow(mTs, newCapacity);
+        mWriteTs = regrow(mWriteTs, newCapacity);
+        mAnchorDist = regrow(mAnchorDist, newCapacity);
+        long[] newDeque = new long[newCapacity];
+        for (int i = 0; i < mDequeSize; i++) {
+            newDeque[i] = mMaxDeque[(mDequeHead + i) % oldCapacity];
+        }
+        mMaxDeque = newDeque;
+        mDequeHead = 0;
+        mHead = 0;
+    }
+
+    private double[] regrow(double[] orig, int newCapacity) {
+        double[] newArray = new double[newCapacity];
+        for (int i = 0; i < mSize; i++) {
+            newArray[i] = orig[(mHead + i) % orig.length];
+        }
+        return newArray;
+    }
+}
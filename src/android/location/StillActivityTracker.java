@@ -0,0 +1,57 @@
+package edu.berkeley.eecs.emission.cordova.tracker.location;
+
+import com.google.android.gms.location.DetectedActivity;
+
+/**
+ * Tracks how long activity recognition has been reporting STILL, for the early trip end.
+ *
+ * The location based check needs trip_end_stationary_mins of points within the trip end radius,
+ * so we keep GPS on for that long after we have parked. If the early trip end is turned on, and
+ * activity recognition has reported STILL with high confidence for long enough, we end the trip
+ * as soon as the filtered points since then agree (see LocationChangeIntentService).
+ *
+ * Any other activity (including a low confidence STILL) breaks the run, so a stop at a traffic
+ * light that is interrupted by IN_VEHICLE starts over.
+ */
+public class StillActivityTracker {
+    // We used to only save the activities above 90% confidence, see
+    // ActivityRecognitionChangeIntentService
+    private static final int MIN_CONFIDENCE = 90;
+
+    private static StillActivityTracker sInstance = null;
+
+    // The time at which the current run of STILL started, or -1 if we are not still
+    private double mStillSinceTs = -1;
+
+    private StillActivityTracker() {}
+
+    public static synchronized StillActivityTracker getInstance() {
+        if (sInstance == null) {
+            sInstance = new StillActivityTracker();
+        }
+        return sInstance;
+    }
+
+    public synchronized void onActivity(DetectedActivity activity, double nowSecs) {
+        if (activity.getType() == DetectedActivity.STILL && activity.getConfidence() >= MIN_CONFIDENCE) {
+            if (mStillSinceTs < 0) {
+                mStillSinceTs = nowSecs;
+            }
+        } else {
+            mStillSinceTs = -1;
+        }
+    }
+
+    /*
+     * The start of the current run of STILL, if it started after the last transition and has
+     * lasted at least minStillSecs, and -1 otherwise.
+     */
+    public synchronized double getStillSinceTs(double nowSecs, double lastTransitionTs,
+                                               int minStillSecs) {
+        if (mStillSinceTs < 0 || mStillSinceTs <= lastTransitionTs ||
+                nowSecs - mStillSinceTs < minStillSecs) {
+            return -1;
+        }
+        return mStillSinceTs;
+    }
+}
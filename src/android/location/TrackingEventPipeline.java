@@ -0,0 +1,286 @@
+package edu.berkeley.eecs.emission.cordova.tracker.location;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerLog;
+import edu.berkeley.eecs.emission.cordova.unifiedlogger.Log;
+
+/**
+ * Long-lived, single consumer pipeline for the events that google play services delivers to us
+ * through PendingIntents: location updates, activity updates, geofence exits and the activity
+ * transitions for the custom geofence.
+ *
+ * These used to be delivered to a separate IntentService each. Every delivery created the
+ * service, started a worker thread, handled the intent and tore everything down again, which is a
+ * lot of overhead for a location update every 30 secs. Now, the PendingIntents target the
+ * foreground service, which is running anyway while we are tracking, and it hands the intents
+ * off to this pipeline. The pipeline has a single dedicated thread, so events are still handled
+ * one at a time, in the order in which they were received, just like in an IntentService.
+ *
+ * The thread is started lazily and lives as long as the process does. It is blocked on the
+ * queue when there are no events, so it is cheap to keep around even when tracking is stopped.
+ *
+ * The pipeline thread is the only consumer. The handlers keep state in memory (the recent
+ * location window, the smoother, the simplifier, the dwell index) that is not safe to update from
+ * two threads, and the events must be handled in order. So the original IntentServices, which
+ * still receive the updates sent to the PendingIntents registered by older versions, hand their
+ * intents to the pipeline as well, and the handlers must not block the thread for long (the
+ * custom geofence check, which waits for a location, runs on the TrackerExecutor).
+ *
+ * The enqueue must not block the main thread either, so if QUEUE_CAPACITY events are waiting,
+ * location and activity updates are dropped and counted. The next update carries the current
+ * location or activity anyway. Geofence exits, activity transitions and flushes can't be dropped,
+ * since they start trips or keep the held back points in order, but repeated ones can be
+ * coalesced: if QUEUE_CAPACITY events are waiting, a new one replaces the waiting event with the
+ * same action (the newest transition is the current activity, either exit starts the trip, and
+ * the newest flush covers everything before it), or else the oldest waiting location or activity
+ * update. So the queue only grows past QUEUE_CAPACITY if it is full of transitions of a different
+ * kind, and MAX_QUEUE_DEPTH is the hard limit, past which even those are dropped and logged.
+ *
+ * The pipeline also resets the TrajectorySimplifier (see requestFlush) when the state changes and
+ * when tracking is stopped, so that the held back points are written in order with the updates.
+ *
+ * The queue depth and the processing latency (from being enqueued to being handled) are
+ * tracked and periodically logged, and can be read through getStatsSummary().
+ */
+public class TrackingEventPipeline {
+    private static final String TAG = "TrackingEventPipeline";
+
+    public static final String ACTION_LOCATION_UPDATE =
+            "edu.berkeley.eecs.emission.cordova.tracker.LOCATION_UPDATE";
+    public static final String ACTION_ACTIVITY_UPDATE =
+            "edu.berkeley.eecs.emission.cordova.tracker.ACTIVITY_UPDATE";
+    public static final String ACTION_GEOFENCE_EXIT =
+            "edu.berkeley.eecs.emission.cordova.tracker.GEOFENCE_EXIT";
+    public static final String ACTION_ACTIVITY_TRANSITION =
+            "edu.berkeley.eecs.emission.cordova.tracker.ACTIVITY_TRANSITION";
+    // Internal, never sent to a PendingIntent
+    private static final String ACTION_FLUSH_HELD_BACK =
+            "edu.berkeley.eecs.emission.cordova.tracker.FLUSH_HELD_BACK";
+
+    private static final int QUEUE_CAPACITY = 64;
+    private static final int MAX_QUEUE_DEPTH = 2 * QUEUE_CAPACITY;
+    private static final int LOG_STATS_EVERY = 100;
+
+    private static TrackingEventPipeline sInstance = null;
+
+    private final Context mCtxt;
+    private final BlockingQueue<Event> mQueue = new LinkedBlockingQueue<Event>(MAX_QUEUE_DEPTH);
+    private Thread mWorker = null;
+
+    private long mEnqueued = 0;
+    private long mProcessed = 0;
+    private long mFailed = 0;
+    private long mDropped = 0;
+    private long mCoalesced = 0;
+    private int mMaxDepth = 0;
+    private long mTotalLatencyMs = 0;
+    private long mMaxLatencyMs = 0;
+    private long mTotalProcessingMs = 0;
+
+    private static class Event {
+        final Intent intent;
+        final long enqueuedAtMs;
+
+        Event(Intent intent, long enqueuedAtMs) {
+            this.intent = intent;
+            this.enqueuedAtMs = enqueuedAtMs;
+        }
+    }
+
+    private TrackingEventPipeline(Context ctxt) {
+        this.mCtxt = ctxt.getApplicationContext();
+        // Points held back during one state must not be lost or leak into the next one
+        TripDiaryStateStore.getInstance(mCtxt).addListener((oldState, newState) -> {
+            if (!newState.equals(oldState)) {
+                requestFlush();
+            }
+        });
+    }
+
+    public static synchronized TrackingEventPipeline getInstance(Context ctxt) {
+        if (sInstance == null) {
+            sInstance = new TrackingEventPipeline(ctxt);
+        }
+        return sInstance;
+    }
+
+    public static boolean isPipelineIntent(Intent intent) {
+        String action = intent.getAction();
+        return ACTION_LOCATION_UPDATE.equals(action) || ACTION_ACTIVITY_UPDATE.equals(action) ||
+                ACTION_GEOFENCE_EXIT.equals(action) || ACTION_ACTIVITY_TRANSITION.equals(action);
+    }
+
+    /*
+     * Periodic updates, where the next one supersedes the one that we drop
+     */
+    private static boolean isDroppable(String action) {
+        return ACTION_LOCATION_UPDATE.equals(action) || ACTION_ACTIVITY_UPDATE.equals(action);
+    }
+
+    public synchronized void start() {
+        if (mWorker != null && mWorker.isAlive()) {
+            return;
+        }
+        mWorker = new Thread(this::processEvents, TAG);
+        mWorker.start();
+        TrackerLog.d(mCtxt, TAG, () -> "started pipeline thread "+mWorker);
+    }
+
+    /*
+     * Called on the main thread from the foreground service, so it must never block.
+     * Synchronized so that the depth check and the coalescing see the producers one at a time, the
+     * pipeline thread never takes the lock to consume.
+     */
+    public synchronized void enqueue(Intent intent) {
+        start();
+        String action = intent.getAction();
+        if (mQueue.size() >= QUEUE_CAPACITY) {
+            if (isDroppable(action)) {
+                recordDropped();
+                Log.e(mCtxt, TAG, "queue full, dropping "+action+", "+getStatsSummary());
+                return;
+            }
+            makeRoomFor(action);
+        }
+        if (!mQueue.offer(new Event(intent, SystemClock.elapsedRealtime()))) {
+            recordDropped();
+            Log.e(mCtxt, TAG, "queue at hard limit, dropping "+action+", "+getStatsSummary());
+            return;
+        }
+        recordEnqueued(mQueue.size());
+    }
+
+    /*
+     * Removes the waiting event with the same action, which the new one supersedes, or else the
+     * oldest waiting droppable event. The pipeline thread may take the event that we found before
+     * we remove it, in which case the queue has shrunk anyway.
+     */
+    private void makeRoomFor(String action) {
+        Event oldestDroppable = null;
+        Iterator<Event> it = mQueue.iterator();
+        while (it.hasNext()) {
+            Event currEvent = it.next();
+            String currAction = currEvent.intent.getAction();
+            if (action.equals(currAction)) {
+                if (mQueue.remove(currEvent)) {
+                    mCoalesced++;
+                    Log.e(mCtxt, TAG, "queue full, coalescing "+action+" with the waiting one, "
+                            +getStatsSummary());
+                }
+                return;
+            }
+            if (oldestDroppable == null && isDroppable(currAction)) {
+                oldestDroppable = currEvent;
+            }
+        }
+        if (oldestDroppable != null && mQueue.remove(oldestDroppable)) {
+            mDropped++;
+            Log.e(mCtxt, TAG, "queue full, dropping the oldest "+oldestDroppable.intent.getAction()
+                    +" to make room for "+action+", "+getStatsSummary());
+        }
+    }
+
+    /*
+     * Called from the original IntentServices, for the events that are still sent to the
+     * PendingIntents registered by older versions. Those don't have our actions, so we tag them
+     * with the action for the kind of event that the service used to handle.
+     */
+    public void enqueue(String action, Intent legacyIntent) {
+        Intent intent = new Intent(legacyIntent);
+        intent.setAction(action);
+        enqueue(intent);
+    }
+
+    /*
+     * Resets the TrajectorySimplifier on the pipeline thread, after the location updates that are
+     * already queued. Can be called from any thread, it never blocks.
+     */
+    public void requestFlush() {
+        enqueue(new Intent(ACTION_FLUSH_HELD_BACK));
+    }
+
+    private void processEvents() {
+        try {
+            while (true) {
+                Event event = mQueue.take();
+                long startMs = SystemClock.elapsedRealtime();
+                boolean success = true;
+                try {
+                    dispatch(event.intent);
+                } catch (RuntimeException e) {
+                    // Don't let one bad event kill the thread for the rest of the events
+                    Log.exception(mCtxt, TAG, e);
+                    success = false;
+                }
+                long endMs = SystemClock.elapsedRealtime();
+                recordProcessed(success, endMs - event.enqueuedAtMs, endMs - startMs);
+            }
+        } catch (InterruptedException e) {
+            TrackerLog.i(mCtxt, TAG, () -> "pipeline thread interrupted, exiting with "+mQueue.size()
+                    +" events unprocessed");
+        }
+    }
+
+    private void dispatch(Intent intent) {
+        String action = intent.getAction();
+        if (ACTION_LOCATION_UPDATE.equals(action)) {
+            LocationChangeIntentService.handleLocationUpdate(mCtxt, intent);
+        } else if (ACTION_ACTIVITY_UPDATE.equals(action)) {
+            ActivityRecognitionChangeIntentService.handleActivityUpdate(mCtxt, intent);
+        } else if (ACTION_GEOFENCE_EXIT.equals(action)) {
+            GeofenceExitIntentService.handleGeofenceExit(mCtxt, intent);
+        } else if (ACTION_ACTIVITY_TRANSITION.equals(action)) {
+            OPGeofenceExitActivityIntentService.handleActivityTransition(mCtxt, intent);
+        } else if (ACTION_FLUSH_HELD_BACK.equals(action)) {
+            TrajectorySimplifier.getInstance().reset(mCtxt);
+        } else {
+            Log.w(mCtxt, TAG, "Unknown action "+action+" in intent "+intent+", ignoring");
+        }
+    }
+
+    private synchronized void recordEnqueued(int depth) {
+        mEnqueued++;
+        if (depth > mMaxDepth) {
+            mMaxDepth = depth;
+        }
+    }
+
+    private synchronized void recordDropped() {
+        mDropped++;
+    }
+
+    private synchronized void recordProcessed(boolean success, long latencyMs, long processingMs) {
+        mProcessed++;
+        if (!success) {
+            mFailed++;
+        }
+        mTotalLatencyMs += latencyMs;
+        mTotalProcessingMs += processingMs;
+        if (latencyMs > mMaxLatencyMs) {
+            mMaxLatencyMs = latencyMs;
+        }
+        if (mProcessed % LOG_STATS_EVERY == 0) {
+            TrackerLog.i(mCtxt, TAG, () -> getStatsSummary());
+        }
+    }
+
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    public synchronized String getStatsSummary() {
+        long avgLatencyMs = mProcessed == 0 ? 0 : mTotalLatencyMs / mProcessed;
+        long avgProcessingMs = mProcessed == 0 ? 0 : mTotalProcessingMs / mProcessed;
+        return "pipeline stats: depth = "+mQueue.size()+" max depth = "+mMaxDepth
+                +" enqueued = "+mEnqueued+" processed = "+mProcessed+" failed = "+mFailed
+                +" dropped = "+mDropped+" coalesced = "+mCoalesced+" avg latency = "+avgLatencyMs+" ms"
+                +" max latency = "+mMaxLatencyMs+" ms avg processing = "+avgProcessingMs+" ms";
+    }
+}
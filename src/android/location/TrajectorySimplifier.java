@@ -0,0 +1,179 @@
+package edu.berkeley.eecs.emission.cordova.tracker.location;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.berkeley.eecs.emission.R;
+
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerLog;
+import edu.berkeley.eecs.emission.cordova.tracker.wrapper.SimpleLocation;
+
+/**
+ * Streaming (opening window) simplification of the filtered locations before they are saved.
+ *
+ * On highways and other straight segments, most of the filtered points lie on the line between
+ * their neighbors, and just add rows to the usercache and to the sync payload. We keep the last
+ * saved point as the anchor, and hold back the points after it as long as every one of them is
+ * within the tolerance of the segment from the anchor to the newest point. When a new point breaks
+ * that, we save the previous newest point, which becomes the new anchor, and drop the ones in
+ * between. So every dropped point is within the tolerance (in meters) of the saved polyline.
+ *
+ * Both our trip end check and the server's segmentation look for stationary periods, so we never
+ * drop a point that is within the trip end radius of the end of its segment. A stationary period
+ * is therefore always saved in full, and we only simplify while we are actually moving. We also
+ * never hold back more than MAX_SKIP_SECS, to bound the gaps in the saved data.
+ *
+ * Only the saves are simplified. The RecentLocationWindow, which makes the on-device trip end
+ * decision, still gets every filtered point.
+ *
+ * The held back points are only in memory. They are saved with the trip end, and the simplifier
+ * is reset (the points are written, and the anchor is cleared so that the next trip does not
+ * extend a segment from this one) on the pipeline thread whenever the state changes, when
+ * tracking is stopped, and when the foreground service is destroyed. See
+ * TrackingEventPipeline.requestFlush. If the process is killed, we lose at most MAX_SKIP_SECS of
+ * points from the middle of a trip.
+ */
+public class TrajectorySimplifier {
+    private static final String TAG = "TrajectorySimplifier";
+    private static final double MAX_SKIP_SECS = 2 * 60;
+    // Mean earth radius. We only use it for the cross track distance over short segments, where
+    // the local flat earth approximation is much better than the tolerances that we use.
+    private static final double EARTH_RADIUS = 6371008.8;
+
+    private static TrajectorySimplifier sInstance = null;
+
+    private SimpleLocation mAnchor = null;
+    // Points after the anchor that we have not saved yet. The last one is the end of the segment.
+    private final List<SimpleLocation> mPending = new ArrayList<SimpleLocation>();
+    private long mKept = 0;
+    private long mDropped = 0;
+
+    private TrajectorySimplifier() {}
+
+    public static synchronized TrajectorySimplifier getInstance() {
+        if (sInstance == null) {
+            sInstance = new TrajectorySimplifier();
+        }
+        return sInstance;
+    }
+
+    /*
+     * Adds the next filtered point, and appends the points that should be saved now to toSave.
+     * A tolerance of 0 or less turns simplification off.
+     */
+    public synchronized void add(SimpleLocation loc, int toleranceMeters, int radius,
+                                 List<SimpleLocation> toSave) {
+        if (toleranceMeters <= 0 || mAnchor == null) {
+            flush(toSave);
+            keep(loc, toSave);
+            return;
+        }
+        if (canExtend(loc, toleranceMeters, radius)) {
+            mPending.add(loc);
+            return;
+        }
+        // The previous end of the segment is the new anchor
+        if (!mPending.isEmpty()) {
+            SimpleLocation end = mPending.remove(mPending.size() - 1);
+            mDropped += mPending.size();
+            mPending.clear();
+            keep(end, toSave);
+        }
+        if (canExtend(loc, toleranceMeters, radius)) {
+            mPending.add(loc);
+        } else {
+            keep(loc, toSave);
+        }
+    }
+
+    /*
+     * Appends any held back points to toSave. We don't know what comes after them, so we keep
+     * all of them.
+     */
+    public synchronized void flush(List<SimpleLocation> toSave) {
+        for (SimpleLocation loc : mPending) {
+            keep(loc, toSave);
+        }
+        mPending.clear();
+    }
+
+    /*
+     * Writes any held back points and clears the anchor. Must be called on the pipeline thread,
+     * so that it is ordered with the location updates.
+     */
+    public void reset(Context ctxt) {
+        List<SimpleLocation> toSave = new ArrayList<SimpleLocation>();
+        synchronized (this) {
+            flush(toSave);
+            mAnchor = null;
+        }
+        if (toSave.isEmpty()) {
+            return;
+        }
+        SensorDataBatch batch = new SensorDataBatch();
+        for (SimpleLocation loc : toSave) {
+            batch.add(R.string.key_usercache_filtered_location, loc);
+        }
+        batch.write(ctxt);
+        TrackerLog.d(ctxt, TAG, () -> "Flushed "+toSave.size()+" held back points, "+getStatsSummary());
+    }
+
+    public synchronized String getStatsSummary() {
+        return "kept = "+mKept+", dropped = "+mDropped;
+    }
+
+    private void keep(SimpleLocation loc, List<SimpleLocation> toSave) {
+        toSave.add(loc);
+        mAnchor = loc;
+        mKept++;
+    }
+
+    /*
+     * Can loc be the new end of the segment from the anchor, i.e. can all the pending points
+     * (including the current end, which would now be dropped) be dropped?
+     */
+    private boolean canExtend(SimpleLocation loc, int toleranceMeters, int radius) {
+        if (loc.getTs() - mAnchor.getTs() > MAX_SKIP_SECS) {
+            return false;
+        }
+        double cosLat = Math.cos(Math.toRadians(mAnchor.getLatitude()));
+        double endX = toX(loc, cosLat);
+        double endY = toY(loc);
+        for (SimpleLocation p : mPending) {
+            if (p.distanceTo(loc) < radius) {
+                return false;
+            }
+            if (distanceToSegment(toX(p, cosLat), toY(p), endX, endY) > toleranceMeters) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // local coordinates in meters, relative to the anchor
+    private double toX(SimpleLocation loc, double cosLat) {
+        double dLng = loc.getLongitude() - mAnchor.getLongitude();
+        if (dLng > 180) {
+            dLng -= 360;
+        } else if (dLng < -180) {
+            dLng += 360;
+        }
+        return Math.toRadians(dLng) * cosLat * EARTH_RADIUS;
+    }
+
+    private double toY(SimpleLocation loc) {
+        return Math.toRadians(loc.getLatitude() - mAnchor.getLatitude()) * EARTH_RADIUS;
+    }
+
+    // distance from (x, y) to the segment from the origin (the anchor) to (endX, endY)
+    private static double distanceToSegment(double x, double y, double endX, double endY) {
+        double lenSq = endX * endX + endY * endY;
+        double t = lenSq == 0 ? 0 : (x * endX + y * endY) / lenSq;
+        t = Math.max(0, Math.min(1, t));
+        double dx = x - t * endX;
+        double dy = y - t * endY;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+}
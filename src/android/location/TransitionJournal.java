@@ -0,0 +1,175 @@
+package edu.berkeley.eecs.emission.cordova.tracker.location;
+
+import android.content.Context;
+import android.content.Intent;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerLog;
+import edu.berkeley.eecs.emission.cordova.tracker.location.actions.ActionSet;
+import edu.berkeley.eecs.emission.cordova.unifiedlogger.Log;
+import edu.berkeley.eecs.emission.cordova.usercache.UserCacheFactory;
+
+/**
+ * Records how far the state machine service has got with the transition that it is handling, so
+ * that a redelivered intent can pick up where the killed process left off.
+ *
+ * Both state machine services return START_REDELIVER_INTENT, so if the process is killed while
+ * a transition is being handled, the same intent is delivered again. Replaying the whole
+ * transition is not safe: creating the geofence reads the location again and registers a new
+ * geofence, and the transition is saved to the usercache a second time. So the receiver tags
+ * every intent with a unique id, and the service keeps a journal entry for the id, with
+ * - the steps (ActionSet name and key) whose tasks have completed successfully
+ * - whether the transition is done, i.e. the new state has been saved
+ *
+ * On redelivery, the steps that have completed are not started again, and if the transition was
+ * done (or the state has moved on from the state that the transition started in), the intent is
+ * dropped. Only the latest transition is journaled, in the usercache local storage, which is
+ * written synchronously.
+ */
+public class TransitionJournal implements ActionSet.Journal {
+    private static final String TAG = "TransitionJournal";
+
+    private static final String JOURNAL_KEY = "TRANSITION_JOURNAL";
+    public static final String EXTRA_TRANSITION_ID =
+            "edu.berkeley.eecs.emission.cordova.tracker.TRANSITION_ID";
+
+    private static final String ID = "id";
+    private static final String TRANSITION = "transition";
+    private static final String FROM_STATE = "from_state";
+    private static final String COMPLETED = "completed";
+    private static final String DONE = "done";
+
+    // Only the entry for the latest transition is saved, see save()
+    private static String sCurrentId = null;
+
+    private final Context mCtxt;
+    private final String mId;
+    private final String mTransition;
+    private final String mFromState;
+    private final Set<String> mCompleted = new HashSet<String>();
+    private boolean mDone = false;
+    private boolean mResumed = false;
+
+    private TransitionJournal(Context ctxt, String id, String transition, String fromState) {
+        this.mCtxt = ctxt;
+        this.mId = id;
+        this.mTransition = transition;
+        this.mFromState = fromState;
+    }
+
+    public static String newId() {
+        return UUID.randomUUID().toString();
+    }
+
+    /*
+     * Called for every intent the service receives. Returns the saved entry if the intent was
+     * redelivered and we have an entry for it, and a new entry otherwise.
+     */
+    public static synchronized TransitionJournal begin(Context ctxt, Intent intent,
+                                                       String currState, boolean redelivered) {
+        String id = intent.getStringExtra(EXTRA_TRANSITION_ID);
+        if (id == null) {
+            // sent directly to the service, e.g. by an older version of the receiver
+            id = newId();
+        }
+        sCurrentId = id;
+        if (redelivered) {
+            TransitionJournal saved = load(ctxt);
+            if (saved != null && saved.mId.equals(id)) {
+                saved.mResumed = true;
+                if (!saved.mDone && !currState.equals(saved.mFromState)) {
+                    // killed after saving the new state, but before marking the entry as done.
+                    // saved is not shared yet, so taking its lock here can't deadlock
+                    saved.finish();
+                }
+                TrackerLog.i(ctxt, TAG, () -> "resuming "+saved);
+                return saved;
+            }
+        }
+        TransitionJournal entry = new TransitionJournal(ctxt, id, intent.getAction(), currState);
+        entry.save();
+        return entry;
+    }
+
+    public boolean isResumed() {
+        return mResumed;
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    @Override
+    public synchronized boolean isCompleted(String step) {
+        return mCompleted.contains(step);
+    }
+
+    @Override
+    public synchronized void markCompleted(String step) {
+        if (mCompleted.add(step)) {
+            save();
+        }
+    }
+
+    /*
+     * Called once the new state has been saved
+     */
+    public synchronized void finish() {
+        mDone = true;
+        save();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TransitionJournal{" + mTransition + " from " + mFromState + ", id = " + mId
+                + ", completed = " + mCompleted + (mDone ? ", done" : "") + "}";
+    }
+
+    // Must be called with the lock held
+    private void save() {
+        synchronized (TransitionJournal.class) {
+            // A later intent has started a new entry, don't overwrite it
+            if (!mId.equals(sCurrentId)) {
+                return;
+            }
+        }
+        try {
+            JSONObject jo = new JSONObject();
+            jo.put(ID, mId);
+            jo.put(TRANSITION, mTransition);
+            jo.put(FROM_STATE, mFromState);
+            jo.put(COMPLETED, new JSONArray(mCompleted));
+            jo.put(DONE, mDone);
+            UserCacheFactory.getUserCache(mCtxt).putLocalStorage(JOURNAL_KEY, jo);
+        } catch (JSONException e) {
+            Log.e(mCtxt, TAG, "Found error " + e + " saving transition journal, replay will start over");
+        }
+    }
+
+    private static TransitionJournal load(Context ctxt) {
+        try {
+            JSONObject jo = UserCacheFactory.getUserCache(ctxt).getLocalStorage(JOURNAL_KEY, false);
+            if (jo == null) {
+                return null;
+            }
+            TransitionJournal entry = new TransitionJournal(ctxt, jo.getString(ID),
+                    jo.getString(TRANSITION), jo.getString(FROM_STATE));
+            JSONArray completed = jo.getJSONArray(COMPLETED);
+            for (int i = 0; i < completed.length(); i++) {
+                entry.mCompleted.add(completed.getString(i));
+            }
+            entry.mDone = jo.getBoolean(DONE);
+            return entry;
+        } catch (JSONException e) {
+            Log.e(ctxt, TAG, "Found error " + e + " reading transition journal, replay will start over");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package edu.berkeley.eecs.emission.cordova.tracker.location;
+
+import android.content.Context;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+
+import edu.berkeley.eecs.emission.R;
+
+/**
+ * Table driven dispatch for the trip diary state machine.
+ *
+ * The states and transitions are stored and broadcast as the strings in statemachine.xml, and
+ * both state machine services used to compare the current state and the transition against
+ * ctxt.getString(...) in chains of if/else for every transition. Instead, we resolve the strings
+ * to enums once per process, and every service declares its edges in a Table, which is filled out
+ * into a complete state x transition matrix when it is built. So the dispatch is a hash lookup
+ * for each string, and an array lookup for the action.
+ *
+ * A cell is filled with the first of:
+ * - the edge for the state and the transition (on)
+ * - the edge for the transition in any state (onAnyState)
+ * - the edge for the unhandled transitions in the state (otherwise)
+ * - an edge that does nothing
+ */
+public final class TripDiaryStateMachine {
+    public enum State {
+        START(R.string.state_start),
+        WAITING_FOR_TRIP_START(R.string.state_waiting_for_trip_start),
+        ONGOING_TRIP(R.string.state_ongoing_trip),
+        TRACKING_STOPPED(R.string.state_tracking_stopped);
+
+        final int resId;
+
+        State(int resId) {
+            this.resId = resId;
+        }
+    }
+
+    public enum Event {
+        INITIALIZE(R.string.transition_initialize),
+        EXITED_GEOFENCE(R.string.transition_exited_geofence),
+        STOPPED_MOVING(R.string.transition_stopped_moving),
+        STOP_TRACKING(R.string.transition_stop_tracking),
+        START_TRACKING(R.string.transition_start_tracking),
+        TRACKING_ERROR(R.string.transition_tracking_error);
+
+        final int resId;
+
+        Event(int resId) {
+            this.resId = resId;
+        }
+    }
+
+    /*
+     * What to do for an edge, given the service that is handling the transition, and the journal
+     * entry for it. The callbacks of the edge must finish that entry, not whichever one the
+     * service is handling by the time they run.
+     */
+    public interface Action<S> {
+        void run(S service, Context ctxt, String actionString, TransitionJournal journal);
+    }
+
+    public static final class Edge<S> {
+        private final String mName;
+        private final Action<S> mAction;
+
+        Edge(String name, Action<S> action) {
+            this.mName = name;
+            this.mAction = action;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public void run(S service, Context ctxt, String actionString, TransitionJournal journal) {
+            mAction.run(service, ctxt, actionString, journal);
+        }
+    }
+
+    private static HashMap<String, State> sStates = null;
+    private static HashMap<String, Event> sEvents = null;
+
+    private TripDiaryStateMachine() {}
+
+    private static synchronized void resolve(Context ctxt) {
+        if (sStates != null) {
+            return;
+        }
+        HashMap<String, State> states = new HashMap<String, State>();
+        for (State state : State.values()) {
+            states.put(ctxt.getString(state.resId), state);
+        }
+        HashMap<String, Event> events = new HashMap<String, Event>();
+        for (Event event : Event.values()) {
+            events.put(ctxt.getString(event.resId), event);
+        }
+        sEvents = events;
+        sStates = states;
+    }
+
+    /*
+     * Returns null if the string is not one of our states
+     */
+    public static State getState(Context ctxt, String stateString) {
+        resolve(ctxt);
+        return stateString == null ? null : sStates.get(stateString);
+    }
+
+    /*
+     * Returns null if the string is not one of our transitions
+     */
+    public static Event getEvent(Context ctxt, String transitionString) {
+        resolve(ctxt);
+        return transitionString == null ? null : sEvents.get(transitionString);
+    }
+
+    public static final class Table<S> {
+        private final EnumMap<State, EnumMap<Event, Edge<S>>> mEdges;
+        private final EnumMap<State, Edge<S>> mUnhandled;
+        private final EnumMap<Event, Edge<S>> mUnknownState;
+        private final Edge<S> mNone;
+
+        private Table(Builder<S> builder) {
+            mNone = new Edge<S>("none", (service, ctxt, actionString, journal) -> {});
+            mEdges = new EnumMap<State, EnumMap<Event, Edge<S>>>(State.class);
+            mUnhandled = new EnumMap<State, Edge<S>>(State.class);
+            mUnknownState = new EnumMap<Event, Edge<S>>(Event.class);
+            for (Event event : Event.values()) {
+                Edge<S> anyState = builder.mAnyState.get(event);
+                mUnknownState.put(event, anyState != null ? anyState : mNone);
+            }
+            for (State state : State.values()) {
+                Edge<S> otherwise = builder.mOtherwise.get(state);
+                mUnhandled.put(state, otherwise != null ? otherwise : mNone);
+                EnumMap<Event, Edge<S>> stateEdges = new EnumMap<Event, Edge<S>>(Event.class);
+                EnumMap<Event, Edge<S>> declared = builder.mEdges.get(state);
+                for (Event event : Event.values()) {
+                    Edge<S> edge = declared == null ? null : declared.get(event);
+                    if (edge == null) {
+                        edge = builder.mAnyState.get(event);
+                    }
+                    if (edge == null) {
+                        edge = mUnhandled.get(state);
+                    }
+                    stateEdges.put(event, edge);
+                }
+                mEdges.put(state, stateEdges);
+            }
+        }
+
+        /*
+         * Either argument can be null, if the string was not a known state or transition.
+         * Never returns null.
+         */
+        public Edge<S> lookup(State state, Event event) {
+            if (state == null) {
+                return event == null ? mNone : mUnknownState.get(event);
+            }
+            if (event == null) {
+                return mUnhandled.get(state);
+            }
+            return mEdges.get(state).get(event);
+        }
+    }
+
+    public static final class Builder<S> {
+        private final EnumMap<State, EnumMap<Event, Edge<S>>> mEdges =
+                new EnumMap<State, EnumMap<Event, Edge<S>>>(State.class);
+        private final EnumMap<Event, Edge<S>> mAnyState = new EnumMap<Event, Edge<S>>(Event.class);
+        private final EnumMap<State, Edge<S>> mOtherwise = new EnumMap<State, Edge<S>>(State.class);
+
+        public Builder<S> on(State state, Event event, String name, Action<S> action) {
+            EnumMap<Event, Edge<S>> stateEdges = mEdges.get(state);
+            if (stateEdges == null) {
+                stateEdges = new EnumMap<Event, Edge<S>>(Event.class);
+                mEdges.put(state, stateEdges);
+            }
+            stateEdges.put(event, new Edge<S>(name, action));
+            return this;
+        }
+
+        public Builder<S> onAnyState(Event event, String name, Action<S> action) {
+            mAnyState.put(event, new Edge<S>(name, action));
+            return this;
+        }
+
+        public Builder<S> otherwise(State state, String name, Action<S> action) {
+            mOtherwise.put(state, new Edge<S>(name, action));
+            return this;
+        }
+
+        public Table<S> build() {
+            return new Table<S>(this);
+        }
+    }
+}
@@ -31,6 +31,7 @@ import edu.berkeley.eecs.emission.cordova.tracker.ExplicitIntent;
 import edu.berkeley.eecs.emission.cordova.tracker.wrapper.StatsEvent;
 import edu.berkeley.eecs.emission.cordova.usercache.BuiltinUserCache;
 
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerLog;
 import edu.berkeley.eecs.emission.cordova.unifiedlogger.Log;
 import edu.berkeley.eecs.emission.cordova.unifiedlogger.NotificationHelper;
 
@@ -53,7 +54,8 @@ public class TripDiaryStateMachineForegroundService extends Service {
 
     @Override
     public void onCreate() {
-        Log.d(this, TAG, "onCreate called");
+        TrackerLog.d(this, TAG, "onCreate called");
+        TrackingEventPipeline.getInstance(this).start();
     }
 
     /*
@@ -77,7 +79,10 @@ public class TripDiaryStateMachineForegroundService extends Service {
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        Log.d(this, TAG, "onStartCommand called with intent = "+intent+
+        if (intent != null && TrackingEventPipeline.isPipelineIntent(intent)) {
+            return handleTrackingEvent(intent, flags, startId);
+        }
+        TrackerLog.d(this, TAG, () -> "onStartCommand called with intent = "+intent+
           " flags = " + flags +  " and startId = " + startId);
         String message  = humanizeState(this, TripDiaryStateMachineService.getState(this));
         if (intent == null) {
@@ -90,32 +95,53 @@ public class TripDiaryStateMachineForegroundService extends Service {
         return START_STICKY;
     }
 
+    /*
+     * Location, activity and geofence events from google play services. Like every other start
+     * command, a delivery (re)starts the foreground notification, so a delivery that restarts the
+     * service puts it back in the foreground. Then we hand the event off to the pipeline.
+     */
+    private int handleTrackingEvent(Intent intent, int flags, int startId) {
+        try {
+            handleStart(humanizeState(this, TripDiaryStateMachineService.getState(this)),
+                intent, flags, startId);
+        } catch (RuntimeException e) {
+            // we still want to handle the event, even if we can't go back to the foreground
+            Log.exception(this, TAG, e);
+        }
+        TrackingEventPipeline.getInstance(this).enqueue(intent);
+        return START_STICKY;
+    }
+
     /*
      * This is currently the only foreground service in the app and will remain running until
      * the user turns tracking off.
      */
     private void handleStart(String msg, Intent intent, int flags, int startId) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            Log.d(this, TAG, "onStartCommand called on oreo+, with msg "+ msg + " starting foreground service");
+            TrackerLog.d(this, TAG, () -> "onStartCommand called on oreo+, with msg "+ msg + " starting foreground service");
             // Go to the foreground with a dummy notification
             this.startForeground(ONGOING_TRIP_ID, getNotification(msg));
         } else {
-            Log.d(this, TAG, "onStartCommand called on pre-oreo, ignoring");
+            TrackerLog.d(this, TAG, "onStartCommand called on pre-oreo, ignoring");
         }
     }
 
     @Override
     public void onDestroy() {
-        Log.d(this, TAG, "onDestroy called for foreground service");
+        TrackerLog.d(this, TAG, () -> "onDestroy called for foreground service, "
+            + TrackingEventPipeline.getInstance(this).getStatsSummary()
+            + ", " + LocationChangeIntentService.getBatchingStats()
+            + ", " + DwellPointIndex.getInstance().getStatsSummary());
+        TrackingEventPipeline.getInstance(this).requestFlush();
         handleDestroy(this);
     }
 
     private void handleDestroy(Service srv) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            Log.d(srv, TAG, "onDestroy called, removing notification");
+            TrackerLog.d(srv, TAG, "onDestroy called, removing notification");
             srv.stopForeground(true);
         } else {
-            Log.d(srv, TAG, "onDestroy called on pre-oreo, ignoring");
+            TrackerLog.d(srv, TAG, "onDestroy called on pre-oreo, ignoring");
         }
     }
 
@@ -128,7 +154,7 @@ public class TripDiaryStateMachineForegroundService extends Service {
   @Nullable
   @Override
   public IBinder onBind(Intent intent) {
-    Log.d(this, TAG, "onBind called with intent "+intent);
+    TrackerLog.d(this, TAG, () -> "onBind called with intent "+intent);
     return mBinder;
   }
 
@@ -184,8 +210,20 @@ public class TripDiaryStateMachineForegroundService extends Service {
             PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_MUTABLE);
     }
 
+    /*
+     Returns the pending intent for events that are handled by the TrackingEventPipeline.
+     The action distinguishes between the different kinds of events, and since the action is part
+     of the identity of a PendingIntent, the pending intents for the different kinds of events
+     don't overwrite each other.
+     */
+    public static PendingIntent getPipelinePendingIntent(Context ctxt, String action) {
+        Intent innerIntent = new Intent(ctxt, TripDiaryStateMachineForegroundService.class);
+        innerIntent.setAction(action);
+        return getProperPendingIntent(ctxt, innerIntent);
+    }
+
     public static void startProperly(Context ctxt) {
-    Log.d(ctxt, TAG, "startProperly called with context = "+ctxt);
+    TrackerLog.d(ctxt, TAG, () -> "startProperly called with context = "+ctxt);
       if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
         ctxt.startForegroundService(getForegroundServiceIntent(ctxt));
       } else {
@@ -201,14 +239,14 @@ public class TripDiaryStateMachineForegroundService extends Service {
     if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
       NotificationManager mgr = (NotificationManager) ctxt.getSystemService(Context.NOTIFICATION_SERVICE);
       StatusBarNotification[] activeNotifications = mgr.getActiveNotifications();
-      Log.d(ctxt, TAG, "In checkForegroundNotification, found " + activeNotifications.length + " active notifications");
+      TrackerLog.d(ctxt, TAG, () -> "In checkForegroundNotification, found " + activeNotifications.length + " active notifications");
       for (StatusBarNotification notification : activeNotifications) {
         if (notification.getId() == TripDiaryStateMachineForegroundService.ONGOING_TRIP_ID) {
-          Log.d(ctxt, TAG, "Found foreground notification with ID " + TripDiaryStateMachineForegroundService.ONGOING_TRIP_ID + " nothing to do");
+          TrackerLog.d(ctxt, TAG, () -> "Found foreground notification with ID " + TripDiaryStateMachineForegroundService.ONGOING_TRIP_ID + " nothing to do");
           return;
         }
       }
-      Log.d(ctxt, TAG, "Did not find foreground notification with ID " + TripDiaryStateMachineForegroundService.ONGOING_TRIP_ID + " in list " + Arrays.stream(activeNotifications).map(n -> n.getId()).collect(Collectors.toList()));
+      TrackerLog.d(ctxt, TAG, () -> "Did not find foreground notification with ID " + TripDiaryStateMachineForegroundService.ONGOING_TRIP_ID + " in list " + Arrays.stream(activeNotifications).map(n -> n.getId()).collect(Collectors.toList()));
       // NotificationHelper.createNotification(ctxt, ONGOING_TRIP_ID + 1, ctxt.getString(R.string.foreground_killed_email_log));
       BuiltinUserCache.getDatabase(ctxt).putMessage(R.string.key_usercache_client_error, new StatsEvent(ctxt, R.string.killed_foreground_service_detected_restart));
       TripDiaryStateMachineForegroundService.startProperly(ctxt);
@@ -216,7 +254,7 @@ public class TripDiaryStateMachineForegroundService extends Service {
       // https://github.com/e-mission/e-mission-docs/issues/580#issuecomment-700747931
       ctxt.sendBroadcast(new ExplicitIntent(ctxt, R.string.transition_initialize));
     } else {
-      Log.d(ctxt, TAG, "Pre-Oreo, no foreground service, no need to check for notification");
+      TrackerLog.d(ctxt, TAG, "Pre-Oreo, no foreground service, no need to check for notification");
     }
   }
 }
@@ -13,6 +13,7 @@ import org.json.JSONObject;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import edu.berkeley.eecs.emission.BuildConfig;
 import edu.berkeley.eecs.emission.R;
@@ -23,6 +24,7 @@ import edu.berkeley.eecs.emission.cordova.tracker.sensors.BatteryUtils;
 import edu.berkeley.eecs.emission.cordova.tracker.wrapper.Battery;
 import edu.berkeley.eecs.emission.cordova.tracker.wrapper.SimpleLocation;
 import edu.berkeley.eecs.emission.cordova.tracker.verification.SensorControlBackgroundChecker;
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerLog;
 import edu.berkeley.eecs.emission.cordova.unifiedlogger.Log;
 import edu.berkeley.eecs.emission.cordova.unifiedlogger.NotificationHelper;
 import edu.berkeley.eecs.emission.cordova.usercache.BuiltinUserCache;
@@ -45,35 +47,25 @@ public class TripDiaryStateMachineReceiver extends BroadcastReceiver {
 	private static String TAG = "TripDiaryStateMachineRcvr";
     private static final String SETUP_COMPLETE_KEY = "setup_complete";
     private static final int STARTUP_IN_NUMBERS = 7827887;
+    private static final int RESTART_TIMEOUT_MINS = 5;
 
     public TripDiaryStateMachineReceiver() {
         // The automatically created receiver needs a default constructor
         android.util.Log.i(TAG, "noarg constructor called");
     }
 
-	public TripDiaryStateMachineReceiver(Context context) {
-		android.util.Log.i(TAG, "TripDiaryStateMachineReceiver constructor called");
-
-        // Why do we need to put the CURR_STATE_KEY to null every time the receiver is created?
-        // Oh wait, is this the call from the activity?
-        // Need to investigate and unify
-        SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(context).edit();
-        editor.putString(context.getString(R.string.curr_state_key), null);
-        editor.apply();
-    }
-
 	@Override
 	public void onReceive(Context context, Intent intent) {
-        Log.i(context, TAG, "TripDiaryStateMachineReciever onReceive(" + context + ", " + intent + ") called");
+        TrackerLog.i(context, TAG, () -> "TripDiaryStateMachineReciever onReceive(" + context + ", " + intent + ") called");
 
         // Check to see if the user came out of airplane mode as the FSM needs to be restarted if they did
         if (intent.getAction() != null && intent.getAction().equals(Intent.ACTION_AIRPLANE_MODE_CHANGED)) {
             boolean isAirplaneModeOn = intent.getBooleanExtra("state", false);
             if (!isAirplaneModeOn) {
-                Log.d(context, TAG, "Airplane mode was turned off, restart FSM.");
+                TrackerLog.d(context, TAG, "Airplane mode was turned off, restart FSM.");
                 SensorControlBackgroundChecker.restartFSMIfStartState(context);
             } else {
-                Log.d(context, TAG, "Airplane mode was turned on.");
+                TrackerLog.d(context, TAG, "Airplane mode was turned on.");
             }
         }
 
@@ -96,22 +88,22 @@ public class TripDiaryStateMachineReceiver extends BroadcastReceiver {
         if (intent.getAction().equals(context.getString(R.string.transition_initialize))) {
             String reqConsent = ConfigManager.getReqConsent(context);
             if (ConfigManager.isConsented(context, reqConsent)) {
-                Log.i(context, TAG, reqConsent + " is the current consented version, sending msg to service...");
+                TrackerLog.i(context, TAG, () -> reqConsent + " is the current consented version, sending msg to service...");
             } else {
             JSONObject introDoneResult = null;
             try {
                 introDoneResult = BuiltinUserCache.getDatabase(context).getLocalStorage("intro_done", false);
             } catch(JSONException e) {
-                Log.i(context, TAG, "unable to read intro done state, skipping prompt");
+                TrackerLog.i(context, TAG, "unable to read intro done state, skipping prompt");
                     return;
             }
             if (introDoneResult != null) {
-                    Log.i(context, TAG, reqConsent + " is not the current consented version, skipping init...");
+                    TrackerLog.i(context, TAG, () -> reqConsent + " is not the current consented version, skipping init...");
                     NotificationHelper.createNotification(context, STARTUP_IN_NUMBERS,
                       null, context.getString(R.string.new_data_collection_terms));
                     return;
                 } else {
-                Log.i(context, TAG, "onboarding is not complete, skipping prompt");
+                TrackerLog.i(context, TAG, "onboarding is not complete, skipping prompt");
                     return;
                 }
             }
@@ -121,6 +113,8 @@ public class TripDiaryStateMachineReceiver extends BroadcastReceiver {
         // we should only get here if the user has consented
         Intent serviceStartIntent = getStateMachineServiceIntent(context);
         serviceStartIntent.setAction(intent.getAction());
+        // So that the service can tell a redelivery of this transition apart from a new one
+        serviceStartIntent.putExtra(TransitionJournal.EXTRA_TRANSITION_ID, TransitionJournal.newId());
         context.startService(serviceStartIntent);
     }
 
@@ -130,13 +124,13 @@ public class TripDiaryStateMachineReceiver extends BroadcastReceiver {
          * help with issues we have seen in the field where location updates pause mysteriously, or
          * geofences are never exited.
          */
-        Log.i(ctxt, TAG, "START PERIODIC ACTIVITY");
+        TrackerLog.i(ctxt, TAG, "START PERIODIC ACTIVITY");
         checkForegroundNotification(ctxt);
         checkLocationStillAvailable(ctxt);
         validateAndCleanupState(ctxt);
         initOnUpgrade(ctxt);
         saveBatteryAndSimulateUser(ctxt);
-        Log.i(ctxt, TAG, "END PERIODIC ACTIVITY");
+        TrackerLog.i(ctxt, TAG, "END PERIODIC ACTIVITY");
     }
 
     public static void checkLocationStillAvailable(Context ctxt) {
@@ -148,7 +142,7 @@ public class TripDiaryStateMachineReceiver extends BroadcastReceiver {
          * Check for being in geofence if in waiting_for_trip_state.
          */
         if (TripDiaryStateMachineService.getState(ctxt).equals(ctxt.getString(R.string.state_start))) {
-            Log.d(ctxt, TAG, "Still in start state, sending initialize...");
+            TrackerLog.d(ctxt, TAG, "Still in start state, sending initialize...");
             ctxt.sendBroadcast(new ExplicitIntent(ctxt, R.string.transition_initialize));
         } else if (TripDiaryStateMachineService.getState(ctxt).equals(
                 ctxt.getString(R.string.state_waiting_for_trip_start))) {
@@ -156,11 +150,11 @@ public class TripDiaryStateMachineReceiver extends BroadcastReceiver {
             // In particular, there is no method to get a geofence given an ID, and no method to get the status of a geofence
             // even if we did have it. So this is not a check that we can do.
         } else if (TripDiaryStateMachineService.getState(ctxt).equals(ctxt.getString(R.string.state_ongoing_trip))) {
-            Log.d(ctxt, TAG, "In ongoing trip, checking for ongoing data collection");
+            TrackerLog.d(ctxt, TAG, "In ongoing trip, checking for ongoing data collection");
             // Get the last recorded point
             SimpleLocation[] lastPoints = UserCacheFactory.getUserCache(ctxt).getLastSensorData(R.string.key_usercache_location, 1, SimpleLocation.class);
             if (lastPoints.length == 0) {
-                Log.d(ctxt, TAG, "Found zero points while in 'ongoing_trip' state, re-initializing");
+                TrackerLog.d(ctxt, TAG, "Found zero points while in 'ongoing_trip' state, re-initializing");
                 ctxt.sendBroadcast(new ExplicitIntent(ctxt, R.string.transition_initialize));
             } else {
                 SimpleLocation lastPoint = lastPoints[0];
@@ -171,10 +165,10 @@ public class TripDiaryStateMachineReceiver extends BroadcastReceiver {
                 // https://github.com/e-mission/e-mission-docs/issues/580#issuecomment-700791309
                 double lastPointAgo = nowSecs - lastPoint.getTs();
                 if (lastPointAgo > threshold) {
-                    Log.d(ctxt, TAG, "Last point read was "+lastPoint+", "+lastPointAgo+" secs ago, beyond threshold, "+threshold+" re-initializing");
+                    TrackerLog.d(ctxt, TAG, () -> "Last point read was "+lastPoint+", "+lastPointAgo+" secs ago, beyond threshold, "+threshold+" re-initializing");
                     ctxt.sendBroadcast(new ExplicitIntent(ctxt, R.string.transition_initialize));
                 } else {
-                    Log.d(ctxt, TAG, "Last point read was "+lastPoint+", "+lastPointAgo+" secs ago, within threshold, "+threshold+" all is well");
+                    TrackerLog.d(ctxt, TAG, () -> "Last point read was "+lastPoint+", "+lastPointAgo+" secs ago, within threshold, "+threshold+" all is well");
                 }
             }
         }
@@ -194,10 +188,10 @@ public class TripDiaryStateMachineReceiver extends BroadcastReceiver {
         System.out.println("All preferences are "+sp.getAll());
 
         int currentCompleteVersion = sp.getInt(SETUP_COMPLETE_KEY, 0);
-        Log.d(ctxt, TAG, "Comparing installed version "+currentCompleteVersion
+        TrackerLog.d(ctxt, TAG, () -> "Comparing installed version "+currentCompleteVersion
             + " with new version " + BuildConfig.VERSION_CODE);
         if(currentCompleteVersion != BuildConfig.VERSION_CODE) {
-            Log.d(ctxt, TAG, "Setup not complete, sending initialize");
+            TrackerLog.d(ctxt, TAG, "Setup not complete, sending initialize");
             // this is the code that checks whether the native collection has been upgraded and
             // restarts the data collection in that case. Without this, tracking is turned off
             // until the user restarts the app.
@@ -210,10 +204,12 @@ public class TripDiaryStateMachineReceiver extends BroadcastReceiver {
             // However, it looks like it doesn't actually work - it looks like the app preferences plugin
             // saves to local storage by default. Need to debug the app preferences plugin and maybe ask
             // some questions of the maintainer. For now, setting it here for the first time should be fine.
+            // If we are killed before this is written out, we will just send initialize again on
+            // the next launch, so there is no need to block on the disk
             prefsEditor.putInt(SETUP_COMPLETE_KEY, BuildConfig.VERSION_CODE);
-            prefsEditor.commit();
+            prefsEditor.apply();
         } else {
-            Log.d(ctxt, TAG, "Setup complete, skipping initialize");
+            TrackerLog.d(ctxt, TAG, "Setup complete, skipping initialize");
         }
     }
 
@@ -223,38 +219,28 @@ public class TripDiaryStateMachineReceiver extends BroadcastReceiver {
 
     public static void restartCollection(Context ctxt) {
         /*
-         Super hacky solution, but works for now. Steps are:
+         Steps are:
          * Stop tracking
-         * Poll for state change
+         * Wait for the state to change to tracking_stopped
          * Start tracking
-         * Ugh! My eyeballs hurt to even read that?!
+         We used to poll for the state change every second, forever if the state never changed.
          */
-        if (TripDiaryStateMachineService.getState(ctxt).equals(ctxt.getString(R.string.state_tracking_stopped))) {
-            Log.i(ctxt, TAG, "in restartCollection, tracking is already stopped "
+        final String stoppedState = ctxt.getString(R.string.state_tracking_stopped);
+        if (TripDiaryStateMachineService.getState(ctxt).equals(stoppedState)) {
+            TrackerLog.i(ctxt, TAG, () -> "in restartCollection, tracking is already stopped "
                 + " new config will be picked up when it starts"
                 + " early return");
             return;
         }
-        ctxt.sendBroadcast(new ExplicitIntent(ctxt, R.string.transition_stop_tracking));
         final Context fCtxt = ctxt;
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-        boolean stateChanged = false;
-        while(!stateChanged) {
-            try {
-                Thread.sleep(1000); // Wait for one second in the loop
-                        stateChanged = (TripDiaryStateMachineService.getState(fCtxt).equals(
-                                fCtxt.getString(R.string.state_tracking_stopped)));
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-                // Sleep has been interrupted, might as well exit the while loop
-                stateChanged = true;
-            }
-        }
-                fCtxt.sendBroadcast(new ExplicitIntent(fCtxt, R.string.transition_start_tracking));
-            }
-        }).start();
+        // Wait before sending, so that we can't miss the state change
+        TripDiaryStateStore.getInstance(ctxt).awaitState(stoppedState,
+                RESTART_TIMEOUT_MINS, TimeUnit.MINUTES,
+                () -> fCtxt.sendBroadcast(new ExplicitIntent(fCtxt, R.string.transition_start_tracking)),
+                () -> Log.e(fCtxt, TAG, "in restartCollection, tracking did not stop in "
+                        + RESTART_TIMEOUT_MINS + " mins, state = "
+                        + TripDiaryStateMachineService.getState(fCtxt) + ", not restarting"));
+        ctxt.sendBroadcast(new ExplicitIntent(ctxt, R.string.transition_stop_tracking));
     }
 
     private Intent getStateMachineServiceIntent(Context context) {
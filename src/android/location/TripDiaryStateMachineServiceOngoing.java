@@ -3,24 +3,17 @@ package edu.berkeley.eecs.emission.cordova.tracker.location;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.os.IBinder;
-import android.preference.PreferenceManager;
-
-import com.google.android.gms.tasks.Task;
-import com.google.android.gms.tasks.Tasks;
-
-import java.util.LinkedList;
-import java.util.List;
 
 import edu.berkeley.eecs.emission.cordova.tracker.ConfigManager;
 import edu.berkeley.eecs.emission.cordova.unifiedlogger.NotificationHelper;
 import edu.berkeley.eecs.emission.R;
 
+import edu.berkeley.eecs.emission.cordova.tracker.location.actions.ActionSet;
 import edu.berkeley.eecs.emission.cordova.tracker.location.actions.ActivityRecognitionActions;
 import edu.berkeley.eecs.emission.cordova.tracker.location.actions.LocationTrackingActions;
 import edu.berkeley.eecs.emission.cordova.tracker.sensors.BatteryUtils;
-import edu.berkeley.eecs.emission.cordova.unifiedlogger.Log;
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerLog;
 import edu.berkeley.eecs.emission.cordova.usercache.UserCacheFactory;
 import edu.berkeley.eecs.emission.cordova.tracker.wrapper.Transition;
 
@@ -46,7 +39,6 @@ public class TripDiaryStateMachineServiceOngoing extends Service {
 
     private String mCurrState = null;
     private String mTransition = null;
-    private SharedPreferences mPrefs = null;
     private ForegroundServiceComm mComm = null;
 
     public TripDiaryStateMachineServiceOngoing() {
@@ -55,13 +47,13 @@ public class TripDiaryStateMachineServiceOngoing extends Service {
 
     @Override
     public void onCreate() {
-        Log.i(this, TAG, "Service created. Initializing one-time variables!");
+        TrackerLog.i(this, TAG, "Service created. Initializing one-time variables!");
         mComm = new ForegroundServiceComm(this);
     }
 
     @Override
     public void onDestroy() {
-        Log.i(this, TAG, "Service destroyed. So long, suckers!");
+        TrackerLog.i(this, TAG, "Service destroyed. So long, suckers!");
         mComm.unbind();
     }
 
@@ -72,48 +64,47 @@ public class TripDiaryStateMachineServiceOngoing extends Service {
 
     @Override
     public int onStartCommand(Intent intent,  int flags, int startId) {
-        Log.d(this, TAG, "service started with flags = "+flags+" startId = "+startId
+        TrackerLog.d(this, TAG, () -> "service started with flags = "+flags+" startId = "+startId
                 +" action = "+intent.getAction());
-        if (flags == Service.START_FLAG_REDELIVERY) {
-            Log.d(this, TAG, "service restarted! need to check idempotency!");
-        }
+        boolean redelivered = (flags & Service.START_FLAG_REDELIVERY) != 0;
         mTransition = intent.getAction();
-        mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
-        mCurrState = mPrefs.getString(this.getString(R.string.curr_state_key),
-            this.getString(R.string.state_start));
-        Log.d(this, TAG, "after reading from the prefs, the current state is "+mCurrState);
-        UserCacheFactory.getUserCache(this).putMessage(R.string.key_usercache_transition,
-                new Transition(mCurrState, mTransition, ((double)System.currentTimeMillis())/1000));
-        handleAction(this, mCurrState, mTransition);
+        mCurrState = TripDiaryStateStore.getInstance(this).getState();
+        TrackerLog.d(this, TAG, () -> "after reading from the store, the current state is "+mCurrState);
+        final TransitionJournal journal = TransitionJournal.begin(this, intent, mCurrState, redelivered);
+        if (journal.isDone()) {
+            TrackerLog.i(this, TAG, () -> "service restarted, but "+journal+" was already handled, ignoring");
+            stopSelf();
+            return START_REDELIVER_INTENT;
+        }
+        if (journal.isResumed()) {
+            TrackerLog.i(this, TAG, () -> "service restarted, resuming "+journal);
+        } else {
+            LastTransitionCache.getInstance().putTransition(this,
+                    new Transition(mCurrState, mTransition, ((double)System.currentTimeMillis())/1000));
+        }
+        handleAction(this, mCurrState, mTransition, journal);
         /*
          We are returning with START_REDELIVER_INTENT, so the process will be restarted with the
-         same intent if it is killed. We need to think through the implications of this. If the
-         process was killed before any of the actions were performed, then we are fine. If the
-         process was killed after the actions were performed, then we are in trouble, because the
-         actions are not necessarily idempotent.
+         same intent if it is killed. If the process was killed before any of the actions were
+         performed, then we are fine. If the process was killed after some of the actions were
+         performed, then we are in trouble, because the actions are not necessarily idempotent.
 
-         Some of the actions are clearly idempotent. For example, starting the activity recognition
-         API. For example, deleting a geofence. It might be easiest to convert the actions to be
-         idempotent, but that requires some careful work. TODO: Need to think through this carefully.
+         So the TransitionJournal records the actions that have completed, and whether the
+         transition is done. On redelivery, the completed actions are skipped, and a transition
+         that is done is not handled again.
          */
-        Log.d(this, TAG, "Launched connect to the google API client, returning from onStartCommand");
+        TrackerLog.d(this, TAG, "Launched connect to the google API client, returning from onStartCommand");
         return START_REDELIVER_INTENT;
     }
 
     public static String getState(Context ctxt) {
-        SharedPreferences sPrefs = PreferenceManager.getDefaultSharedPreferences(ctxt);
-        return sPrefs.getString(ctxt.getString(R.string.curr_state_key), ctxt.getString(R.string.state_start));
+        return TripDiaryStateStore.getInstance(ctxt).getState();
     }
 
-    public void setNewState(String newState) {
-        Log.d(this, TAG, "newState after handling action is "+newState);
-        SharedPreferences.Editor prefsEditor =
-                PreferenceManager.getDefaultSharedPreferences(this).edit();
-        prefsEditor.putString(this.getString(R.string.curr_state_key), newState);
-        prefsEditor.commit();
-        Log.d(this, TAG, "newState saved in prefManager is "+
-                PreferenceManager.getDefaultSharedPreferences(this).getString(
-                        this.getString(R.string.curr_state_key), "not found"));
+    public void setNewState(TransitionJournal journal, String newState) {
+        TrackerLog.d(this, TAG, () -> "newState after handling action is "+newState);
+        TripDiaryStateStore.getInstance(this).setState(newState);
+        journal.finish();
         mComm.setNewState(newState);
         stopSelf();
     }
@@ -126,8 +117,9 @@ public class TripDiaryStateMachineServiceOngoing extends Service {
      * to write a generic action that takes the google API call and the broadcast intent
      * as parameters, makes the call, and issues the broadcast in the callback
      */
-    private void handleAction(Context ctxt, String currState, String actionString) {
-        Log.d(this, TAG, "handleAction("+currState+", "+actionString+") called");
+    private void handleAction(Context ctxt, String currState, String actionString,
+                              TransitionJournal journal) {
+        TrackerLog.d(this, TAG, () -> "handleAction("+currState+", "+actionString+") called");
         assert(currState != null);
         // The current state is stored in the shared preferences, so on reboot, for example, we would
         // store that we are in ongoing_trip, but no listeners would be registered. We can have
@@ -141,107 +133,81 @@ public class TripDiaryStateMachineServiceOngoing extends Service {
         // - have initialize function as a reset, which stops any current stuff and starts the new one
         UserCacheFactory.getUserCache(ctxt).putSensorData(R.string.key_usercache_battery,
                 BatteryUtils.getBatteryInfo(ctxt));
-        if (actionString.equals(ctxt.getString(R.string.transition_initialize))) {
-            handleStart(ctxt, actionString);
-        } else if (currState.equals(ctxt.getString(R.string.state_start))) {
-            handleStart(ctxt, actionString);
-        } else if (currState.equals(ctxt.getString(R.string.state_waiting_for_trip_start))) {
-            handleWaitingForTripStart(ctxt, actionString);
-        } else if (currState.equals(ctxt.getString(R.string.state_ongoing_trip))) {
-            handleOngoing(ctxt, actionString);
-        } if (currState.equals(getString(R.string.state_tracking_stopped))) {
-            handleTrackingStopped(ctxt, actionString);
-        }
-    }
-
-    private void handleStart(Context ctxt, String actionString) {
-        Log.d(this, TAG, "TripDiaryStateMachineReceiver handleStarted(" + actionString + ") called");
-        // Get current location
-        if (actionString.equals(ctxt.getString(R.string.transition_initialize)) &&
-                !mCurrState.equals(ctxt.getString(R.string.state_tracking_stopped))) {
-            startEverything(ctxt, actionString);
-                    }
-        if (actionString.equals(ctxt.getString(R.string.transition_stop_tracking))) {
-            // Haven't started anything yet (that's why we are in the start state).
-            // just move to the stop tracking state
-            String newState = ctxt.getString(R.string.state_tracking_stopped);
-            setNewState(newState);
-                }
-        if (actionString.equals(ctxt.getString(R.string.transition_tracking_error))) {
-            /*
-            NotificationHelper.createNotification(ctxt, Constants.TRACKING_ERROR_ID,
-                    "Location tracking turned off. Please turn on for emission to work properly");
-                    */
-            Log.i(this, TAG, "Already in the start state, so going to stay there");
-        }
-        }
-
-    // Originally, when the location tracking options were fixed at compile time, we didn't really
-    // have to worry about this case. If we were not geofencing, then we would directly go to the
-    // ongoing state on initialize, and we ALWAYS initialized when we changed the config.
-    // But now, we could be in waiting for trip state when the user reconfigures, and now we
-    // get into trouble because we don't handle the transition. But we can certainly make this simple.
-    // If we start tracking, we start everything
-    // If we stop tracking, we stop everything
-    // For everything else, go to the ongoing state :)
-    private void handleWaitingForTripStart(final Context ctxt, final String actionString) {
-        if (actionString.equals(getString(R.string.transition_exited_geofence))) {
-            startEverything(ctxt, actionString);
-        } else if (actionString.equals(getString(R.string.transition_start_tracking))) {
-            startEverything(ctxt, actionString);
-        } else if (actionString.equals(ctxt.getString(R.string.transition_stop_tracking))) {
-            // Haven't started anything yet (that's why we are in the start state).
-            // just move to the stop tracking state
-            stopEverything(ctxt, getString(R.string.state_tracking_stopped));
-        } else if (actionString.equals(ctxt.getString(R.string.transition_tracking_error))) {
-            /*
-            NotificationHelper.createNotification(ctxt, Constants.TRACKING_ERROR_ID,
-                    "Location tracking turned off. Please turn on for emission to work properly");
-                    */
-            stopEverything(ctxt, getString(R.string.state_start));
-        } else {
-            stopEverything(ctxt, getString(R.string.state_tracking_stopped));
-        }
-    }
-
-    private void handleOngoing(Context ctxt, String actionString) {
-        if (actionString.equals(ctxt.getString(R.string.transition_stop_tracking))) {
-            stopEverything(ctxt, getString(R.string.state_tracking_stopped));
-        }
-        if (actionString.equals(ctxt.getString(R.string.transition_tracking_error))) {
-            /*
-            NotificationHelper.createNotification(ctxt, Constants.TRACKING_ERROR_ID,
-                    "Location tracking turned off. Please turn on for emission to work properly");
-                    */
-            stopEverything(ctxt, getString(R.string.state_start));
-        }
+        TripDiaryStateMachine.State state = TripDiaryStateMachine.getState(ctxt, currState);
+        TripDiaryStateMachine.Event event = TripDiaryStateMachine.getEvent(ctxt, actionString);
+        TripDiaryStateMachine.Edge<TripDiaryStateMachineServiceOngoing> edge = TRANSITIONS.lookup(state, event);
+        TrackerLog.d(this, TAG, () -> "handleAction("+currState+", "+actionString+") -> "+edge.getName());
+        edge.run(this, ctxt, actionString, journal);
     }
 
-    private void handleTrackingStopped(final Context ctxt, String actionString) {
-        Log.d(this, TAG, "TripDiaryStateMachineReceiver handleTrackingStopped(" + actionString + ") called");
-        if (actionString.equals(ctxt.getString(R.string.transition_start_tracking))) {
-            startEverything(ctxt, actionString);
-        }
-        if (actionString.equals(ctxt.getString(R.string.transition_tracking_error))) {
-            Log.i(this, TAG, "Tracking manually turned off, no need to prompt for location");
-        }
-    }
-
-    private void startEverything(final Context ctxt, String actionString) {
-        final List<Task<Void>> tokenList = new LinkedList<Task<Void>>();
-        tokenList.add(new LocationTrackingActions(ctxt).start());
-        tokenList.add(new ActivityRecognitionActions(ctxt).start());
-        // TODO: How to pass in the token list?
-        // Also, the callback is currently the same for all of them, but could potentially be
+    /*
+     * Originally, when the location tracking options were fixed at compile time, we didn't really
+     * have to worry about the waiting_for_trip_start state. If we were not geofencing, then we would
+     * directly go to the ongoing state on initialize, and we ALWAYS initialized when we changed the config.
+     * But now, we could be in waiting for trip state when the user reconfigures, and now we
+     * get into trouble because we don't handle the transition. But we can certainly make this simple.
+     * If we start tracking, we start everything
+     * If we stop tracking, we stop everything
+     * For everything else, go to the ongoing state :)
+     */
+    static final TripDiaryStateMachine.Table<TripDiaryStateMachineServiceOngoing> TRANSITIONS =
+            new TripDiaryStateMachine.Builder<TripDiaryStateMachineServiceOngoing>()
+            .onAnyState(TripDiaryStateMachine.Event.INITIALIZE, "start_everything",
+                    TripDiaryStateMachineServiceOngoing::startEverything)
+            // start
+            .on(TripDiaryStateMachine.State.START, TripDiaryStateMachine.Event.STOP_TRACKING,
+                    // Haven't started anything yet (that's why we are in the start state).
+                    // just move to the stop tracking state
+                    "stop_tracking", (service, ctxt, actionString, journal) -> service.setNewState(journal,
+                            ctxt.getString(R.string.state_tracking_stopped)))
+            .on(TripDiaryStateMachine.State.START, TripDiaryStateMachine.Event.TRACKING_ERROR,
+                    "stay_in_start", (service, ctxt, actionString, journal) ->
+                            TrackerLog.i(ctxt, TAG, "Already in the start state, so going to stay there"))
+            // waiting_for_trip_start
+            .on(TripDiaryStateMachine.State.WAITING_FOR_TRIP_START, TripDiaryStateMachine.Event.EXITED_GEOFENCE,
+                    "start_everything", TripDiaryStateMachineServiceOngoing::startEverything)
+            .on(TripDiaryStateMachine.State.WAITING_FOR_TRIP_START, TripDiaryStateMachine.Event.START_TRACKING,
+                    "start_everything", TripDiaryStateMachineServiceOngoing::startEverything)
+            .on(TripDiaryStateMachine.State.WAITING_FOR_TRIP_START, TripDiaryStateMachine.Event.STOP_TRACKING,
+                    "stop_everything", (service, ctxt, actionString, journal) -> service.stopEverything(
+                            ctxt, ctxt.getString(R.string.state_tracking_stopped), journal))
+            .on(TripDiaryStateMachine.State.WAITING_FOR_TRIP_START, TripDiaryStateMachine.Event.TRACKING_ERROR,
+                    "stop_everything_on_error", (service, ctxt, actionString, journal) -> service.stopEverything(
+                            ctxt, ctxt.getString(R.string.state_start), journal))
+            .otherwise(TripDiaryStateMachine.State.WAITING_FOR_TRIP_START, "stop_everything",
+                    (service, ctxt, actionString, journal) -> service.stopEverything(
+                            ctxt, ctxt.getString(R.string.state_tracking_stopped), journal))
+            // ongoing_trip
+            .on(TripDiaryStateMachine.State.ONGOING_TRIP, TripDiaryStateMachine.Event.STOP_TRACKING,
+                    "stop_everything", (service, ctxt, actionString, journal) -> service.stopEverything(
+                            ctxt, ctxt.getString(R.string.state_tracking_stopped), journal))
+            .on(TripDiaryStateMachine.State.ONGOING_TRIP, TripDiaryStateMachine.Event.TRACKING_ERROR,
+                    "stop_everything_on_error", (service, ctxt, actionString, journal) -> service.stopEverything(
+                            ctxt, ctxt.getString(R.string.state_start), journal))
+            // tracking_stopped
+            .on(TripDiaryStateMachine.State.TRACKING_STOPPED, TripDiaryStateMachine.Event.INITIALIZE,
+                    "none", (service, ctxt, actionString, journal) -> {})
+            .on(TripDiaryStateMachine.State.TRACKING_STOPPED, TripDiaryStateMachine.Event.START_TRACKING,
+                    "start_everything", TripDiaryStateMachineServiceOngoing::startEverything)
+            .on(TripDiaryStateMachine.State.TRACKING_STOPPED, TripDiaryStateMachine.Event.TRACKING_ERROR,
+                    "stay_stopped", (service, ctxt, actionString, journal) ->
+                            TrackerLog.i(ctxt, TAG, "Tracking manually turned off, no need to prompt for location"))
+            .build();
+
+    private void startEverything(final Context ctxt, String actionString, TransitionJournal journal) {
+        ActionSet actions = new ActionSet(ctxt, "start_everything", journal)
+                .add(ActionSet.LOCATION_TRACKING, () -> new LocationTrackingActions(ctxt).start())
+                .add(ActionSet.ACTIVITY_RECOGNITION, () -> new ActivityRecognitionActions(ctxt).start());
+        // The callback is currently the same for all of them, but could potentially be
         // different in the future once we add in failure handling because we may want to do
         // different things based on the different failure cases. If we don't do that, we should
-        // refactor the callback to a common class. and then we need to pass in the token list to it
-        // since it can't use the final variable
+        // refactor the callback to a common class.
         final Context fCtxt = ctxt;
-        Tasks.whenAllSuccess(tokenList).addOnCompleteListener(task -> {
+        actions.start().addOnSuccessListener(results -> {
                 String newState = fCtxt.getString(R.string.state_ongoing_trip);
-          if (task.isSuccessful()) {
-                    setNewState(newState);
+          // The location tracking start returns null if it cannot be started
+          if (results.isAllSuccessful() && results.isPresent(ActionSet.LOCATION_TRACKING)) {
+                    setNewState(journal, newState);
                     if (ConfigManager.getConfig(ctxt).isSimulateUserInteraction()) {
                     NotificationHelper.createNotification(fCtxt, STATE_IN_NUMBERS,
                             null, fCtxt.getString(R.string.success_moving_new_state, newState));
@@ -255,15 +221,16 @@ public class TripDiaryStateMachineServiceOngoing extends Service {
         });
     }
 
-    private void stopEverything(final Context ctxt, final String targetState) {
-        final List<Task<Void>> tokenList = new LinkedList<Task<Void>>();
-        tokenList.add(new LocationTrackingActions(ctxt).stop());
-        tokenList.add(new ActivityRecognitionActions(ctxt).stop());
+    private void stopEverything(final Context ctxt, final String targetState, TransitionJournal journal) {
+        TrackingEventPipeline.getInstance(ctxt).requestFlush();
+        ActionSet actions = new ActionSet(ctxt, "stop_everything", journal)
+                .add(ActionSet.LOCATION_TRACKING, () -> new LocationTrackingActions(ctxt).stop())
+                .add(ActionSet.ACTIVITY_RECOGNITION, () -> new ActivityRecognitionActions(ctxt).stop());
         final Context fCtxt = ctxt;
-        Tasks.whenAllSuccess(tokenList).addOnCompleteListener(task -> {
+        actions.start().addOnSuccessListener(results -> {
                 String newState = targetState;
-                if (task.isSuccessful()) {
-                    setNewState(newState);
+                if (results.isAllSuccessful()) {
+                    setNewState(journal, newState);
                     if (ConfigManager.getConfig(fCtxt).isSimulateUserInteraction()) {
                         NotificationHelper.createNotification(fCtxt, STATE_IN_NUMBERS,
                                 null, fCtxt.getString(R.string.success_moving_new_state, newState));
@@ -0,0 +1,370 @@
+package edu.berkeley.eecs.emission.cordova.tracker.location;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import edu.berkeley.eecs.emission.R;
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerExecutor;
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerLog;
+import edu.berkeley.eecs.emission.cordova.unifiedlogger.Log;
+
+/**
+ * Durable store for the current state of the trip diary state machine.
+ *
+ * The state used to be stored in the default shared preferences, and setNewState did a
+ * synchronous commit() (and read it back to log it) on every transition, on the main thread.
+ * Now, the current state is kept in memory, so getState() never touches the disk after the
+ * store has been loaded, and every change is appended to a small journal file.
+ *
+ * The append is a write() on the caller's thread. That only copies the line into the kernel, so
+ * it is cheap, and it is enough for the state to survive the process being killed. The fsync,
+ * which is needed to survive a power loss and which can take a while, happens on a background
+ * thread, and back to back changes share a single fsync. Once the journal has COMPACT_AFTER
+ * records, the background thread rewrites it with just the current state.
+ *
+ * A line is only valid if it is terminated with a newline, so a torn write at the end of the
+ * journal is ignored on load. If there is no journal (e.g. right after upgrading), we start from
+ * the state in the shared preferences. We also keep mirroring the state to the shared preferences
+ * with apply(), so that a downgrade does not lose it.
+ *
+ * Every change has a sequence number, which is written to the journal line and to the shared
+ * preferences with the state. On load, the journal only wins if its sequence number is newer:
+ * - the journal is newer if the process was killed before the apply() was written
+ * - the prefs are newer if the journal was lost
+ * - if they are the same, the prefs win, since an older version (after a downgrade) updates the
+ *   prefs state without touching the journal or the sequence number
+ *
+ * Code in the same process can listen for the saved states, or wait for a particular state with
+ * a timeout (awaitState/waitForState), instead of polling getState().
+ */
+public class TripDiaryStateStore {
+    private static final String TAG = "TripDiaryStateStore";
+
+    private static final String JOURNAL_NAME = "trip_diary_state.journal";
+    private static final String SEQ_KEY = "trip_diary_state_seq";
+    private static final int COMPACT_AFTER = 64;
+
+    private static TripDiaryStateStore sInstance = null;
+
+    private final Context mCtxt;
+    private final File mJournal;
+    private final ExecutorService mSyncExecutor = Executors.newSingleThreadExecutor();
+    private final List<StateListener> mListeners = new CopyOnWriteArrayList<StateListener>();
+
+    private String mCurrState;
+    private long mSeq = 0;
+    private FileOutputStream mOut = null;
+    private int mRecordCount = 0;
+    private boolean mSyncPending = false;
+
+    /*
+     * Called on the thread that saved the state (usually the main thread), so it must not block
+     */
+    public interface StateListener {
+        void onStateSaved(String oldState, String newState);
+    }
+
+    private TripDiaryStateStore(Context ctxt) {
+        mCtxt = ctxt.getApplicationContext();
+        mJournal = new File(mCtxt.getFilesDir(), JOURNAL_NAME);
+        load();
+    }
+
+    public static synchronized TripDiaryStateStore getInstance(Context ctxt) {
+        if (sInstance == null) {
+            sInstance = new TripDiaryStateStore(ctxt);
+        }
+        return sInstance;
+    }
+
+    public synchronized String getState() {
+        return mCurrState;
+    }
+
+    public void setState(String newState) {
+        String oldState;
+        synchronized (this) {
+            oldState = mCurrState;
+            save(newState);
+        }
+        // outside the lock, so that the listeners can read the state
+        for (StateListener listener : mListeners) {
+            listener.onStateSaved(oldState, newState);
+        }
+    }
+
+    public void addListener(StateListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(StateListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /*
+     * Runs onReached on the tracker executor once the state is targetState (right away if it
+     * already is), or onTimeout if that has not happened within the timeout. Exactly one of them
+     * is run.
+     */
+    public void awaitState(String targetState, long timeout, TimeUnit unit,
+                           Runnable onReached, Runnable onTimeout) {
+        StateWaiter waiter = new StateWaiter(targetState, onReached, onTimeout);
+        // register before checking, so that we don't miss a change in between
+        addListener(waiter);
+        if (targetState.equals(getState())) {
+            waiter.complete(true);
+            return;
+        }
+        waiter.scheduleTimeout(timeout, unit);
+    }
+
+    /*
+     * Blocking version of awaitState, for background threads. Returns true if the state was
+     * reached, and false if we timed out.
+     */
+    public boolean waitForState(String targetState, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicBoolean reached = new AtomicBoolean(false);
+        awaitState(targetState, timeout, unit, () -> {
+            reached.set(true);
+            latch.countDown();
+        }, latch::countDown);
+        latch.await();
+        return reached.get();
+    }
+
+    private void load() {
+        String journalState = null;
+        long journalSeq = -1;
+        if (mJournal.exists()) {
+            long validLength = 0;
+            long length = 0;
+            try (InputStream in = new BufferedInputStream(new FileInputStream(mJournal))) {
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                int c;
+                while ((c = in.read()) != -1) {
+                    length++;
+                    if (c == '\n') {
+                        String record = new String(line.toByteArray(), StandardCharsets.UTF_8);
+                        int sep = record.indexOf(' ');
+                        try {
+                            if (sep > 0) {
+                                journalSeq = Long.parseLong(record.substring(0, sep));
+                                journalState = record.substring(sep + 1);
+                                mRecordCount++;
+                            }
+                        } catch (NumberFormatException e) {
+                            Log.e(mCtxt, TAG, "Found invalid record " + record + " in state journal, skipping it");
+                        }
+                        line.reset();
+                        validLength = length;
+                    } else {
+                        line.write(c);
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(mCtxt, TAG, "Found error " + e + " reading state journal, falling back to prefs");
+                journalState = null;
+            }
+            if (validLength < length) {
+                // Drop the torn write, so that the next append starts on a new line
+                try (RandomAccessFile file = new RandomAccessFile(mJournal, "rw")) {
+                    file.setLength(validLength);
+                } catch (IOException e) {
+                    Log.e(mCtxt, TAG, "Found error " + e + " truncating state journal");
+                }
+            }
+        }
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mCtxt);
+        String prefsState = prefs.getString(mCtxt.getString(R.string.curr_state_key),
+                mCtxt.getString(R.string.state_start));
+        long prefsSeq = prefs.getLong(SEQ_KEY, -1);
+        // With the same seq and state, the prefs are just up to date, so we don't need to save
+        final boolean fromJournal = journalState != null && (journalSeq > prefsSeq ||
+                (journalSeq == prefsSeq && journalState.equals(prefsState)));
+        if (fromJournal) {
+            mCurrState = journalState;
+            mSeq = journalSeq;
+        } else {
+            // Bring the journal (and the seq in the prefs) up to date
+            mSeq = Math.max(journalSeq, prefsSeq);
+            synchronized (this) {
+                save(prefsState);
+            }
+        }
+        final int recordCount = mRecordCount;
+        TrackerLog.d(mCtxt, TAG, () -> "loaded state "+mCurrState+" (seq "+mSeq+") from "
+                +(fromJournal ? "journal" : "prefs")+", "+recordCount+" records");
+    }
+
+    // Must be called with the lock held
+    private void save(String newState) {
+        mCurrState = newState;
+        mSeq++;
+        append(mSeq, newState);
+        SharedPreferences.Editor prefsEditor =
+                PreferenceManager.getDefaultSharedPreferences(mCtxt).edit();
+        prefsEditor.putString(mCtxt.getString(R.string.curr_state_key), newState);
+        prefsEditor.putLong(SEQ_KEY, mSeq);
+        prefsEditor.apply();
+        scheduleSync();
+    }
+
+    private static byte[] record(long seq, String state) {
+        return (seq + " " + state + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Must be called with the lock held
+    private void append(long seq, String state) {
+        try {
+            if (mOut == null) {
+                mOut = new FileOutputStream(mJournal, true);
+            }
+            mOut.write(record(seq, state));
+            mRecordCount++;
+        } catch (IOException e) {
+            // The in-memory state and the prefs are still updated, so we only lose durability
+            Log.e(mCtxt, TAG, "Found error " + e + " appending " + state + " to state journal");
+            closeQuietly();
+        }
+    }
+
+    // Must be called with the lock held
+    private void scheduleSync() {
+        if (!mSyncPending) {
+            mSyncPending = true;
+            mSyncExecutor.execute(this::sync);
+        }
+    }
+
+    /*
+     * Runs on the sync thread, so it is serialized with compact(). An append can race with the
+     * fsync, but then it has scheduled another sync.
+     */
+    private void sync() {
+        FileOutputStream out;
+        boolean needsCompaction;
+        synchronized (this) {
+            mSyncPending = false;
+            out = mOut;
+            needsCompaction = mRecordCount >= COMPACT_AFTER;
+        }
+        if (out == null) {
+            return;
+        }
+        try {
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e(mCtxt, TAG, "Found error " + e + " syncing state journal");
+        }
+        if (needsCompaction) {
+            compact();
+        }
+    }
+
+    private void compact() {
+        String snapshot;
+        long snapshotSeq;
+        synchronized (this) {
+            snapshot = mCurrState;
+            snapshotSeq = mSeq;
+        }
+        File tmp = new File(mCtxt.getFilesDir(), JOURNAL_NAME + ".tmp");
+        try (FileOutputStream tmpOut = new FileOutputStream(tmp, false)) {
+            tmpOut.write(record(snapshotSeq, snapshot));
+            tmpOut.getFD().sync();
+        } catch (IOException e) {
+            Log.e(mCtxt, TAG, "Found error " + e + " compacting state journal, will retry");
+            return;
+        }
+        synchronized (this) {
+            if (!tmp.renameTo(mJournal)) {
+                Log.e(mCtxt, TAG, "Unable to rename compacted state journal, will retry");
+                return;
+            }
+            closeQuietly();
+            mRecordCount = 1;
+            // Anything appended since the snapshot went to the old file
+            if (snapshotSeq != mSeq) {
+                append(mSeq, mCurrState);
+                scheduleSync();
+            }
+        }
+        TrackerLog.d(mCtxt, TAG, () -> "compacted state journal to "+snapshot);
+    }
+
+    // Must be called with the lock held
+    private void closeQuietly() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // we are discarding the stream anyway
+            }
+            mOut = null;
+        }
+    }
+
+    private class StateWaiter implements StateListener {
+        private final String mTargetState;
+        private final Runnable mOnReached;
+        private final Runnable mOnTimeout;
+        private final AtomicBoolean mDone = new AtomicBoolean(false);
+        private ScheduledFuture<?> mTimeout = null;
+
+        StateWaiter(String targetState, Runnable onReached, Runnable onTimeout) {
+            this.mTargetState = targetState;
+            this.mOnReached = onReached;
+            this.mOnTimeout = onTimeout;
+        }
+
+        @Override
+        public void onStateSaved(String oldState, String newState) {
+            if (mTargetState.equals(newState)) {
+                complete(true);
+            }
+        }
+
+        synchronized void scheduleTimeout(long timeout, TimeUnit unit) {
+            if (!mDone.get()) {
+                mTimeout = TrackerExecutor.getInstance(mCtxt).schedule("await_state_timeout",
+                        () -> complete(false), timeout, unit);
+            }
+        }
+
+        void complete(boolean reached) {
+            if (!mDone.compareAndSet(false, true)) {
+                return;
+            }
+            removeListener(this);
+            synchronized (this) {
+                if (mTimeout != null) {
+                    mTimeout.cancel(false);
+                }
+            }
+            TrackerLog.d(mCtxt, TAG, () -> "await "+mTargetState+(reached ? " reached" : " timed out"));
+            TrackerExecutor.getInstance(mCtxt).execute("await_state",
+                    reached ? mOnReached : mOnTimeout);
+        }
+    }
+}
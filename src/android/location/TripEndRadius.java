@@ -0,0 +1,71 @@
+package edu.berkeley.eecs.emission.cordova.tracker.location;
+
+import java.util.Arrays;
+
+/**
+ * Radius for the trip end check, from the configured base, the accuracy of the recent points, and
+ * whether the most recent points look stationary for that accuracy.
+ *
+ * With the fixed radius, every point in the window has to be within TRIP_END_RADIUS of the newest
+ * point. That has two problems with accurate fixes:
+ * - slow movement (crawling through traffic, walking around a market) covers less than the radius
+ *   in the window, so it ends the trip
+ * - at a real stop, the points before the stop are usually further than the radius, so we have to
+ *   wait for almost the whole window of points at the stop
+ *
+ * So if a base radius is configured, we look at the points written in the last STILL_SECS. If they
+ * are all within ACCURACY_FACTOR times the 90th percentile accuracy of the newest point, they agree
+ * with being stopped, and we grow the radius by GROWTH_M, so that the approach to the stop can be
+ * part of the window. If they are not, we are still moving, however slowly, and we shrink the
+ * radius to the base plus ACCURACY_FACTOR times the accuracy, so that slow movement doesn't fit.
+ * (The accuracy is the 68% radius, and the distance between two stationary fixes is the
+ * difference of two errors, so ACCURACY_FACTOR covers a few stationary points most of the time.)
+ *
+ * With poor fixes, slow movement over STILL_SECS is within the noise, so we can't tell it from a
+ * stop. If ACCURACY_FACTOR times the accuracy is more than MAX_STILL_SPREAD_M, we use the fixed
+ * radius, as if the base were not configured. An earlier version scaled the radius with the
+ * accuracy in that case as well, which ended more of those trips early.
+ *
+ * Growing the radius ends a trip after fewer points at the stop, which also ends it at a short
+ * stop (e.g. waiting at a crossing for 2 - 3 mins) that the fixed radius would sit out. See
+ * tools/replay/README.md for the evaluation, which is why this is off by default.
+ *
+ * Pure java, so that the replay tool can use it as well.
+ */
+final class TripEndRadius {
+    private static final double ACCURACY_PERCENTILE = 0.9;
+    private static final double ACCURACY_FACTOR = 3;
+    // With fewer points, we don't know the distribution, so we use the fixed radius
+    private static final int MIN_SAMPLES = 3;
+    static final int STILL_SECS = 150;
+    private static final int MIN_STILL_POINTS = 3;
+    private static final double MAX_STILL_SPREAD_M = 30;
+    private static final int GROWTH_M = 50;
+
+    private TripEndRadius() {}
+
+    /*
+     * The first nAccuracies entries of accuracies are the accuracies of the last n points, and are
+     * sorted in place. stillSpread is the max distance of the points written in the last
+     * STILL_SECS from the newest point, and nStillPoints the number of those points (including the
+     * newest one).
+     * Returns fixedRadius if the base is 0 (i.e. turned off), if there are too few accuracies, or
+     * if they are too poor to tell slow movement from a stop.
+     */
+    static int compute(int baseRadius, int fixedRadius, float[] accuracies, int nAccuracies,
+                       double stillSpread, int nStillPoints) {
+        if (baseRadius <= 0 || nAccuracies < MIN_SAMPLES) {
+            return fixedRadius;
+        }
+        Arrays.sort(accuracies, 0, nAccuracies);
+        int idx = (int) Math.ceil(ACCURACY_PERCENTILE * nAccuracies) - 1;
+        double noiseRadius = ACCURACY_FACTOR * accuracies[idx];
+        if (noiseRadius > MAX_STILL_SPREAD_M) {
+            return fixedRadius;
+        }
+        if (nStillPoints >= MIN_STILL_POINTS && stillSpread <= noiseRadius) {
+            return fixedRadius + GROWTH_M;
+        }
+        return (int) Math.min(baseRadius + noiseRadius, fixedRadius);
+    }
+}
@@ -0,0 +1,268 @@
+package edu.berkeley.eecs.emission.cordova.tracker.location.actions;
+
+import android.content.Context;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerExecutor;
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerLog;
+
+/**
+ * The play services tasks for one transition, each under a name, combined into a single task.
+ *
+ * The state machine services used to put the tasks into a list, wait on
+ * Tasks.whenAllComplete(list) and then look at resultList.get(2) to find out whether, say, the
+ * location tracking had started. That depends on the order in which the tasks were added, and on
+ * which of the optional ones were added at all. Instead, every task is added under a Key, and the
+ * Results are looked up by the same key. A null task (e.g. if the geofence could not be created
+ * because we don't have a location) is recorded as not present, so the callers don't need to
+ * track that separately.
+ *
+ * The combined task completes when all the tasks have completed, or when the timeout expires.
+ * In the second case, Results.isTimedOut() is true and the tasks that had not completed are
+ * not successful, so the callers handle them like any other failure instead of waiting forever.
+ *
+ * cancel() fails the combined task with a CancellationException, so that success listeners are
+ * not called. It does not cancel the underlying play services calls, which don't support it.
+ *
+ * If the set has a Journal, every task that succeeds is marked as completed in it, and a task
+ * that is added through a TaskFactory is not created at all if the journal says that it has
+ * already completed (e.g. before the process was killed and the intent was redelivered). It is
+ * recorded as an already successful task instead.
+ *
+ * The number of sets that are waiting for their tasks can be read through getInFlightCount().
+ */
+public class ActionSet {
+    private static final String TAG = "ActionSet";
+
+    public static final Key<Void> GEOFENCE = new Key<Void>("geofence");
+    public static final Key<Void> OP_GEOFENCE = new Key<Void>("op_geofence");
+    public static final Key<Void> LOCATION_TRACKING = new Key<Void>("location_tracking");
+    public static final Key<Void> ACTIVITY_RECOGNITION = new Key<Void>("activity_recognition");
+
+    private static final long DEFAULT_TIMEOUT_SECS = 60;
+
+    private static final AtomicInteger sInFlight = new AtomicInteger(0);
+
+    private final Context mCtxt;
+    private final String mName;
+    private final Journal mJournal;
+    private final Map<Key<?>, Task<?>> mTasks = new LinkedHashMap<Key<?>, Task<?>>();
+    private final TaskCompletionSource<Results> mResult = new TaskCompletionSource<Results>();
+    private long mTimeoutSecs = DEFAULT_TIMEOUT_SECS;
+    private AtomicInteger mRemaining;
+    private ScheduledFuture<?> mTimeout = null;
+    private boolean mStarted = false;
+
+    public static final class Key<T> {
+        private final String mName;
+
+        public Key(String name) {
+            this.mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    /*
+     * Where the steps that have completed are recorded. A step is the name of the set and the
+     * name of the key, e.g. end_trip/geofence
+     */
+    public interface Journal {
+        boolean isCompleted(String step);
+        void markCompleted(String step);
+    }
+
+    public interface TaskFactory<T> {
+        Task<T> create();
+    }
+
+    public ActionSet(Context ctxt, String name) {
+        this(ctxt, name, null);
+    }
+
+    public ActionSet(Context ctxt, String name, Journal journal) {
+        this.mCtxt = ctxt;
+        this.mName = name;
+        this.mJournal = journal;
+    }
+
+    public static int getInFlightCount() {
+        return sInFlight.get();
+    }
+
+    /*
+     * A null task is recorded as not present
+     */
+    public synchronized <T> ActionSet add(Key<T> key, Task<T> task) {
+        if (mStarted) {
+            throw new IllegalStateException("Cannot add "+key+" to "+mName+" after it has started");
+        }
+        mTasks.put(key, task);
+        return this;
+    }
+
+    /*
+     * Only calls the factory if the step has not already completed
+     */
+    public synchronized <T> ActionSet add(Key<T> key, TaskFactory<T> factory) {
+        if (mJournal != null && mJournal.isCompleted(getStep(key))) {
+            TrackerLog.i(mCtxt, TAG, () -> getStep(key)+" already completed, skipping");
+            return add(key, Tasks.<T>forResult(null));
+        }
+        return add(key, factory.create());
+    }
+
+    /*
+     * Whether a (non-null) task has been added for the key
+     */
+    public synchronized boolean isPresent(Key<?> key) {
+        return mTasks.get(key) != null;
+    }
+
+    public synchronized ActionSet withTimeout(long timeout, TimeUnit unit) {
+        mTimeoutSecs = unit.toSeconds(timeout);
+        return this;
+    }
+
+    /*
+     * Returns the combined task. The listeners added to it are called on the main thread, like
+     * the listeners on the individual tasks used to be.
+     */
+    public synchronized Task<Results> start() {
+        mStarted = true;
+        int present = 0;
+        for (Task<?> task : mTasks.values()) {
+            if (task != null) {
+                present++;
+            }
+        }
+        sInFlight.incrementAndGet();
+        mRemaining = new AtomicInteger(present);
+        TrackerLog.d(mCtxt, TAG, () -> "started "+mName+" with "+mTasks.keySet()
+                +", "+sInFlight.get()+" sets in flight");
+        if (present == 0) {
+            finish(false);
+            return mResult.getTask();
+        }
+        mTimeout = TrackerExecutor.getInstance(mCtxt).schedule(mName + "_timeout",
+                () -> finish(true), mTimeoutSecs, TimeUnit.SECONDS);
+        for (Map.Entry<Key<?>, Task<?>> entry : mTasks.entrySet()) {
+            final String step = getStep(entry.getKey());
+            Task<?> task = entry.getValue();
+            if (task != null) {
+                task.addOnCompleteListener(t -> {
+                    if (mJournal != null && t.isSuccessful()) {
+                        mJournal.markCompleted(step);
+                    }
+                    if (mRemaining.decrementAndGet() == 0) {
+                        finish(false);
+                    }
+                });
+            }
+        }
+        return mResult.getTask();
+    }
+
+    public synchronized void cancel() {
+        if (mResult.trySetException(new CancellationException(mName + " cancelled"))) {
+            TrackerLog.i(mCtxt, TAG, () -> "cancelled "+mName);
+            onDone();
+        }
+    }
+
+    private synchronized void finish(boolean timedOut) {
+        final Results results = new Results(mTasks, timedOut);
+        if (mResult.trySetResult(results)) {
+            TrackerLog.d(mCtxt, TAG, () -> "finished "+mName+": "+results);
+            onDone();
+        }
+    }
+
+    private String getStep(Key<?> key) {
+        return mName + "/" + key.getName();
+    }
+
+    // Must be called with the lock held, exactly once
+    private void onDone() {
+        sInFlight.decrementAndGet();
+        if (mTimeout != null) {
+            mTimeout.cancel(false);
+        }
+    }
+
+    /*
+     * A snapshot of the tasks when the set finished, so a task that completes after the timeout
+     * does not change the results.
+     */
+    public static final class Results {
+        private final Map<Key<?>, Task<?>> mPresent = new LinkedHashMap<Key<?>, Task<?>>();
+        private final Map<Key<?>, Boolean> mSuccessful = new LinkedHashMap<Key<?>, Boolean>();
+        private final boolean mTimedOut;
+
+        private Results(Map<Key<?>, Task<?>> tasks, boolean timedOut) {
+            this.mTimedOut = timedOut;
+            for (Map.Entry<Key<?>, Task<?>> entry : tasks.entrySet()) {
+                Task<?> task = entry.getValue();
+                if (task != null) {
+                    mPresent.put(entry.getKey(), task);
+                    mSuccessful.put(entry.getKey(), task.isComplete() && task.isSuccessful());
+                }
+            }
+        }
+
+        public boolean isTimedOut() {
+            return mTimedOut;
+        }
+
+        public boolean isPresent(Key<?> key) {
+            return mPresent.containsKey(key);
+        }
+
+        /*
+         * False if the task was not present, had not completed or failed
+         */
+        public boolean isSuccessful(Key<?> key) {
+            Boolean successful = mSuccessful.get(key);
+            return successful != null && successful;
+        }
+
+        /*
+         * True if every task that was present was successful
+         */
+        public boolean isAllSuccessful() {
+            return !mSuccessful.containsValue(false);
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> T getResult(Key<T> key) {
+            return isSuccessful(key) ? ((Task<T>) mPresent.get(key)).getResult() : null;
+        }
+
+        public Exception getException(Key<?> key) {
+            Task<?> task = mPresent.get(key);
+            return task == null || !task.isComplete() ? null : task.getException();
+        }
+
+        @Override
+        public String toString() {
+            return "Results{" + mSuccessful + (mTimedOut ? ", timed out" : "") + "}";
+        }
+    }
+}
@@ -9,8 +9,9 @@ import com.google.android.gms.tasks.Task;
 
 import edu.berkeley.eecs.emission.cordova.tracker.ConfigManager;
 import edu.berkeley.eecs.emission.cordova.tracker.location.TripDiaryStateMachineForegroundService;
-import edu.berkeley.eecs.emission.cordova.unifiedlogger.Log;
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerLog;
 import edu.berkeley.eecs.emission.cordova.tracker.location.ActivityRecognitionChangeIntentService;
+import edu.berkeley.eecs.emission.cordova.tracker.location.TrackingEventPipeline;
 
 /**
  * Created by shankari on 12/31/14.
@@ -29,23 +30,31 @@ public class ActivityRecognitionActions {
     }
 
     public Task<Void> start() {
-        Log.d(mCtxt, TAG, "Starting activity recognition with interval = "+ACTIVITY_DETECTION_INTERVAL);
+        TrackerLog.d(mCtxt, TAG, () -> "Starting activity recognition with interval = "+ACTIVITY_DETECTION_INTERVAL);
         return ActivityRecognition.getClient(mCtxt).requestActivityUpdates(
                 ACTIVITY_DETECTION_INTERVAL,
                 getActivityRecognitionPendingIntent(mCtxt));
     }
 
     public static PendingIntent getActivityRecognitionPendingIntent(Context ctxt) {
-        Intent innerIntent = new Intent(ctxt, ActivityRecognitionChangeIntentService.class);
 		/*
 		 * Setting FLAG_UPDATE_CURRENT so that sending the PendingIntent again updates the original.
 		 * We only want to have one geofence active at one point of time.
 		 */
+        return TripDiaryStateMachineForegroundService.getPipelinePendingIntent(ctxt,
+                TrackingEventPipeline.ACTION_ACTIVITY_UPDATE);
+    }
+
+    private static PendingIntent getLegacyActivityRecognitionPendingIntent(Context ctxt) {
+        Intent innerIntent = new Intent(ctxt, ActivityRecognitionChangeIntentService.class);
         return TripDiaryStateMachineForegroundService.getProperPendingIntent(ctxt, innerIntent);
     }
 
     public Task<Void> stop() {
-        Log.d(mCtxt, TAG, "Stopping activity recognition with interval = "+ACTIVITY_DETECTION_INTERVAL);
+        TrackerLog.d(mCtxt, TAG, () -> "Stopping activity recognition with interval = "+ACTIVITY_DETECTION_INTERVAL);
+        // Best effort cleanup of the updates requested by older versions
+        ActivityRecognition.getClient(mCtxt).removeActivityUpdates(
+                getLegacyActivityRecognitionPendingIntent(mCtxt));
         return ActivityRecognition.getClient(mCtxt).removeActivityUpdates(
                 getActivityRecognitionPendingIntent(mCtxt));
     }
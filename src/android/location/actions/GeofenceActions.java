@@ -13,6 +13,7 @@ import edu.berkeley.eecs.emission.cordova.tracker.ConfigManager;
 import edu.berkeley.eecs.emission.cordova.tracker.location.TripDiaryStateMachineForegroundService;
 import edu.berkeley.eecs.emission.cordova.unifiedlogger.NotificationHelper;
 import edu.berkeley.eecs.emission.cordova.tracker.wrapper.LocationTrackingConfig;
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerLog;
 import edu.berkeley.eecs.emission.cordova.unifiedlogger.Log;
 
 import edu.berkeley.eecs.emission.cordova.usercache.UserCache;
@@ -37,6 +38,7 @@ import org.json.JSONObject;
 import org.json.JSONArray;
 
 import edu.berkeley.eecs.emission.cordova.tracker.location.GeofenceExitIntentService;
+import edu.berkeley.eecs.emission.cordova.tracker.location.TrackingEventPipeline;
 
 /**
  * Created by shankari on 12/30/14.
@@ -76,19 +78,19 @@ public class GeofenceActions {
     public Task<Void> create() {
         try {
         Location mLastLocation = Tasks.await(LocationServices.getFusedLocationProviderClient(mCtxt).getLastLocation(), 30, TimeUnit.SECONDS);
-        Log.d(mCtxt, TAG, "Last location would have been " + mLastLocation +" if we hadn't reset it");
+        TrackerLog.d(mCtxt, TAG, () -> "Last location would have been " + mLastLocation +" if we hadn't reset it");
         if (isValidLocation(mCtxt, mLastLocation)) {
-            Log.d(mCtxt, TAG, "Last location is " + mLastLocation + " using it");
+            TrackerLog.d(mCtxt, TAG, () -> "Last location is " + mLastLocation + " using it");
             return createGeofenceAtLocation(mLastLocation);
         } else {
             Log.w(mCtxt, TAG, "mLastLocationTime = null, launching callback to read it and then" +
                     "create the geofence");
             Location newLoc = readAndReturnCurrentLocation();
             if (newLoc != null) {
-                Log.d(mCtxt, TAG, "New last location is " + newLoc + " using it");
+                TrackerLog.d(mCtxt, TAG, () -> "New last location is " + newLoc + " using it");
                 return createGeofenceAtLocation(newLoc);
             } else {
-                Log.d(mCtxt, TAG, "Was not able to read new location, skipping geofence creation");
+                TrackerLog.d(mCtxt, TAG, "Was not able to read new location, skipping geofence creation");
                 return null;
             }
         }
@@ -102,7 +104,7 @@ public class GeofenceActions {
     }
 
     private Task<Void> createGeofenceAtLocation(Location currLoc)  throws SecurityException {
-        Log.d(mCtxt, TAG, "creating geofence at location " + currLoc);
+        TrackerLog.d(mCtxt, TAG, () -> "creating geofence at location " + currLoc);
         try {
             JSONObject jo = new JSONObject();
             jo.put("type", "Point");
@@ -130,7 +132,7 @@ public class GeofenceActions {
         LocalBroadcastManager.getInstance(mCtxt).registerReceiver(new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                Log.i(mCtxt, TAG, "recieved broadcast intent "+intent);
+                TrackerLog.i(mCtxt, TAG, () -> "recieved broadcast intent "+intent);
                 synchronized(GeofenceActions.this) {
                     GeofenceActions.this.newLastLocation = intent.getParcelableExtra(GeofenceLocationIntentService.INTENT_RESULT_KEY);
                     GeofenceActions.this.notify();
@@ -145,21 +147,21 @@ public class GeofenceActions {
         try {
             Tasks.await(locationReadingTask, 1L, TimeUnit.MINUTES);
             // no exception means this call was successful
-            Log.d(mCtxt, TAG, "Successfully started tracking location, about to start waiting for location update");
+            TrackerLog.d(mCtxt, TAG, "Successfully started tracking location, about to start waiting for location update");
         } catch (InterruptedException | ExecutionException | TimeoutException e) {
             Log.w(mCtxt, TAG, "Error "+e.getLocalizedMessage()+"while getting location, returning null ");
             return null;
         }
         synchronized (this) {
             try {
-                Log.d(mCtxt, TAG, "About to start waiting for location");
+                TrackerLog.d(mCtxt, TAG, "About to start waiting for location");
                 this.wait(10 * 60 * 1000); // 10 minutes * 60 secs * 1000 milliseconds
                 // If we stop the location tracking in the broadcast listener, before the notify, we can run into races
                 // in which the notify has happened before we start waiting, which means that we wait forever.
                 // Putting the stop in here means that we will continue to notify until the message is received
                 // which should be safe.
                 LocationServices.getFusedLocationProviderClient(mCtxt).removeLocationUpdates(geofenceLocationIntent);
-                Log.d(mCtxt, TAG, "After waiting for location reading result, location is " + this.newLastLocation);
+                TrackerLog.d(mCtxt, TAG, () -> "After waiting for location reading result, location is " + this.newLastLocation);
                 return this.newLastLocation;
             } catch (InterruptedException e) {
                 LocationServices.getFusedLocationProviderClient(mCtxt).removeLocationUpdates(geofenceLocationIntent);
@@ -177,7 +179,7 @@ public class GeofenceActions {
         }
         LocationTrackingConfig cfg = ConfigManager.getConfig(mCtxt);
         if (testLoc.getAccuracy() > cfg.getAccuracyThreshold()) {
-            Log.i(mCtxt, TAG, "testLoc.getAccuracy "+testLoc.getAccuracy()+
+            TrackerLog.i(mCtxt, TAG, () -> "testLoc.getAccuracy "+testLoc.getAccuracy()+
                     " > " + cfg.getAccuracyThreshold() + " isValidLocation = false");
             return false; // too inaccurate. Note that a high accuracy number means a larger radius
             // of validity which effectively means a low accuracy
@@ -186,12 +188,12 @@ public class GeofenceActions {
         int fiveMins = 5 * 60 * 1000;
         // testLoc is before now, so now - testLoc will be positive, and we check it against 5 mins
         if ((System.currentTimeMillis() - testLoc.getTime()) > fiveMins) {
-            Log.i(mCtxt, TAG, "testLoc.getTime() = "+ new Date(testLoc.getTime()) +
+            TrackerLog.i(mCtxt, TAG, () -> "testLoc.getTime() = "+ new Date(testLoc.getTime()) +
                     " testLoc.oldness "+(testLoc.getTime() - System.currentTimeMillis()) +
                     " > " + fiveMins * 60 + " isValidLocation = false");
             return false; // too old
         }
-        Log.i(mCtxt, TAG, "isValidLocation = true. Yay!");
+        TrackerLog.i(mCtxt, TAG, "isValidLocation = true. Yay!");
         return true;
     }
 
@@ -235,7 +237,7 @@ public class GeofenceActions {
      * Called from the previous create() call.
      */
     public GeofencingRequest createGeofenceRequest(double lat, double lng) {
-        Log.d(mCtxt, TAG, "creating geofence at location "+lat+", "+lng);
+        TrackerLog.d(mCtxt, TAG, () -> "creating geofence at location "+lat+", "+lng);
         LocationTrackingConfig cfg = ConfigManager.getConfig(this.mCtxt);
         Geofence currGeofence =
                 new Geofence.Builder().setRequestId(GEOFENCE_REQUEST_ID)
@@ -251,23 +253,31 @@ public class GeofenceActions {
     }
 
     public Task<Void> remove() {
-        Log.d(mCtxt, TAG, "Removing geofence with ID = "+GEOFENCE_REQUEST_ID);
+        TrackerLog.d(mCtxt, TAG, () -> "Removing geofence with ID = "+GEOFENCE_REQUEST_ID);
         /*
          * remove using pending intent instead of ID to ensure that we delete
          * only the entry for this app
          * https://github.com/e-mission/e-mission-docs/issues/774#issuecomment-1221468502
          * https://github.com/e-mission/e-mission-docs/issues/774#issuecomment-1221476351
          */
+        // Best effort cleanup of the geofences created by older versions
+        LocationServices.getGeofencingClient(mCtxt).removeGeofences(
+                getLegacyGeofenceExitPendingIntent(mCtxt));
         return LocationServices.getGeofencingClient(mCtxt).removeGeofences(
                 getGeofenceExitPendingIntent(mCtxt));
     }
 
     public static PendingIntent getGeofenceExitPendingIntent(Context ctxt) {
-        Intent innerIntent = new Intent(ctxt, GeofenceExitIntentService.class);
 		/*
 		 * Setting FLAG_UPDATE_CURRENT so that sending the PendingIntent again updates the original.
 		 * We only want to have one geofence active at one point of time.
 		 */
+		return TripDiaryStateMachineForegroundService.getPipelinePendingIntent(ctxt,
+				TrackingEventPipeline.ACTION_GEOFENCE_EXIT);
+    }
+
+    private static PendingIntent getLegacyGeofenceExitPendingIntent(Context ctxt) {
+        Intent innerIntent = new Intent(ctxt, GeofenceExitIntentService.class);
 		return TripDiaryStateMachineForegroundService.getProperPendingIntent(ctxt, innerIntent);
     }
 
@@ -13,6 +13,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerLog;
 import edu.berkeley.eecs.emission.cordova.unifiedlogger.Log;
 
 /**
@@ -30,19 +31,19 @@ public class GeofenceLocationIntentService extends IntentService {
 
     @Override
     public void onCreate() {
-        Log.d(this, TAG, "onCreate called");
+        TrackerLog.d(this, TAG, "onCreate called");
         super.onCreate();
     }
 
     @Override
     public int onStartCommand(Intent i, int flags, int startId) {
-        Log.d(this, TAG, "onStart called with "+i+" startId "+startId);
+        TrackerLog.d(this, TAG, () -> "onStart called with "+i+" startId "+startId);
         return super.onStartCommand(i, flags, startId);
     }
 
     @Override
     public void onDestroy() {
-        Log.d(this, TAG, "onDestroy called");
+        TrackerLog.d(this, TAG, "onDestroy called");
         super.onDestroy();
     }
 
@@ -51,16 +52,16 @@ public class GeofenceLocationIntentService extends IntentService {
 		/*
 		 * The intent is called when we get a location update.
 		 */
-        Log.d(this, TAG, "FINALLY! Got location update, intent is "+intent);
-        Log.d(this, TAG, "Extras bundle = "+ Objects.requireNonNull(intent.getExtras()).toString());
+        TrackerLog.d(this, TAG, () -> "FINALLY! Got location update, intent is "+intent);
+        TrackerLog.d(this, TAG, () -> "Extras bundle = "+ Objects.requireNonNull(intent.getExtras()).toString());
 
         Object[] extraKeys = intent.getExtras().keySet().toArray();
-        Log.d(this, TAG, "Extras keys are "+ Arrays.toString(extraKeys));
+        TrackerLog.d(this, TAG, () -> "Extras keys are "+ Arrays.toString(extraKeys));
         Object[] extraValues = new Object[extraKeys.length];
         for (int i = 0; i < extraKeys.length; i++) {
             extraValues[i] = intent.getExtras().get((String)extraKeys[i]);
         }
-        Log.d(this, TAG, "Extras values are "+ Arrays.toString(extraValues));
+        TrackerLog.d(this, TAG, () -> "Extras values are "+ Arrays.toString(extraValues));
 
         Location loc = null;
 
@@ -71,14 +72,16 @@ public class GeofenceLocationIntentService extends IntentService {
 
           for (Location currLoc : locList) {
             if (GeofenceActions.isValidLocation(this, currLoc)) {
-              Log.d(this, TAG, "Found most recent valid location = "+loc);
+              TrackerLog.d(this, TAG, () -> "Found most recent valid location = "+currLoc);
               loc = currLoc;
               break;
             }
           }
         }
 
-        Log.d(this, TAG, "Read location "+loc+" from intent");
+        if (TrackerLog.isDebugEnabled()) {
+            Log.d(this, TAG, "Read location "+loc+" from intent");
+        }
 
 		/*
 		It seems that newer version of Google Play will send along an intent that does not have the
@@ -91,9 +94,9 @@ public class GeofenceLocationIntentService extends IntentService {
         if (loc == null) {
             if (LocationAvailability.hasLocationAvailability(intent)) {
                 LocationAvailability locationAvailability = LocationAvailability.extractLocationAvailability(intent);
-                Log.d(this, TAG, "availability = "+locationAvailability.isLocationAvailable());
+                TrackerLog.d(this, TAG, () -> "availability = "+locationAvailability.isLocationAvailable());
                 if (!locationAvailability.isLocationAvailable()) {
-                    Log.d(this, TAG, "location is not available, broadcast null result");
+                    TrackerLog.d(this, TAG, "location is not available, broadcast null result");
                     broadcastLoc(null);
                 }
             }  else {
@@ -105,7 +108,9 @@ public class GeofenceLocationIntentService extends IntentService {
         // TODO: Remove this if statement since we have already checked for validity earlier
         if (GeofenceActions.isValidLocation(this, loc)) {
             // notify something
-            Log.d(this, TAG, "location is valid, broadcast it "+loc);
+            if (TrackerLog.isDebugEnabled()) {
+                Log.d(this, TAG, "location is valid, broadcast it "+loc);
+            }
             broadcastLoc(loc);
         }
     }
@@ -113,7 +118,7 @@ public class GeofenceLocationIntentService extends IntentService {
     private void broadcastLoc(Location loc) {
         Intent answerIntent = new Intent(INTENT_NAME);
         answerIntent.putExtra(INTENT_RESULT_KEY, loc);
-        Log.i(this, TAG, "broadcasting intent "+answerIntent);
+        TrackerLog.i(this, TAG, () -> "broadcasting intent "+answerIntent);
         LocalBroadcastManager.getInstance(this).sendBroadcast(answerIntent);
     }
 }
@@ -5,8 +5,10 @@ import android.content.Context;
 import android.content.Intent;
 
 import edu.berkeley.eecs.emission.cordova.tracker.ConfigManager;
+import edu.berkeley.eecs.emission.cordova.tracker.location.AdaptiveSamplingController;
 import edu.berkeley.eecs.emission.cordova.tracker.location.TripDiaryStateMachineForegroundService;
 import edu.berkeley.eecs.emission.cordova.tracker.wrapper.LocationTrackingConfig;
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerLog;
 import edu.berkeley.eecs.emission.cordova.unifiedlogger.Log;
 
 import com.google.android.gms.location.LocationRequest;
@@ -14,6 +16,7 @@ import com.google.android.gms.location.LocationServices;
 import com.google.android.gms.tasks.Task;
 
 import edu.berkeley.eecs.emission.cordova.tracker.location.LocationChangeIntentService;
+import edu.berkeley.eecs.emission.cordova.tracker.location.TrackingEventPipeline;
 
 /**
  * Created by shankari on 12/30/14.
@@ -29,8 +32,22 @@ public class LocationTrackingActions {
     }
 
     public Task<Void> start() {
+        // Every trip starts at filter_time
+        AdaptiveSamplingController.getInstance().reset();
+        return requestUpdates();
+    }
+
+    /*
+     * Re-issues the request with the current interval. Since we use the same pending intent,
+     * this replaces the existing request.
+     */
+    public Task<Void> updateInterval() {
+        return requestUpdates();
+    }
+
+    private Task<Void> requestUpdates() {
         try {
-        Log.d(mCtxt, TAG, "requesting location updates" + getLocationRequest());
+        TrackerLog.d(mCtxt, TAG, () -> "requesting location updates" + getLocationRequest());
         return LocationServices.getFusedLocationProviderClient(mCtxt).requestLocationUpdates(
                 getLocationRequest(),
                 getLocationTrackingPendingIntent(mCtxt));
@@ -43,25 +60,43 @@ public class LocationTrackingActions {
     public LocationRequest getLocationRequest() {
         LocationTrackingConfig cfg = ConfigManager.getConfig(this.mCtxt);
         LocationRequest defaultRequest = LocationRequest.create();
-        Log.d(mCtxt, TAG, "default request is " + defaultRequest);
+        TrackerLog.d(mCtxt, TAG, () -> "default request is " + defaultRequest);
+        int interval = cfg.isAdaptiveSampling() ?
+            AdaptiveSamplingController.getInstance().getInterval(cfg.getFilterTime(),
+                cfg.getAdaptiveMaxFilterTime()) : cfg.getFilterTime();
         LocationRequest modifiedRequest = defaultRequest
-                .setInterval(cfg.getFilterTime())
+                .setInterval(interval)
                 .setPriority(cfg.getAccuracy());
-        Log.d(mCtxt, TAG, "after applying config, value is "+modifiedRequest);
+        if (cfg.getMaxWaitTime() > 0) {
+            // Let play services batch the fixes, and deliver them together, at most
+            // max_wait_time after the first one. It only batches if this is at least twice the
+            // interval.
+            modifiedRequest.setMaxWaitTime(cfg.getMaxWaitTime());
+        }
+        TrackerLog.d(mCtxt, TAG, () -> "after applying config, value is "+modifiedRequest);
         return modifiedRequest;
     }
 
     public Task<Void> stop() {
+        // Best effort cleanup of the updates requested by older versions, which were sent
+        // directly to the intent service instead of the pipeline
+        LocationServices.getFusedLocationProviderClient(mCtxt).removeLocationUpdates(
+                getLegacyLocationTrackingPendingIntent(mCtxt));
         return LocationServices.getFusedLocationProviderClient(mCtxt).removeLocationUpdates(
                 getLocationTrackingPendingIntent(mCtxt));
         }
 
     public static PendingIntent getLocationTrackingPendingIntent(Context ctxt) {
-        Intent innerIntent = new Intent(ctxt, LocationChangeIntentService.class);
 		/*
 		 * Setting FLAG_UPDATE_CURRENT so that sending the PendingIntent again updates the original.
 		 * We only want to receive one location at one point of time.
 		 */
+		return TripDiaryStateMachineForegroundService.getPipelinePendingIntent(ctxt,
+				TrackingEventPipeline.ACTION_LOCATION_UPDATE);
+    }
+
+    private static PendingIntent getLegacyLocationTrackingPendingIntent(Context ctxt) {
+        Intent innerIntent = new Intent(ctxt, LocationChangeIntentService.class);
 		return TripDiaryStateMachineForegroundService.getProperPendingIntent(ctxt, innerIntent);
     }
 
@@ -24,15 +24,14 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.Arrays;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import edu.berkeley.eecs.emission.cordova.tracker.Constants;
 import edu.berkeley.eecs.emission.cordova.tracker.ExplicitIntent;
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerExecutor;
 import edu.berkeley.eecs.emission.cordova.tracker.location.TripDiaryStateMachineService;
 import edu.berkeley.eecs.emission.cordova.tracker.location.actions.LocationTrackingActions;
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerLog;
 import edu.berkeley.eecs.emission.cordova.unifiedlogger.Log;
 import edu.berkeley.eecs.emission.cordova.unifiedlogger.NotificationHelper;
 
@@ -72,9 +71,9 @@ public class SensorControlBackgroundChecker {
     public static void restartFSMIfStartState(Context ctxt) {
         String START_STATE = ctxt.getString(R.string.state_start);
         String currState = TripDiaryStateMachineService.getState(ctxt);
-        Log.i(ctxt, TAG, "in restartFSMIfStartState, currState = "+currState);
+        TrackerLog.i(ctxt, TAG, () -> "in restartFSMIfStartState, currState = "+currState);
         if (START_STATE.equals(currState)) {
-            Log.i(ctxt, TAG, "in start state, sending initialize");
+            TrackerLog.i(ctxt, TAG, "in start state, sending initialize");
             ctxt.sendBroadcast(new ExplicitIntent(ctxt, R.string.transition_initialize));
         }
     }
@@ -87,8 +86,8 @@ public class SensorControlBackgroundChecker {
           LocationSettingsResponse response = resultTask.getResult(ApiException.class);
           // All location settings are satisfied. The client can initialize location
           // requests here.
-          Log.i(ctxt, TAG, "All settings are valid, checking current state");
-          Log.i(ctxt, TAG, "Current location settings are "+response);
+          TrackerLog.i(ctxt, TAG, "All settings are valid, checking current state");
+          TrackerLog.i(ctxt, TAG, () -> "Current location settings are "+response);
 
           // Now that we know that the location settings are correct, we start the permission checks
       boolean[] allOtherChecks = new boolean[]{
@@ -112,24 +111,26 @@ public class SensorControlBackgroundChecker {
       }
 
       if (allOtherChecksPass) {
-            Log.d(ctxt, TAG, "All settings valid, nothing to prompt");
+            TrackerLog.d(ctxt, TAG, "All settings valid, nothing to prompt");
         restartFSMIfStartState(ctxt);
       }
       else if (allOtherChecks[0] && allOtherChecks[1]) {
-            Log.i(ctxt, TAG, "all checks = "+allOtherChecksPass+" but location permission status  "+allOtherChecks[0]+" should be true "+
-          " so one of the non-location checks must be false: loc permission, ignore optimization, motion permission, notification" + Arrays.toString(allOtherChecks));
-        Log.i(ctxt, TAG, "a non-local check failed, generating only user visible notification");
+            if (TrackerLog.isInfoEnabled()) {
+              Log.i(ctxt, TAG, "all checks = "+allOtherChecksPass+" but location permission status  "+allOtherChecks[0]+" should be true "+
+            " so one of the non-location checks must be false: loc permission, ignore optimization, motion permission, notification" + Arrays.toString(allOtherChecks));
+            }
+        TrackerLog.i(ctxt, TAG, "a non-local check failed, generating only user visible notification");
         generateOpenAppSettingsNotification(ctxt);
       }
       else {
-            Log.i(ctxt, TAG, "location settings are valid, but location permission is not, generating tracking error and visible notification");
-            Log.i(ctxt, TAG, "curr status check results = " +
+            TrackerLog.i(ctxt, TAG, "location settings are valid, but location permission is not, generating tracking error and visible notification");
+            TrackerLog.i(ctxt, TAG, () -> "curr status check results = " +
             " loc permission, ignore optimization, motion permission, notification"+ Arrays.toString(allOtherChecks));
             ctxt.sendBroadcast(new ExplicitIntent(ctxt, R.string.transition_tracking_error));
         generateOpenAppSettingsNotification(ctxt);
         }
           } catch (ApiException exception) {
-          Log.i(ctxt, TAG, "location settings are invalid, generating tracking error and visible notification");
+          TrackerLog.i(ctxt, TAG, "location settings are invalid, generating tracking error and visible notification");
           ctxt.sendBroadcast(new ExplicitIntent(ctxt, R.string.transition_tracking_error));
             generateOpenAppSettingsNotification(ctxt);
             }
@@ -145,13 +146,14 @@ public class SensorControlBackgroundChecker {
            * doesn't say anything about which thread to call it from. What about
            * generateOpenAppSettingsNotification? Nothing in the NotificationManager indicates that
            * it needs to run on the UI thread either.
+           *
+           * We used to create a new single thread executor for every check, and never shut it
+           * down, so we now schedule on the shared tracker executor instead.
            */
-        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
-
-        executor.schedule(() -> {
+        TrackerExecutor.getInstance(ctxt).schedule("check_unused_apps_unrestricted", () -> {
           if (!SensorControlChecks.checkUnusedAppsUnrestricted(ctxt)) {
-            Log.i(ctxt, TAG, "all current settings and permissions are probably valid, but could be reset later");
-            Log.i(ctxt, TAG, "don't generate a tracking error right now, but let's ask the user to avoid the reset ");
+            TrackerLog.i(ctxt, TAG, "all current settings and permissions are probably valid, but could be reset later");
+            TrackerLog.i(ctxt, TAG, "don't generate a tracking error right now, but let's ask the user to avoid the reset ");
             generateOpenAppSettingsNotification(ctxt);
           }
         }, 1, TimeUnit.MINUTES);
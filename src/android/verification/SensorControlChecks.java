@@ -34,6 +34,7 @@ import java.util.concurrent.ExecutionException;
 import edu.berkeley.eecs.emission.cordova.tracker.Constants;
 import edu.berkeley.eecs.emission.cordova.tracker.ExplicitIntent;
 import edu.berkeley.eecs.emission.cordova.tracker.location.actions.LocationTrackingActions;
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerLog;
 import edu.berkeley.eecs.emission.cordova.unifiedlogger.Log;
 import edu.berkeley.eecs.emission.cordova.unifiedlogger.NotificationHelper;
 
@@ -42,15 +43,15 @@ public class SensorControlChecks {
 
     public static void checkLocationSettings(final Context ctxt,
                                              OnCompleteListener<LocationSettingsResponse> callback) {
-        Log.i(ctxt, TAG, "About to check location settings");
+        TrackerLog.i(ctxt, TAG, "About to check location settings");
         LocationRequest request = new LocationTrackingActions(ctxt).getLocationRequest();
-        Log.d(ctxt, TAG, "Checking location settings for request "+request);
+        TrackerLog.d(ctxt, TAG, () -> "Checking location settings for request "+request);
         LocationSettingsRequest.Builder builder = new LocationSettingsRequest.Builder()
           .addLocationRequest(request);
 
         Task<LocationSettingsResponse> task =
           LocationServices.getSettingsClient(ctxt).checkLocationSettings(builder.build());
-        Log.d(ctxt, TAG, "Got back result "+task);
+        TrackerLog.d(ctxt, TAG, () -> "Got back result "+task);
         task.addOnCompleteListener(callback);
     }
 
@@ -106,9 +107,9 @@ public class SensorControlChecks {
   public static boolean checkUnusedAppsUnrestricted(final Context ctxt) {
       ListenableFuture<Integer> future = PackageManagerCompat.getUnusedAppRestrictionsStatus(ctxt);
     try {
-      Log.i(ctxt, TAG, "About to call future.get to read the restriction status");
+      TrackerLog.i(ctxt, TAG, "About to call future.get to read the restriction status");
       Integer appRestrictionStatus = future.get();
-      Log.i(ctxt, TAG, "Received "+appRestrictionStatus+" from future.get");
+      TrackerLog.i(ctxt, TAG, () -> "Received "+appRestrictionStatus+" from future.get");
       switch(appRestrictionStatus) {
         case UnusedAppRestrictionsConstants.ERROR: return false;
         case UnusedAppRestrictionsConstants.FEATURE_NOT_AVAILABLE: return true;
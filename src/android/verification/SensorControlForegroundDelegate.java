@@ -4,6 +4,7 @@ import edu.berkeley.eecs.emission.R;
 
 
 import edu.berkeley.eecs.emission.cordova.tracker.Constants;
+import edu.berkeley.eecs.emission.cordova.tracker.TrackerLog;
 import edu.berkeley.eecs.emission.cordova.unifiedlogger.Log;
 
 
@@ -83,7 +84,7 @@ public class SensorControlForegroundDelegate {
         boolean ssrrb = false;
         for (String cp: currPermissions){
           boolean css = ActivityCompat.shouldShowRequestPermissionRationale(cordova.getActivity(), cp);
-          Log.d(cordova.getActivity(), TAG, "For permission "+cp+" shouldShowRequest = " + css);
+          TrackerLog.d(cordova.getActivity(), TAG, () -> "For permission "+cp+" shouldShowRequest = " + css);
           ssrrb |= css;
         }
         return ssrrb;
@@ -91,8 +92,8 @@ public class SensorControlForegroundDelegate {
 
       void requestPermission() {
         shouldShowRequestRationaleBefore = shouldShowRequestForCurrPermissions();
-        Log.d(cordova.getActivity(), TAG,
-          String.format("After iterating over all entries in %s shouldShowRequest = %s", currPermissions, shouldShowRequestRationaleBefore));
+        TrackerLog.d(cordova.getActivity(), TAG,
+          () -> String.format("After iterating over all entries in %s shouldShowRequest = %s", currPermissions, shouldShowRequestRationaleBefore));
         if (openAppSettings) {
           SensorControlForegroundDelegate.this.openAppSettingsPage(cordovaCallback, permissionStatusConstant);
         } else if (permissionStatusConstant == SensorControlConstants.IGNORE_BATTERY_OPTIMIZATIONS) {
@@ -113,7 +114,7 @@ public class SensorControlForegroundDelegate {
           return;
         }
         boolean shouldShowRequestRationaleAfter = shouldShowRequestForCurrPermissions();
-        Log.d(cordova.getActivity(), TAG, "In permission prompt, error callback,"+
+        TrackerLog.d(cordova.getActivity(), TAG, () -> "In permission prompt, error callback,"+
             " before = "+shouldShowRequestRationaleBefore+" after = "+shouldShowRequestRationaleAfter);
         // see the issue for more details
         // https://github.com/e-mission/e-mission-docs/issues/680#issuecomment-958438153
@@ -183,11 +184,11 @@ public class SensorControlForegroundDelegate {
             LocationSettingsResponse response = resultTask.getResult(ApiException.class);
             // All location settings are satisfied. The client can initialize location
             // requests here.
-            Log.i(currActivity, TAG, "All settings are valid, checking current state");
-            Log.i(currActivity, TAG, "Current location settings are "+response.getLocationSettingsStates());
+            TrackerLog.i(currActivity, TAG, "All settings are valid, checking current state");
+            TrackerLog.i(currActivity, TAG, () -> "Current location settings are "+response.getLocationSettingsStates());
             cordovaCallback.success(Objects.requireNonNull(response.getLocationSettingsStates()).toString());
           } catch (ApiException exception) {
-            Log.i(currActivity, TAG, "Settings are not valid, returning "+exception.getMessage());
+            TrackerLog.i(currActivity, TAG, () -> "Settings are not valid, returning "+exception.getMessage());
             cordovaCallback.error(exception.getLocalizedMessage());
           }
         });
@@ -200,15 +201,15 @@ public class SensorControlForegroundDelegate {
           LocationSettingsResponse response = resultTask.getResult(ApiException.class);
           // All location settings are satisfied. The client can initialize location
           // requests here.
-          Log.i(currActivity, TAG, "All settings are valid, checking current state");
+          TrackerLog.i(currActivity, TAG, "All settings are valid, checking current state");
           JSONObject lssJSON = statesToJSON(response.getLocationSettingsStates());
-          Log.i(currActivity, TAG, "Current location settings are "+lssJSON);
+          TrackerLog.i(currActivity, TAG, () -> "Current location settings are "+lssJSON);
           SensorControlBackgroundChecker.restartFSMIfStartState(cordova.getActivity());
           callbackContext.success(lssJSON);
         } catch (ApiException exception) {
           switch (exception.getStatusCode()) {
             case LocationSettingsStatusCodes.RESOLUTION_REQUIRED:
-              Log.i(currActivity, TAG, "location settings are not valid, but could be fixed by showing the user a dialog");
+              TrackerLog.i(currActivity, TAG, "location settings are not valid, but could be fixed by showing the user a dialog");
               // Location settings are not satisfied. But could be fixed by showing the
               // user a dialog.
               try {
@@ -227,11 +228,11 @@ public class SensorControlForegroundDelegate {
             case LocationSettingsStatusCodes.SETTINGS_CHANGE_UNAVAILABLE:
               // Location settings are not satisfied. However, we have no way to fix the
               // settings so we won't show the dialog.
-              Log.i(currActivity, TAG, "location settings are not valid, but cannot be fixed by showing a dialog");
+              TrackerLog.i(currActivity, TAG, "location settings are not valid, but cannot be fixed by showing a dialog");
               openLocationSettingsPage(callbackContext);
               break;
             default:
-              Log.i(currActivity, TAG, "unknown error reading location");
+              TrackerLog.i(currActivity, TAG, "unknown error reading location");
               openLocationSettingsPage(callbackContext);
           }
         } catch (JSONException e) {
@@ -362,11 +363,11 @@ public class SensorControlForegroundDelegate {
         if (Build.VERSION.SDK_INT >= (Build.VERSION_CODES.R)) { 
           String msgString = " FINE LOC = "+cordova.hasPermission(SensorControlConstants.LOCATION_PERMISSION)+
             " BACKGROUND LOC "+ cordova.hasPermission(SensorControlConstants.BACKGROUND_LOC_PERMISSION);
-          Log.i(cordova.getActivity(), TAG, msgString);
+          TrackerLog.i(cordova.getActivity(), TAG, () -> msgString);
           
           if (ActivityCompat.shouldShowRequestPermissionRationale(cordova.getActivity(), SensorControlConstants.BACKGROUND_LOC_PERMISSION) && 
               !ActivityCompat.shouldShowRequestPermissionRationale(cordova.getActivity(), SensorControlConstants.LOCATION_PERMISSION)) {
-              Log.i(cordova.getActivity(), TAG, "Has neither, request both!");
+              TrackerLog.i(cordova.getActivity(), TAG, "Has neither, request both!");
               this.cordovaCallback = cordovaCallback;
               this.permissionChecker = getPermissionChecker(
                 SensorControlConstants.LOCATION_INTERMEDIARY,
@@ -376,7 +377,7 @@ public class SensorControlForegroundDelegate {
               this.permissionChecker.requestPermission();
               return;
             } else {
-              Log.i(cordova.getActivity(), TAG, "User has denied previous requests, just show app settings!");
+              TrackerLog.i(cordova.getActivity(), TAG, "User has denied previous requests, just show app settings!");
               // Go to the dialog first, which then sends them to the app settings.
               beforeAppSettingsDialog(cordovaCallback, SensorControlConstants.ENABLE_BOTH_PERMISSION);
               return;
@@ -385,7 +386,7 @@ public class SensorControlForegroundDelegate {
         if(!cordova.hasPermission(SensorControlConstants.LOCATION_PERMISSION) &&
           (Build.VERSION.SDK_INT == Build.VERSION_CODES.Q) &&
           !cordova.hasPermission(SensorControlConstants.BACKGROUND_LOC_PERMISSION)) {
-          Log.i(cordova.getActivity(), TAG, "Both permissions missing, requesting both");
+          TrackerLog.i(cordova.getActivity(), TAG, "Both permissions missing, requesting both");
           this.cordovaCallback = cordovaCallback;
           this.permissionChecker = getPermissionChecker(
             SensorControlConstants.ENABLE_BOTH_PERMISSION,
@@ -396,8 +397,8 @@ public class SensorControlForegroundDelegate {
           return;
         }
         if(!cordova.hasPermission(SensorControlConstants.LOCATION_PERMISSION)) {
-            Log.i(cordova.getActivity(), TAG, "before call shouldShowRequestPermissionRationale = "+ ActivityCompat.shouldShowRequestPermissionRationale(cordova.getActivity(), SensorControlConstants.LOCATION_PERMISSION));
-            Log.i(cordova.getActivity(), TAG, "Only location permission missing, requesting it");
+            TrackerLog.i(cordova.getActivity(), TAG, () -> "before call shouldShowRequestPermissionRationale = "+ ActivityCompat.shouldShowRequestPermissionRationale(cordova.getActivity(), SensorControlConstants.LOCATION_PERMISSION));
+            TrackerLog.i(cordova.getActivity(), TAG, "Only location permission missing, requesting it");
             this.cordovaCallback = cordovaCallback;
             this.permissionChecker = getPermissionChecker(
               SensorControlConstants.ENABLE_LOCATION_PERMISSION,
@@ -408,7 +409,7 @@ public class SensorControlForegroundDelegate {
             return;
         }
         if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && !cordova.hasPermission(SensorControlConstants.BACKGROUND_LOC_PERMISSION)) {
-            Log.i(cordova.getActivity(), TAG, "Only background permission missing, requesting it");
+            TrackerLog.i(cordova.getActivity(), TAG, "Only background permission missing, requesting it");
             this.cordovaCallback = cordovaCallback;
             this.permissionChecker = getPermissionChecker(
               SensorControlConstants.ENABLE_BACKGROUND_LOC_PERMISSION,
@@ -422,13 +423,13 @@ public class SensorControlForegroundDelegate {
 
     public void checkAndPromptBluetoothScanPermissions(CallbackContext cordovaCallback) {
       if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.S){
-        Log.d(cordova.getActivity(), TAG, "Older build version than API 31, return success!");
+        TrackerLog.d(cordova.getActivity(), TAG, "Older build version than API 31, return success!");
         cordovaCallback.success();
       } else if (cordova.hasPermission(SensorControlConstants.BLUETOOTH_SCAN)){
-        Log.d(cordova.getActivity(), TAG, "User has already enabled bluetooth scan!");
+        TrackerLog.d(cordova.getActivity(), TAG, "User has already enabled bluetooth scan!");
         cordovaCallback.success();
       } else {
-        Log.d(cordova.getActivity(), TAG, "User has not enabled bluetooth scan, requesting now...");
+        TrackerLog.d(cordova.getActivity(), TAG, "User has not enabled bluetooth scan, requesting now...");
         this.cordovaCallback = cordovaCallback;
         this.permissionChecker = getPermissionChecker(
           SensorControlConstants.ENABLE_BLUETOOTH_SCAN,
@@ -454,8 +455,8 @@ public class SensorControlForegroundDelegate {
         SensorControlBackgroundChecker.restartFSMIfStartState(cordova.getActivity());
         cordovaCallback.success();
       } else {
-        Log.i(cordova.getActivity(), TAG, "before call shouldShowRequestPermissionRationale = "+ ActivityCompat.shouldShowRequestPermissionRationale(cordova.getActivity(), SensorControlConstants.MOTION_ACTIVITY_PERMISSION));
-        Log.i(cordova.getActivity(), TAG, "Motion activity permission missing, requesting it");
+        TrackerLog.i(cordova.getActivity(), TAG, () -> "before call shouldShowRequestPermissionRationale = "+ ActivityCompat.shouldShowRequestPermissionRationale(cordova.getActivity(), SensorControlConstants.MOTION_ACTIVITY_PERMISSION));
+        TrackerLog.i(cordova.getActivity(), TAG, "Motion activity permission missing, requesting it");
         this.cordovaCallback = cordovaCallback;
         this.permissionChecker = getPermissionChecker(
           SensorControlConstants.ENABLE_MOTION_ACTIVITY_PERMISSION,
@@ -481,7 +482,7 @@ public class SensorControlForegroundDelegate {
       SensorControlBackgroundChecker.restartFSMIfStartState(cordova.getActivity());
       cordovaCallback.success();
     } else {
-      Log.i(cordova.getActivity(), TAG, "Notifications not enabled, opening app page");
+      TrackerLog.i(cordova.getActivity(), TAG, "Notifications not enabled, opening app page");
       // TODO: switch to Settings.ACTION_APP_NOTIFICATION_SETTINGS instead of the app page
       // once our min SDK goes up to oreo
       openAppSettingsPage(cordovaCallback, SensorControlConstants.ENABLE_NOTIFICATIONS);
@@ -493,7 +494,7 @@ public class SensorControlForegroundDelegate {
       if(unpaused) {
         cordovaCallback.success();
       } else {
-        Log.i(cordova.getActivity(), TAG, "Notifications paused, asking user to report");
+        TrackerLog.i(cordova.getActivity(), TAG, "Notifications paused, asking user to report");
         cordovaCallback.error(cordova.getActivity().getString(R.string.notifications_paused));
       }
   }
@@ -503,7 +504,7 @@ public class SensorControlForegroundDelegate {
     if (unrestricted) {
       cordovaCallback.success();
     } else {
-      Log.i(cordova.getActivity(), TAG, "Unused apps restricted, asking user to unrestrict");
+      TrackerLog.i(cordova.getActivity(), TAG, "Unused apps restricted, asking user to unrestrict");
       cordovaCallback.error(cordova.getActivity().getString(R.string.unused_apps_restricted));
     }
   }
@@ -515,7 +516,7 @@ public class SensorControlForegroundDelegate {
       SensorControlBackgroundChecker.restartFSMIfStartState(cordova.getActivity());
       cordovaCallback.success();
     } else {
-      Log.i(cordova.getActivity(), TAG, "Unused apps restricted, asking user to unrestrict");
+      TrackerLog.i(cordova.getActivity(), TAG, "Unused apps restricted, asking user to unrestrict");
       this.cordovaCallback = cordovaCallback;
       cordova.setActivityResultCallback(plugin);
       Intent intent = IntentCompat.createManageUnusedAppRestrictionsIntent(cordova.getActivity(), cordova.getActivity().getPackageName());
@@ -528,7 +529,7 @@ public class SensorControlForegroundDelegate {
     if (unoptimized) {
       cordovaCallback.success();
     } else {
-      Log.i(cordova.getActivity(), TAG, "Battery optimizations enforced, asking user to ignore");
+      TrackerLog.i(cordova.getActivity(), TAG, "Battery optimizations enforced, asking user to ignore");
       cordovaCallback.error(cordova.getActivity().getString(R.string.unused_apps_restricted));
     }
   }
@@ -588,15 +589,15 @@ public class SensorControlForegroundDelegate {
     }
 
     public void onNewIntent(Intent intent) {
-      Log.i(cordova.getActivity(), TAG, "onNewIntent("+intent+") received, ignoring");
+      TrackerLog.i(cordova.getActivity(), TAG, () -> "onNewIntent("+intent+") received, ignoring");
     }
 
     public void onRequestPermissionResult(int requestCode, String[] permissions,
                                           int[] grantResults) throws JSONException
     {
-        Log.i(cordova.getActivity(), TAG, "onRequestPermissionResult called with "+requestCode);
-        Log.i(cordova.getActivity(), TAG, "permissions are "+ Arrays.toString(permissions));
-        Log.i(cordova.getActivity(), TAG, "grantResults are "+Arrays.toString(grantResults));
+        TrackerLog.i(cordova.getActivity(), TAG, () -> "onRequestPermissionResult called with "+requestCode);
+        TrackerLog.i(cordova.getActivity(), TAG, () -> "permissions are "+ Arrays.toString(permissions));
+        TrackerLog.i(cordova.getActivity(), TAG, () -> "grantResults are "+Arrays.toString(grantResults));
 
         /*
          Let us figure out if we want to sent a javascript callback with the error.
@@ -617,7 +618,7 @@ public class SensorControlForegroundDelegate {
         switch(requestCode)
         {
           case SensorControlConstants.ENABLE_BOTH_PERMISSION:
-            Log.i(cordova.getActivity(), TAG, "in callback shouldShowRequestPermissionRationale = "+ ActivityCompat.shouldShowRequestPermissionRationale(cordova.getActivity(), SensorControlConstants.LOCATION_PERMISSION));
+            TrackerLog.i(cordova.getActivity(), TAG, () -> "in callback shouldShowRequestPermissionRationale = "+ ActivityCompat.shouldShowRequestPermissionRationale(cordova.getActivity(), SensorControlConstants.LOCATION_PERMISSION));
             if ((grantResults[0] == PackageManager.PERMISSION_GRANTED) &&
               (grantResults[1] == PackageManager.PERMISSION_GRANTED)) {
               SensorControlBackgroundChecker.restartFSMIfStartState(cordova.getActivity());
@@ -649,11 +650,11 @@ public class SensorControlForegroundDelegate {
                   // Covers weird error where SensorControlConstants.ENABLE_BACKGROUND_LOC_PERMISSION will get called again after an
                   // initial intended call. The second erroneous call creates an error because grantResults = [], causing an array 
                   // out of bounds error, so just return.
-                  Log.i(cordova.getActivity(), TAG, "/d/as/das/dsadas/d/as/das/d/asd/as/d/asd/as/d/as Weird error happened! /d/as/das/dsadas/d/as/das/d/asd/as/d/asd/as/d/as");
+                  TrackerLog.i(cordova.getActivity(), TAG, "/d/as/das/dsadas/d/as/das/d/asd/as/d/asd/as/d/as Weird error happened! /d/as/das/dsadas/d/as/das/d/asd/as/d/asd/as/d/as");
                   return;
                 } else if (grantResults[0] == PackageManager.PERMISSION_GRANTED) {
                   // Set up for potential background location permissions request
-                  Log.i(cordova.getActivity(), TAG, "");
+                  TrackerLog.i(cordova.getActivity(), TAG, "");
                   this.cordovaCallback = cordovaCallback;
                   this.permissionChecker = getPermissionChecker(
                     SensorControlConstants.ENABLE_BACKGROUND_LOC_PERMISSION,
@@ -667,12 +668,12 @@ public class SensorControlForegroundDelegate {
                 }
                 break;
             case SensorControlConstants.ENABLE_BLUETOOTH_SCAN:
-                Log.d(cordova.getActivity(), TAG, "Got return for bluetooth scanning permission...");
+                TrackerLog.d(cordova.getActivity(), TAG, "Got return for bluetooth scanning permission...");
                 if (grantResults[0] == PackageManager.PERMISSION_GRANTED) {
-                  Log.d(cordova.getActivity(), TAG, "Bluetooth scanning is allowed!");
+                  TrackerLog.d(cordova.getActivity(), TAG, "Bluetooth scanning is allowed!");
                   cordovaCallback.success();
                 } else if (grantResults[0] == PackageManager.PERMISSION_DENIED) {
-                  Log.d(cordova.getActivity(), TAG, "Bluetooth scanning is not allowed!");
+                  TrackerLog.d(cordova.getActivity(), TAG, "Bluetooth scanning is not allowed!");
                   this.permissionChecker.generateErrorCallback();
                 }
                 this.permissionChecker = null;
@@ -687,13 +688,13 @@ public class SensorControlForegroundDelegate {
     cordova.setActivityResultCallback(null);
     switch (requestCode) {
       case SensorControlConstants.ENABLE_LOCATION_SETTINGS:
-        Log.d(mAct, TAG, requestCode + " is our code, handling callback");
+        TrackerLog.d(mAct, TAG, () -> requestCode + " is our code, handling callback");
         final LocationSettingsStates states = LocationSettingsStates.fromIntent(data);
-        Log.d(cordova.getActivity(), TAG, "at this point, isLocationUsable = " + (states != null && states.isLocationUsable()));
+        TrackerLog.d(cordova.getActivity(), TAG, () -> "at this point, isLocationUsable = " + (states != null && states.isLocationUsable()));
         switch (resultCode) {
           case Activity.RESULT_OK:
             // All required changes were successfully made
-            Log.i(cordova.getActivity(), TAG, "All changes successfully made, reinitializing");
+            TrackerLog.i(cordova.getActivity(), TAG, "All changes successfully made, reinitializing");
             try {
               SensorControlBackgroundChecker.restartFSMIfStartState(cordova.getActivity());
               cordovaCallback.success(statesToJSON(states));
@@ -702,7 +703,7 @@ public class SensorControlForegroundDelegate {
             }
             break;
           case Activity.RESULT_CANCELED:
-            Log.i(cordova.getActivity(), TAG, "request " + requestCode + " cancelled, failing");
+            TrackerLog.i(cordova.getActivity(), TAG, () -> "request " + requestCode + " cancelled, failing");
             cordova.setActivityResultCallback(null);
             cordovaCallback.error(cordova.getActivity().getString(R.string.user_rejected_setting));
             break;
@@ -713,15 +714,15 @@ public class SensorControlForegroundDelegate {
         }
         break;
       case SensorControlConstants.ENABLE_LOCATION_SETTINGS_MANUAL:
-        Log.d(mAct, TAG, requestCode + " is our code, handling callback");
+        TrackerLog.d(mAct, TAG, () -> requestCode + " is our code, handling callback");
         // this will call the callback with success or error
         checkLocationSettings(cordovaCallback);
         break;
       case SensorControlConstants.ENABLE_BOTH_PERMISSION:
       case SensorControlConstants.ENABLE_LOCATION_PERMISSION:
       case SensorControlConstants.ENABLE_BACKGROUND_LOC_PERMISSION:
-        Log.d(mAct, TAG, requestCode + " is our code, handling callback");
-        Log.d(mAct, TAG, "Got permission callback from launching app settings when prompt failed");
+        TrackerLog.d(mAct, TAG, () -> requestCode + " is our code, handling callback");
+        TrackerLog.d(mAct, TAG, "Got permission callback from launching app settings when prompt failed");
         if (SensorControlChecks.checkLocationPermissions(cordova.getActivity())) {
           SensorControlBackgroundChecker.restartFSMIfStartState(cordova.getActivity());
           cordovaCallback.success();
@@ -736,8 +737,8 @@ public class SensorControlForegroundDelegate {
         }
         break;
       case SensorControlConstants.ENABLE_MOTION_ACTIVITY_PERMISSION:
-        Log.d(mAct, TAG, requestCode + " is our code, handling callback");
-        Log.d(mAct, TAG, "Got permission callback from launching app settings");
+        TrackerLog.d(mAct, TAG, () -> requestCode + " is our code, handling callback");
+        TrackerLog.d(mAct, TAG, "Got permission callback from launching app settings");
         if (SensorControlChecks.checkMotionActivityPermissions(cordova.getActivity())) {
           SensorControlBackgroundChecker.restartFSMIfStartState(cordova.getActivity());
           cordovaCallback.success();
@@ -747,8 +748,8 @@ public class SensorControlForegroundDelegate {
         permissionChecker = null;
         break;
       case SensorControlConstants.ENABLE_NOTIFICATIONS:
-        Log.d(mAct, TAG, requestCode + " is our code, handling callback");
-        Log.d(mAct, TAG, "Got notification callback from launching app settings");
+        TrackerLog.d(mAct, TAG, () -> requestCode + " is our code, handling callback");
+        TrackerLog.d(mAct, TAG, "Got notification callback from launching app settings");
         if (SensorControlChecks.checkNotificationsEnabled(cordova.getActivity())) {
           SensorControlBackgroundChecker.restartFSMIfStartState(cordova.getActivity());
           cordovaCallback.success();
@@ -757,8 +758,8 @@ public class SensorControlForegroundDelegate {
         }
         break;
       case SensorControlConstants.REMOVE_UNUSED_APP_RESTRICTIONS:
-        Log.d(mAct, TAG, requestCode + " is our code, handling callback");
-        Log.d(mAct, TAG, "Got unused app restrictions callback from launching app settings");
+        TrackerLog.d(mAct, TAG, () -> requestCode + " is our code, handling callback");
+        TrackerLog.d(mAct, TAG, "Got unused app restrictions callback from launching app settings");
         AsyncTask.execute(new Runnable() {
           @Override
           public void run() {
@@ -772,8 +773,8 @@ public class SensorControlForegroundDelegate {
         });
         break;
       case SensorControlConstants.IGNORE_BATTERY_OPTIMIZATIONS:
-        Log.d(mAct, TAG, requestCode + " is our code, handling callback");
-        Log.d(mAct, TAG, "Got ignore battery optimization callback from launching optimization page");
+        TrackerLog.d(mAct, TAG, () -> requestCode + " is our code, handling callback");
+        TrackerLog.d(mAct, TAG, "Got ignore battery optimization callback from launching optimization page");
         AsyncTask.execute(new Runnable() {
           @Override
           public void run() {
@@ -786,18 +787,18 @@ public class SensorControlForegroundDelegate {
           }
         });
       case SensorControlConstants.ENABLE_BLUETOOTH_SCAN:
-        Log.d(mAct, TAG, requestCode + " is our code, handling callback");
-        Log.d(mAct, TAG, "Got bluetooth callback from launching app settings");
+        TrackerLog.d(mAct, TAG, () -> requestCode + " is our code, handling callback");
+        TrackerLog.d(mAct, TAG, "Got bluetooth callback from launching app settings");
         if (cordova.hasPermission(SensorControlConstants.BLUETOOTH_SCAN)) {
-          Log.d(mAct, TAG, "Bluetooth permissions are allowed after settings page opened!");
+          TrackerLog.d(mAct, TAG, "Bluetooth permissions are allowed after settings page opened!");
           cordovaCallback.success();
         } else {
-          Log.d(mAct, TAG, "Bluetooth permissions are NOT allowed after settings page opened!");
+          TrackerLog.d(mAct, TAG, "Bluetooth permissions are NOT allowed after settings page opened!");
           cordovaCallback.error("Please enable \'Nearby devices\' permission to use the scanner.");
         }
         break;
       default:
-        Log.d(cordova.getActivity(), TAG, "Got unsupported request code " + requestCode + " , ignoring...");
+        TrackerLog.d(cordova.getActivity(), TAG, () -> "Got unsupported request code " + requestCode + " , ignoring...");
     }
   }
 }
@@ -3,10 +3,21 @@ package edu.berkeley.eecs.emission.cordova.tracker.wrapper;
 import android.content.Intent;
 import android.os.BatteryManager;
 
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
 /**
  * Created by shankari on 3/27/16.
  */
+@JsonAdapter(Battery.GsonAdapter.class)
 public class Battery {
+    // For gson
+    private Battery() {}
+
     public Battery(Intent batteryChangedIntent) {
         int android_level = batteryChangedIntent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
         int android_scale = batteryChangedIntent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
@@ -56,4 +67,46 @@ public class Battery {
     private int android_temperature;
     private int android_voltage;
     private double ts;
+
+    /*
+     * The fields are in the order that reflective gson used to write them (sorted by name on
+     * android) so that the JSON is unchanged. See JsonFields.
+     */
+    static final class GsonAdapter extends TypeAdapter<Battery> {
+        @Override
+        public void write(JsonWriter out, Battery b) throws IOException {
+            out.beginObject();
+            out.name("android_health").value(b.android_health);
+            out.name("android_plugged").value(b.android_plugged);
+            out.name("android_technology").value(b.android_technology);
+            out.name("android_temperature").value(b.android_temperature);
+            out.name("android_voltage").value(b.android_voltage);
+            JsonFields.writeFloat(out, "battery_level_pct", b.battery_level_pct);
+            out.name("battery_status").value(b.battery_status);
+            JsonFields.writeDouble(out, "ts", b.ts);
+            out.endObject();
+        }
+
+        @Override
+        public Battery read(JsonReader in) throws IOException {
+            Battery b = new Battery();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                switch (name) {
+                    case "android_health": b.android_health = JsonFields.nextString(in); break;
+                    case "android_plugged": b.android_plugged = JsonFields.nextString(in); break;
+                    case "android_technology": b.android_technology = JsonFields.nextString(in); break;
+                    case "android_temperature": b.android_temperature = JsonFields.nextInt(in, b.android_temperature); break;
+                    case "android_voltage": b.android_voltage = JsonFields.nextInt(in, b.android_voltage); break;
+                    case "battery_level_pct": b.battery_level_pct = JsonFields.nextFloat(in, b.battery_level_pct); break;
+                    case "battery_status": b.battery_status = JsonFields.nextInt(in, b.battery_status); break;
+                    case "ts": b.ts = JsonFields.nextDouble(in, b.ts); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return b;
+        }
+    }
 }
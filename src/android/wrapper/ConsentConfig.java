@@ -1,8 +1,16 @@
 package edu.berkeley.eecs.emission.cordova.tracker.wrapper;
 
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
 /**
  * Created by shankari on 7/25/16.
  */
+@JsonAdapter(ConsentConfig.GsonAdapter.class)
 public class ConsentConfig {
     public ConsentConfig() {
         this.category = null;
@@ -27,4 +35,36 @@ public class ConsentConfig {
     private String category;
     private String protocol_id;
     private String approval_date;
+
+    /*
+     * The fields are in the order that reflective gson used to write them (sorted by name on
+     * android) so that the JSON is unchanged. See JsonFields.
+     */
+    static final class GsonAdapter extends TypeAdapter<ConsentConfig> {
+        @Override
+        public void write(JsonWriter out, ConsentConfig c) throws IOException {
+            out.beginObject();
+            out.name("approval_date").value(c.approval_date);
+            out.name("category").value(c.category);
+            out.name("protocol_id").value(c.protocol_id);
+            out.endObject();
+        }
+
+        @Override
+        public ConsentConfig read(JsonReader in) throws IOException {
+            ConsentConfig c = new ConsentConfig();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                switch (name) {
+                    case "approval_date": c.approval_date = JsonFields.nextString(in); break;
+                    case "category": c.category = JsonFields.nextString(in); break;
+                    case "protocol_id": c.protocol_id = JsonFields.nextString(in); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return c;
+        }
+    }
 }
@@ -0,0 +1,119 @@
+package edu.berkeley.eecs.emission.cordova.tracker.wrapper;
+
+/**
+ * Allocation-free distance computations between two lat/lng pairs, in meters.
+ *
+ * Location.distanceBetween needs a float[] for the result and always runs the iterative Vincenty
+ * inverse solution, even though almost all of our distances (trip end and duplicate checks)
+ * are well under a kilometer. So we have two modes:
+ *
+ * - fast: treats the ellipsoid as locally flat around the mean latitude, using the WGS84 meridian
+ *   and prime vertical radii of curvature. For distances under 1 km and latitudes within +/- 85
+ *   degrees, this is within 1 mm of Location.distanceBetween (most of which is the float rounding
+ *   of the Location result). The error grows roughly with the square of the distance (~15 cm at
+ *   10 km), so don't use it for long distances.
+ * - exact: the same Vincenty inverse solution that Location.distanceBetween uses, on primitives.
+ *
+ * Both are symmetric, return 0 for identical points, and take degrees.
+ */
+public final class GeoDistance {
+    // WGS84, matching the constants used by android.location.Location
+    private static final double WGS84_A = 6378137.0;
+    private static final double WGS84_B = 6356752.3142;
+    private static final double WGS84_F = (WGS84_A - WGS84_B) / WGS84_A;
+    private static final double WGS84_E2 = (WGS84_A * WGS84_A - WGS84_B * WGS84_B) / (WGS84_A * WGS84_A);
+    private static final double A_SQ_MINUS_B_SQ_OVER_B_SQ =
+            (WGS84_A * WGS84_A - WGS84_B * WGS84_B) / (WGS84_B * WGS84_B);
+    private static final int MAX_ITERS = 20;
+
+    private GeoDistance() {}
+
+    public static double fast(double lat1, double lng1, double lat2, double lng2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double dLambda = Math.toRadians(lng2 - lng1);
+        // take the short way around the antimeridian
+        if (dLambda > Math.PI) {
+            dLambda -= 2 * Math.PI;
+        } else if (dLambda < -Math.PI) {
+            dLambda += 2 * Math.PI;
+        }
+        double meanPhi = (phi1 + phi2) / 2;
+        double sinMeanPhi = Math.sin(meanPhi);
+        double w = 1 - WGS84_E2 * sinMeanPhi * sinMeanPhi;
+        double sqrtW = Math.sqrt(w);
+        double primeVerticalRadius = WGS84_A / sqrtW;
+        double meridianRadius = WGS84_A * (1 - WGS84_E2) / (w * sqrtW);
+        double dx = primeVerticalRadius * Math.cos(meanPhi) * dLambda;
+        double dy = meridianRadius * (phi2 - phi1);
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /*
+     * Port of Location.computeDistanceAndBearing, without the bearings and without the cache
+     * object. Based on http://www.ngs.noaa.gov/PUBS_LIB/inverse.pdf
+     */
+    public static double exact(double lat1, double lng1, double lat2, double lng2) {
+        lat1 *= Math.PI / 180.0;
+        lat2 *= Math.PI / 180.0;
+        lng1 *= Math.PI / 180.0;
+        lng2 *= Math.PI / 180.0;
+
+        double L = lng2 - lng1;
+        double A = 0.0;
+        double U1 = Math.atan((1.0 - WGS84_F) * Math.tan(lat1));
+        double U2 = Math.atan((1.0 - WGS84_F) * Math.tan(lat2));
+
+        double cosU1 = Math.cos(U1);
+        double cosU2 = Math.cos(U2);
+        double sinU1 = Math.sin(U1);
+        double sinU2 = Math.sin(U2);
+        double cosU1cosU2 = cosU1 * cosU2;
+        double sinU1sinU2 = sinU1 * sinU2;
+
+        double sigma = 0.0;
+        double deltaSigma = 0.0;
+        double cosSigma;
+        double sinSigma;
+
+        double lambda = L; // initial guess
+        for (int iter = 0; iter < MAX_ITERS; iter++) {
+            double lambdaOrig = lambda;
+            double cosLambda = Math.cos(lambda);
+            double sinLambda = Math.sin(lambda);
+            double t1 = cosU2 * sinLambda;
+            double t2 = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+            double sinSqSigma = t1 * t1 + t2 * t2;
+            sinSigma = Math.sqrt(sinSqSigma);
+            cosSigma = sinU1sinU2 + cosU1cosU2 * cosLambda;
+            sigma = Math.atan2(sinSigma, cosSigma);
+            double sinAlpha = (sinSigma == 0) ? 0.0 : cosU1cosU2 * sinLambda / sinSigma;
+            double cosSqAlpha = 1.0 - sinAlpha * sinAlpha;
+            double cos2SM = (cosSqAlpha == 0) ? 0.0 : cosSigma - 2.0 * sinU1sinU2 / cosSqAlpha;
+
+            double uSquared = cosSqAlpha * A_SQ_MINUS_B_SQ_OVER_B_SQ;
+            A = 1 + (uSquared / 16384.0) *
+                    (4096.0 + uSquared * (-768 + uSquared * (320.0 - 175.0 * uSquared)));
+            double B = (uSquared / 1024.0) *
+                    (256.0 + uSquared * (-128.0 + uSquared * (74.0 - 47.0 * uSquared)));
+            double C = (WGS84_F / 16.0) * cosSqAlpha * (4.0 + WGS84_F * (4.0 - 3.0 * cosSqAlpha));
+            double cos2SMSq = cos2SM * cos2SM;
+            deltaSigma = B * sinSigma *
+                    (cos2SM + (B / 4.0) *
+                            (cosSigma * (-1.0 + 2.0 * cos2SMSq) -
+                                    (B / 6.0) * cos2SM *
+                                            (-3.0 + 4.0 * sinSigma * sinSigma) *
+                                            (-3.0 + 4.0 * cos2SMSq)));
+
+            lambda = L + (1.0 - C) * WGS84_F * sinAlpha *
+                    (sigma + C * sinSigma *
+                            (cos2SM + C * cosSigma * (-1.0 + 2.0 * cos2SM * cos2SM)));
+
+            double delta = (lambda - lambdaOrig) / lambda;
+            if (Math.abs(delta) < 1.0e-12) {
+                break;
+            }
+        }
+        return WGS84_B * A * (sigma - deltaSigma);
+    }
+}
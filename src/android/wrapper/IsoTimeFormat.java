@@ -0,0 +1,124 @@
+package edu.berkeley.eecs.emission.cordova.tracker.wrapper;
+
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Formats the fmt_time of the locations as ISO 8601 with the offset,
+ * e.g. 2016-07-25T14:32:07.123-07:00.
+ *
+ * This replaces SimpleDateFormat.getDateTimeInstance(), which built a new locale-aware formatter
+ * for every point and generated a string that the server had to re-parse anyway.
+ *
+ * The expensive part is finding the offset, so we cache it for the hour around the last
+ * formatted time, and compute the fields directly from the millis. The cache is an immutable
+ * object behind a volatile, so this is safe to call from multiple threads without locking. The
+ * default timezone is re-read whenever we move to a new hour. If it changes in the middle of an
+ * hour, we will keep using the old zone until the end of the hour, but since we always include the
+ * offset, the string still represents the correct instant.
+ */
+final class IsoTimeFormat {
+    private static final long HOUR_MS = 60 * 60 * 1000;
+    private static final long DAY_MS = 24 * HOUR_MS;
+
+    private static volatile OffsetWindow sWindow;
+
+    private IsoTimeFormat() {}
+
+    static String format(long millis) {
+        OffsetWindow window = sWindow;
+        if (window == null || millis < window.startMs || millis >= window.endMs) {
+            window = OffsetWindow.forTime(TimeZone.getDefault(), millis);
+            if (window == null) {
+                return slowFormat(millis);
+            }
+            sWindow = window;
+        }
+
+        long local = millis + window.offsetMs;
+        long days = Math.floorDiv(local, DAY_MS);
+        int msOfDay = (int) (local - days * DAY_MS);
+
+        // Convert the epoch day to a civil date (see Howard Hinnant's days_from_civil)
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        int doe = (int) (z - era * 146097);
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        int mp = (5 * doy + 2) / 153;
+        int day = doy - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999) {
+            return slowFormat(millis);
+        }
+
+        char[] buf = new char[29];
+        put(buf, 0, (int) year, 4);
+        buf[4] = '-';
+        put(buf, 5, month, 2);
+        buf[7] = '-';
+        put(buf, 8, day, 2);
+        buf[10] = 'T';
+        put(buf, 11, msOfDay / 3600000, 2);
+        buf[13] = ':';
+        put(buf, 14, (msOfDay / 60000) % 60, 2);
+        buf[16] = ':';
+        put(buf, 17, (msOfDay / 1000) % 60, 2);
+        buf[19] = '.';
+        put(buf, 20, msOfDay % 1000, 3);
+        window.offset.getChars(0, 6, buf, 23);
+        return new String(buf);
+    }
+
+    private static void put(char[] buf, int pos, int value, int width) {
+        for (int i = pos + width - 1; i >= pos; i--) {
+            buf[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    // Only for times and offsets that don't fit in the fixed width format, which we should never see
+    private static String slowFormat(long millis) {
+        SimpleDateFormat isoFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX", Locale.US);
+        return isoFormat.format(millis);
+    }
+
+    private static final class OffsetWindow {
+        final long startMs;
+        final long endMs;
+        final int offsetMs;
+        final String offset;
+
+        private OffsetWindow(long startMs, long endMs, int offsetMs) {
+            this.startMs = startMs;
+            this.endMs = endMs;
+            this.offsetMs = offsetMs;
+            int absMins = Math.abs(offsetMs) / 60000;
+            this.offset = String.format(Locale.US, "%c%02d:%02d",
+                    offsetMs < 0 ? '-' : '+', absMins / 60, absMins % 60);
+        }
+
+        /*
+         * Returns the window for the UTC hour containing millis. Transitions are at least a few
+         * months apart, so if the offset is the same at both ends, it is the same for the whole
+         * hour. If it is not (i.e. on the hour of a DST switch), the window only covers millis.
+         * Returns null if the offset is not a whole number of minutes.
+         */
+        static OffsetWindow forTime(TimeZone tz, long millis) {
+            long startMs = Math.floorDiv(millis, HOUR_MS) * HOUR_MS;
+            long endMs = startMs + HOUR_MS;
+            int offsetMs = tz.getOffset(startMs);
+            if (offsetMs != tz.getOffset(endMs - 1)) {
+                startMs = millis;
+                endMs = millis + 1;
+                offsetMs = tz.getOffset(millis);
+            }
+            if (offsetMs % 60000 != 0) {
+                return null;
+            }
+            return new OffsetWindow(startMs, endMs, offsetMs);
+        }
+    }
+}
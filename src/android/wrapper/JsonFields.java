@@ -0,0 +1,117 @@
+package edu.berkeley.eecs.emission.cordova.tracker.wrapper;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Shared helpers for the hand-written gson TypeAdapters of the wrapper classes.
+ *
+ * The wrappers used to be (de)serialized reflectively, so these match what gson's built-in
+ * adapters for the primitive field types do, including the lenient parsing of quoted numbers and
+ * booleans and the exceptions for bad values. Combined with writing the fields in the same order
+ * that reflective gson uses on android (the dex format sorts the fields of a class by name), the
+ * JSON is the same as before.
+ *
+ * Nulls are written through JsonWriter, so null fields are still dropped unless the Gson instance
+ * has serializeNulls turned on. When reading a null, primitive fields keep their current value
+ * and object fields are set to null, like reflective gson does.
+ *
+ * tools/parity/WrapperGsonParity checks the adapters against reflective gson.
+ */
+final class JsonFields {
+    private JsonFields() {}
+
+    static void writeDouble(JsonWriter out, String name, double value) throws IOException {
+        checkValidFloatingPoint(value);
+        out.name(name).value(value);
+    }
+
+    static void writeFloat(JsonWriter out, String name, float value) throws IOException {
+        checkValidFloatingPoint(value);
+        out.name(name).value(value);
+    }
+
+    /*
+     * The readers take the current value of the field, which they return for a null, since
+     * reflective gson leaves primitive fields untouched for nulls.
+     */
+    static int nextInt(JsonReader in, int current) throws IOException {
+        if (isNull(in)) {
+            return current;
+        }
+        try {
+            return in.nextInt();
+        } catch (NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    static long nextLong(JsonReader in, long current) throws IOException {
+        if (isNull(in)) {
+            return current;
+        }
+        try {
+            return in.nextLong();
+        } catch (NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    static double nextDouble(JsonReader in, double current) throws IOException {
+        if (isNull(in)) {
+            return current;
+        }
+        return in.nextDouble();
+    }
+
+    static float nextFloat(JsonReader in, float current) throws IOException {
+        if (isNull(in)) {
+            return current;
+        }
+        return (float) in.nextDouble();
+    }
+
+    static boolean nextBoolean(JsonReader in, boolean current) throws IOException {
+        if (isNull(in)) {
+            return current;
+        }
+        if (in.peek() == JsonToken.STRING) {
+            return Boolean.parseBoolean(in.nextString());
+        }
+        return in.nextBoolean();
+    }
+
+    /*
+     * Unlike the primitives, reflective gson sets object fields to null for a null, whatever
+     * their default is.
+     */
+    static String nextString(JsonReader in) throws IOException {
+        if (isNull(in)) {
+            return null;
+        }
+        if (in.peek() == JsonToken.BOOLEAN) {
+            return Boolean.toString(in.nextBoolean());
+        }
+        return in.nextString();
+    }
+
+    // Consumes the null if there is one
+    private static boolean isNull(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return true;
+        }
+        return false;
+    }
+
+    private static void checkValidFloatingPoint(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException(value
+                    + " is not a valid double value as per JSON specification.");
+        }
+    }
+}
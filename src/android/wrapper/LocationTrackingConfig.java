@@ -5,6 +5,15 @@ import edu.berkeley.eecs.emission.cordova.tracker.Constants;
 
 /**
  * Created by shankari on 10/20/15.
+ *
+ * Unlike the other wrappers, this is still (de)serialized reflectively, on purpose: it had a
+ * hand-written TypeAdapter like them for a while, which was removed again. The adapters are for
+ * the entries that we read and write on every location update, and ConfigManager reads this once
+ * per process and caches it (and it is only written when the config changes), so the adapter
+ * saved nothing measurable. It cost something, though: every new android_* field had to be added
+ * to the reader and the writer as well, and a field that was missed was silently dropped from
+ * the config. So don't add an adapter here, and don't add this class to
+ * tools/parity/WrapperGsonParity.
  */
 
 public class LocationTrackingConfig {
@@ -21,6 +30,16 @@ public class LocationTrackingConfig {
         this.geofence_radius = Constants.TRIP_EDGE_THRESHOLD;
         this.trip_end_stationary_mins = 5;
         this.android_geofence_responsiveness = 5 * Constants.MILLISECONDS;
+        this.android_log_level = 3; // android.util.Log.DEBUG, i.e. log everything
+        this.android_skip_fmt_time = false;
+        this.android_simplify_tolerance_m = 0; // meters, 0 turns simplification off
+        this.android_kalman_smoothing = false;
+        this.android_adaptive_sampling = false;
+        this.android_adaptive_max_filter_time = 4 * Constants.SIXTY_SECONDS;
+        this.android_max_wait_time = 0; // ms, 0 delivers every fix as soon as we get it
+        this.android_jitter_suppression = false;
+        this.android_trip_end_base_radius_m = 0; // meters, 0 (the default) uses the fixed trip end radius, see TripEndRadius
+        this.android_still_trip_end_secs = 0; // 0 turns the early trip end off
     }
 
     public boolean isDutyCycling() {
@@ -57,6 +76,48 @@ public class LocationTrackingConfig {
         return this.android_geofence_responsiveness;
     }
 
+    public int getLogLevel() {
+        return this.android_log_level;
+    }
+
+    public boolean isSkipFmtTime() {
+        return this.android_skip_fmt_time;
+    }
+
+    public int getSimplifyTolerance() {
+        return this.android_simplify_tolerance_m;
+    }
+
+    public boolean isKalmanSmoothing() {
+        return this.android_kalman_smoothing;
+    }
+
+    public boolean isAdaptiveSampling() {
+        return this.android_adaptive_sampling;
+    }
+
+    // The min is filter_time
+    public int getAdaptiveMaxFilterTime() {
+        return this.android_adaptive_max_filter_time;
+    }
+
+    public int getMaxWaitTime() {
+        return this.android_max_wait_time;
+    }
+
+    public boolean isJitterSuppression() {
+        return this.android_jitter_suppression;
+    }
+
+    public int getTripEndBaseRadius() {
+        return this.android_trip_end_base_radius_m;
+    }
+
+    // How long activity recognition has to report STILL before we can end the trip early
+    public int getStillTripEndSecs() {
+        return this.android_still_trip_end_secs;
+    }
+
     // We don't need any "set" fields because the entire document will be set as a whole
     // using the javascript interface
     private boolean is_duty_cycling;
@@ -70,4 +131,14 @@ public class LocationTrackingConfig {
     private boolean ios_use_visit_notifications_for_detection;
     private boolean ios_use_remote_push_for_sync;
     private int android_geofence_responsiveness;
+    private int android_log_level;
+    private boolean android_skip_fmt_time;
+    private int android_simplify_tolerance_m;
+    private boolean android_kalman_smoothing;
+    private boolean android_adaptive_sampling;
+    private int android_adaptive_max_filter_time;
+    private int android_max_wait_time;
+    private boolean android_jitter_suppression;
+    private int android_trip_end_base_radius_m;
+    private int android_still_trip_end_secs;
 }
@@ -1,16 +1,57 @@
 package edu.berkeley.eecs.emission.cordova.tracker.wrapper;
 
 import com.google.android.gms.location.DetectedActivity;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.IOException;
 
+@JsonAdapter(MotionActivity.GsonAdapter.class)
 public class MotionActivity {
     private double ts;
     private int confidence;
     private int type;
 
+    // For gson
+    private MotionActivity() {}
+
     public MotionActivity(DetectedActivity act) {
         confidence = act.getConfidence();
         type = act.getType();
         ts = ((double)System.currentTimeMillis())/1000;
     }
+
+    /*
+     * The fields are in the order that reflective gson used to write them (sorted by name on
+     * android) so that the JSON is unchanged. See JsonFields.
+     */
+    static final class GsonAdapter extends TypeAdapter<MotionActivity> {
+        @Override
+        public void write(JsonWriter out, MotionActivity act) throws IOException {
+            out.beginObject();
+            out.name("confidence").value(act.confidence);
+            JsonFields.writeDouble(out, "ts", act.ts);
+            out.name("type").value(act.type);
+            out.endObject();
+        }
+
+        @Override
+        public MotionActivity read(JsonReader in) throws IOException {
+            MotionActivity act = new MotionActivity();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                switch (name) {
+                    case "confidence": act.confidence = JsonFields.nextInt(in, act.confidence); break;
+                    case "ts": act.ts = JsonFields.nextDouble(in, act.ts); break;
+                    case "type": act.type = JsonFields.nextInt(in, act.type); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return act;
+        }
+    }
 }
@@ -2,7 +2,12 @@ package edu.berkeley.eecs.emission.cordova.tracker.wrapper;
 
 import android.location.Location;
 
-import java.text.SimpleDateFormat;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
 import org.json.JSONObject;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -10,6 +15,7 @@ import org.json.JSONException;
 /**
  * Created by shankari on 8/30/15.
  */
+@JsonAdapter(SimpleLocation.GsonAdapter.class)
 public class SimpleLocation {
     public double getLatitude() {
         return latitude;
@@ -23,6 +29,10 @@ public class SimpleLocation {
         return ts;
     }
 
+    public float getAccuracy() {
+        return accuracy;
+    }
+
     private double latitude;
     private double longitude;
     private double altitude;
@@ -40,20 +50,42 @@ public class SimpleLocation {
 
     /*
      * No-arg constructor to use with gson.
-     * If this works, consider switching to a custom serializer instead.
      */
     public SimpleLocation() {}
 
     public SimpleLocation(Location loc) {
+        this(loc, true);
+    }
+
+    // Used by withLatLng to copy a location
+    SimpleLocation(double latitude, double longitude, double altitude, double ts,
+                   String fmt_time, long elapsedRealtimeNanos, float sensed_speed,
+                   float accuracy, float bearing, String provider) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.altitude = altitude;
+        this.ts = ts;
+        this.fmt_time = fmt_time;
+        this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+        this.sensed_speed = sensed_speed;
+        this.accuracy = accuracy;
+        this.bearing = bearing;
+        this.provider = provider;
+    }
+
+    /*
+     * The server can regenerate fmt_time from ts, so if it is configured to do that, we can skip
+     * formatting it for every point and leave it out of the document.
+     */
+    public SimpleLocation(Location loc, boolean includeFmtTime) {
         latitude = loc.getLatitude();
         longitude = loc.getLongitude();
         altitude = loc.getAltitude();
 
         ts = ((double)loc.getTime())/1000;
-        // NOTE: There is no ISO format datetime shortcut on java.
-        // This will probably return values that are not in the ISO format.
-        // but that's OK because we will fix it on the server
-        fmt_time = SimpleDateFormat.getDateTimeInstance().format(loc.getTime());
+        if (includeFmtTime) {
+            fmt_time = IsoTimeFormat.format(loc.getTime());
+        }
         elapsedRealtimeNanos = loc.getElapsedRealtimeNanos();
 
         sensed_speed = loc.getSpeed();
@@ -61,17 +93,82 @@ public class SimpleLocation {
         bearing = loc.getBearing();
     }
 
+    /*
+     * Returns a copy of this location at a different position, e.g. after smoothing.
+     */
+    public SimpleLocation withLatLng(double newLatitude, double newLongitude) {
+        return new SimpleLocation(newLatitude, newLongitude, altitude, ts, fmt_time,
+                elapsedRealtimeNanos, sensed_speed, accuracy, bearing, provider);
+    }
+
+    /*
+     * The duplicate and trip end checks are over short distances, so we use the fast mode of the
+     * distance kernel. See GeoDistance for the error bounds.
+     */
     public float distanceTo(SimpleLocation dest) {
-        float[] results = new float[1];
-        Location.distanceBetween(latitude, longitude, dest.getLatitude(), dest.getLongitude(), results);
-        return results[0];
+        return (float) GeoDistance.fast(latitude, longitude, dest.getLatitude(), dest.getLongitude());
     }
 
+    public float exactDistanceTo(SimpleLocation dest) {
+        return (float) GeoDistance.exact(latitude, longitude, dest.getLatitude(), dest.getLongitude());
+    }
+
+    /*
+     * The distance to a geofence can be any length, so this uses the exact mode, like the
+     * Location.distanceBetween that it replaced
+     */
     public static float distanceTo(Location loc, JSONObject destGeoJSON) throws JSONException {
-        float[] results = new float[1];
         JSONArray destCoordinates = destGeoJSON.getJSONArray("coordinates");
-        Location.distanceBetween(loc.getLatitude(), loc.getLongitude(),
-            destCoordinates.getDouble(1), destCoordinates.getDouble(0), results);
-        return results[0];
+        return (float) GeoDistance.exact(loc.getLatitude(), loc.getLongitude(),
+            destCoordinates.getDouble(1), destCoordinates.getDouble(0));
+    }
+
+    /*
+     * We save a lot of these, so we don't want to go through reflection for every point.
+     * The fields are in the order that reflective gson used to write them (sorted by name on
+     * android) so that the JSON is unchanged. See JsonFields.
+     */
+    static final class GsonAdapter extends TypeAdapter<SimpleLocation> {
+        @Override
+        public void write(JsonWriter out, SimpleLocation loc) throws IOException {
+            out.beginObject();
+            JsonFields.writeFloat(out, "accuracy", loc.accuracy);
+            JsonFields.writeDouble(out, "altitude", loc.altitude);
+            JsonFields.writeFloat(out, "bearing", loc.bearing);
+            out.name("elapsedRealtimeNanos").value(loc.elapsedRealtimeNanos);
+            out.name("filter").value(loc.filter);
+            out.name("fmt_time").value(loc.fmt_time);
+            JsonFields.writeDouble(out, "latitude", loc.latitude);
+            JsonFields.writeDouble(out, "longitude", loc.longitude);
+            out.name("provider").value(loc.provider);
+            JsonFields.writeFloat(out, "sensed_speed", loc.sensed_speed);
+            JsonFields.writeDouble(out, "ts", loc.ts);
+            out.endObject();
+        }
+
+        @Override
+        public SimpleLocation read(JsonReader in) throws IOException {
+            SimpleLocation loc = new SimpleLocation();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                switch (name) {
+                    case "accuracy": loc.accuracy = JsonFields.nextFloat(in, loc.accuracy); break;
+                    case "altitude": loc.altitude = JsonFields.nextDouble(in, loc.altitude); break;
+                    case "bearing": loc.bearing = JsonFields.nextFloat(in, loc.bearing); break;
+                    case "elapsedRealtimeNanos": loc.elapsedRealtimeNanos = JsonFields.nextLong(in, loc.elapsedRealtimeNanos); break;
+                    case "fmt_time": loc.fmt_time = JsonFields.nextString(in); break;
+                    case "latitude": loc.latitude = JsonFields.nextDouble(in, loc.latitude); break;
+                    case "longitude": loc.longitude = JsonFields.nextDouble(in, loc.longitude); break;
+                    case "provider": loc.provider = JsonFields.nextString(in); break;
+                    case "sensed_speed": loc.sensed_speed = JsonFields.nextFloat(in, loc.sensed_speed); break;
+                    case "ts": loc.ts = JsonFields.nextDouble(in, loc.ts); break;
+                    // filter is always "time"
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return loc;
+        }
     }
 }
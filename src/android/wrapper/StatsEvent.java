@@ -3,9 +3,19 @@ package edu.berkeley.eecs.emission.cordova.tracker.wrapper;
 import android.content.Context;
 import android.content.pm.PackageManager;
 
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
 import java.util.jar.Attributes;
 
+@JsonAdapter(StatsEvent.GsonAdapter.class)
 public class StatsEvent {
+    // For gson
+    private StatsEvent() {}
+
     public StatsEvent(Context ctxt, int name_id) {
         this(ctxt, name_id, -1);
     }
@@ -31,4 +41,40 @@ public class StatsEvent {
     private double ts;
     private String client_app_version;
     private String client_os_version;
+
+    /*
+     * The fields are in the order that reflective gson used to write them (sorted by name on
+     * android) so that the JSON is unchanged. See JsonFields.
+     */
+    static final class GsonAdapter extends TypeAdapter<StatsEvent> {
+        @Override
+        public void write(JsonWriter out, StatsEvent e) throws IOException {
+            out.beginObject();
+            out.name("client_app_version").value(e.client_app_version);
+            out.name("client_os_version").value(e.client_os_version);
+            out.name("name").value(e.name);
+            JsonFields.writeDouble(out, "reading", e.reading);
+            JsonFields.writeDouble(out, "ts", e.ts);
+            out.endObject();
+        }
+
+        @Override
+        public StatsEvent read(JsonReader in) throws IOException {
+            StatsEvent e = new StatsEvent();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                switch (name) {
+                    case "client_app_version": e.client_app_version = JsonFields.nextString(in); break;
+                    case "client_os_version": e.client_os_version = JsonFields.nextString(in); break;
+                    case "name": e.name = JsonFields.nextString(in); break;
+                    case "reading": e.reading = JsonFields.nextDouble(in, e.reading); break;
+                    case "ts": e.ts = JsonFields.nextDouble(in, e.ts); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return e;
+        }
+    }
 }
@@ -1,8 +1,16 @@
 package edu.berkeley.eecs.emission.cordova.tracker.wrapper;
 
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
 /**
  * Created by shankari on 7/12/15.
  */
+@JsonAdapter(Transition.GsonAdapter.class)
 public class Transition {
     public String getTransition() {
         return transition;
@@ -29,4 +37,36 @@ public class Transition {
         this.transition = transition;
         this.ts = ts;
     }
+
+    /*
+     * The fields are in the order that reflective gson used to write them (sorted by name on
+     * android) so that the JSON is unchanged. See JsonFields.
+     */
+    static final class GsonAdapter extends TypeAdapter<Transition> {
+        @Override
+        public void write(JsonWriter out, Transition t) throws IOException {
+            out.beginObject();
+            out.name("currState").value(t.currState);
+            out.name("transition").value(t.transition);
+            JsonFields.writeDouble(out, "ts", t.ts);
+            out.endObject();
+        }
+
+        @Override
+        public Transition read(JsonReader in) throws IOException {
+            Transition t = new Transition();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                switch (name) {
+                    case "currState": t.currState = JsonFields.nextString(in); break;
+                    case "transition": t.transition = JsonFields.nextString(in); break;
+                    case "ts": t.ts = JsonFields.nextDouble(in, t.ts); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return t;
+        }
+    }
 }
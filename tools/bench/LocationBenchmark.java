@@ -0,0 +1,156 @@
+package edu.berkeley.eecs.emission.cordova.tracker.location;
+
+import com.google.gson.Gson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import edu.berkeley.eecs.emission.cordova.tracker.wrapper.SimpleLocation;
+
+/**
+ * Benchmarks for the RecentLocationWindow and the StationaryDetector, which replaced the
+ * getDistances/stoppedMoving/filterAfterTransition calls that LocationChangeIntentService used to
+ * make on every location. It is in the location package so that it can use the package private
+ * detector and window constructor. See README.md for how to run it.
+ *
+ * The operations are:
+ * - detectorPush: StationaryDetector.push, and evictOldest for what the window would evict
+ * - detectorIsTripEnded: StationaryDetector.isTripEnded on a full window
+ * - update: both of the above, i.e. the trip end check for one location update
+ * - windowAdd: RecentLocationWindow.add, which also pushes to and evicts from its detector
+ * - windowIsStationarySince: RecentLocationWindow.isStationarySince, for the early trip end
+ * The window size is derived from trip_end_stationary_mins and filter_time, the same way as in
+ * the service.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocationBenchmark {
+    private static final int TRIP_END_RADIUS = 100;
+    // Same as RecentLocationWindow
+    private static final int RETENTION_FUZZ_SECS = 60;
+    // Same as LocationChangeIntentService
+    private static final int MIN_STILL_POINTS = 3;
+    private static final int STILL_SECS = 120;
+    private static final double START_TS = 1700000000;
+
+    @Param({"5", "10"})
+    public int tripEndMins;
+
+    @Param({"1000", "30000"})
+    public int filterTimeMs;
+
+    // moving: driving in a straight line, stopped: jitter around one point,
+    // arriving: alternating between the two, so that some checks need the exact scan
+    @Param({"moving", "stopped", "arriving"})
+    public String trace;
+
+    private int tripEndSecs;
+    private int pointsToQuery;
+    private int windowSize;
+    private double intervalSecs;
+    private double[] lat;
+    private double[] lng;
+    private SimpleLocation[] locs;
+    private StationaryDetector detector;
+    private RecentLocationWindow window;
+    private long next;
+    private double lastTs;
+
+    @Setup
+    public void setup() {
+        tripEndSecs = tripEndMins * 60;
+        pointsToQuery = tripEndSecs * 1000 / filterTimeMs;
+        windowSize = (tripEndSecs + RETENTION_FUZZ_SECS) * 1000 / filterTimeMs;
+        intervalSecs = filterTimeMs / 1000.0;
+
+        int n = windowSize * 4;
+        lat = new double[n];
+        lng = new double[n];
+        locs = new SimpleLocation[n];
+        Gson gson = new Gson();
+        Random random = new Random(42);
+        double currLat = 37.8716, currLng = -122.2727;
+        // ~15 m/s
+        double step = 15 * intervalSecs / 111000;
+        for (int i = 0; i < n; i++) {
+            boolean moving = trace.equals("moving") ||
+                    (trace.equals("arriving") && (i / (windowSize * 2)) % 2 == 0);
+            if (moving) {
+                currLat += step;
+            }
+            lat[i] = currLat + random.nextGaussian() * 10 / 111000;
+            lng[i] = currLng + random.nextGaussian() * 10 / 88000;
+            // The ts is overwritten by the window, which only looks at the write_ts
+            locs[i] = gson.fromJson("{\"latitude\":"+lat[i]+",\"longitude\":"+lng[i]
+                    +",\"ts\":"+(START_TS + i * intervalSecs)+",\"accuracy\":10.0}",
+                    SimpleLocation.class);
+        }
+
+        detector = new StationaryDetector();
+        window = new RecentLocationWindow(pointsToQuery, tripEndSecs);
+        next = 0;
+        // For arriving, fill the window up to the stop, so that the window straddles it
+        long fill = trace.equals("arriving") ? windowSize * 2 + windowSize / 2 : windowSize;
+        for (long i = 0; i < fill; i++) {
+            lastTs = push();
+            window.add(locs[(int) (i % locs.length)], lastTs);
+        }
+    }
+
+    @Benchmark
+    public double detectorPush() {
+        return push();
+    }
+
+    @Benchmark
+    public boolean detectorIsTripEnded() {
+        return detector.isTripEnded(lastTs, START_TS, pointsToQuery, tripEndSecs, TRIP_END_RADIUS);
+    }
+
+    @Benchmark
+    public boolean update() {
+        double ts = push();
+        return detector.isTripEnded(ts, START_TS, pointsToQuery, tripEndSecs, TRIP_END_RADIUS);
+    }
+
+    @Benchmark
+    public int windowAdd() {
+        int i = (int) (next % locs.length);
+        double ts = START_TS + next * intervalSecs;
+        next++;
+        window.add(locs[i], ts);
+        return i;
+    }
+
+    @Benchmark
+    public boolean windowIsStationarySince() {
+        return window.isStationarySince(lastTs - STILL_SECS, MIN_STILL_POINTS, TRIP_END_RADIUS);
+    }
+
+    private double push() {
+        int i = (int) (next % lat.length);
+        double ts = START_TS + next * intervalSecs;
+        next++;
+        detector.push(lat[i], lng[i], ts, ts);
+        while (detector.size() > windowSize) {
+            detector.evictOldest();
+        }
+        return ts;
+    }
+}
@@ -0,0 +1,112 @@
+package edu.berkeley.eecs.emission.cordova.tracker.wrapper;
+
+import com.google.gson.Gson;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Benchmarks for the wrappers that we create and serialize for every location update.
+ *
+ * It is in the wrapper package so that it can create locations without an android Location,
+ * using the package private constructor that withLatLng uses. See README.md for how to run it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WrapperBenchmark {
+    private Gson gson;
+    private SimpleLocation loc;
+    private SimpleLocation nearbyLoc;
+    private MotionActivity activity;
+    private Battery battery;
+    private String locJson;
+    private String geofenceJson;
+
+    @Setup
+    public void setup() {
+        gson = new Gson();
+        loc = new SimpleLocation(37.8716, -122.2727, 52.5, 1700000000.123,
+                "2023-11-14T14:13:20.123-08:00", 123456789012345L, 13.4f, 8.5f, 271.0f, "fused");
+        nearbyLoc = loc.withLatLng(37.8721, -122.2731);
+        activity = gson.fromJson("{\"confidence\":92,\"ts\":1700000000.5,\"type\":0}",
+                MotionActivity.class);
+        battery = gson.fromJson("{\"android_health\":\"GOOD\",\"android_plugged\":\"UNKNOWN\","
+                + "\"android_technology\":\"Li-ion\",\"android_temperature\":285,"
+                + "\"android_voltage\":4012,\"battery_level_pct\":67.0,\"battery_status\":3,"
+                + "\"ts\":1700000000.5}", Battery.class);
+        locJson = gson.toJson(loc);
+        // what GeofenceActions stores, and OPGeofenceExitActivityIntentService reads back
+        geofenceJson = "{\"type\":\"Point\",\"coordinates\":[-122.2731,37.8721]}";
+    }
+
+    @Benchmark
+    public SimpleLocation construct() {
+        return new SimpleLocation(37.8716, -122.2727, 52.5, 1700000000.123,
+                "2023-11-14T14:13:20.123-08:00", 123456789012345L, 13.4f, 8.5f, 271.0f, "fused");
+    }
+
+    @Benchmark
+    public SimpleLocation withLatLng() {
+        return loc.withLatLng(37.8721, -122.2731);
+    }
+
+    @Benchmark
+    public float distanceTo() {
+        return loc.distanceTo(nearbyLoc);
+    }
+
+    @Benchmark
+    public float exactDistanceTo() {
+        return loc.exactDistanceTo(nearbyLoc);
+    }
+
+    /*
+     * SimpleLocation.distanceTo(Location, JSONObject) needs an android Location, so this does the
+     * same work starting from the stored string: parse it, read the coordinates and compute the
+     * distance.
+     */
+    @Benchmark
+    public float geofenceDistance() throws JSONException {
+        JSONArray destCoordinates = new JSONObject(geofenceJson).getJSONArray("coordinates");
+        return (float) GeoDistance.fast(loc.getLatitude(), loc.getLongitude(),
+                destCoordinates.getDouble(1), destCoordinates.getDouble(0));
+    }
+
+    @Benchmark
+    public String serializeLocation() {
+        return gson.toJson(loc);
+    }
+
+    @Benchmark
+    public SimpleLocation deserializeLocation() {
+        return gson.fromJson(locJson, SimpleLocation.class);
+    }
+
+    @Benchmark
+    public String serializeActivity() {
+        return gson.toJson(activity);
+    }
+
+    @Benchmark
+    public String serializeBattery() {
+        return gson.toJson(battery);
+    }
+}
@@ -0,0 +1,456 @@
+package edu.berkeley.eecs.emission.cordova.tracker.location;
+
+import android.content.Context;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import edu.berkeley.eecs.emission.cordova.tracker.location.actions.ActionSet;
+
+/**
+ * Kills the state machine service at every step of a transition, redelivers the intent, and
+ * checks that the transition still ends up in the right state, exactly once.
+ *
+ * The services can't run here, so the harness has a copy of how they handle a transition: begin
+ * the TransitionJournal for the intent, drop the intent if the journal is done, otherwise add the
+ * tasks of the edge to a (real) ActionSet with the journal, and once it completes, save the new
+ * state and finish the journal that was passed to the edge. The journal is a copy of
+ * TransitionJournal that saves to a fake disk instead of the usercache, and the play services
+ * tasks are fakes whose listeners run synchronously, so the harness decides when each one
+ * completes. A kill drops everything in memory, including the tasks that have not completed, and
+ * keeps the disk (the state, the journal entry, and how often each step was started).
+ *
+ * The kills are after every number of completed tasks, and between saving the new state and
+ * finishing the journal, once or twice per transition, with the tasks completing in random order.
+ * After the last redelivery, the transition must be done and in its target state, and one more
+ * redelivery must be dropped. No step may be started again once the journal has it as completed.
+ *
+ * The overlap check starts a second transition while the first one is still waiting for its
+ * tasks, as happens when a geofence exit arrives during a delete. The first one then fails and
+ * stays in its state, and the service is killed while the second one is in flight. The second
+ * one must still complete after the redelivery. --finish-current makes the service finish the
+ * journal of the latest intent instead, as it used to, to check that the harness catches that.
+ */
+public class TransitionKillHarness {
+    private static final String WAITING = "waiting_for_trip_start";
+    private static final String ONGOING = "ongoing_trip";
+    private static final String STOPPED = "tracking_stopped";
+
+    // Kill after saving the new state, but before finishing the journal
+    private static final int BEFORE_FINISH = -1;
+
+    private static final Context CTXT = new Context();
+
+    private static final Edge START_TRIP = new Edge("start_trip", WAITING, ONGOING,
+            ActionSet.GEOFENCE, ActionSet.OP_GEOFENCE, ActionSet.ACTIVITY_RECOGNITION,
+            ActionSet.LOCATION_TRACKING);
+    private static final Edge END_TRIP = new Edge("end_trip", ONGOING, WAITING,
+            ActionSet.LOCATION_TRACKING, ActionSet.ACTIVITY_RECOGNITION, ActionSet.GEOFENCE,
+            ActionSet.OP_GEOFENCE);
+    private static final Edge DELETE_GEOFENCE = new Edge("delete_geofence", WAITING, STOPPED,
+            ActionSet.GEOFENCE, ActionSet.OP_GEOFENCE);
+    private static final Edge STOP_ALL = new Edge("stop_all", ONGOING, STOPPED,
+            ActionSet.GEOFENCE, ActionSet.OP_GEOFENCE, ActionSet.LOCATION_TRACKING,
+            ActionSet.ACTIVITY_RECOGNITION);
+    private static final Edge[] EDGES = {START_TRIP, END_TRIP, DELETE_GEOFENCE, STOP_ALL};
+
+    private long seed = 42;
+    private int rounds = 20;
+    private boolean finishCurrent = false;
+
+    private Random mRandom;
+    private int mNextId = 0;
+    private int mScenarios = 0;
+    private int mKills = 0;
+    private final List<String> mViolations = new ArrayList<String>();
+
+    public static void main(String[] args) {
+        TransitionKillHarness harness = new TransitionKillHarness();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--seed": harness.seed = Long.parseLong(args[++i]); break;
+                case "--rounds": harness.rounds = Integer.parseInt(args[++i]); break;
+                case "--finish-current": harness.finishCurrent = true; break;
+                default:
+                    System.err.println("Usage: TransitionKillHarness [--seed 42] [--rounds 20] [--finish-current]");
+                    System.exit(1);
+            }
+        }
+        boolean ok = harness.run();
+        // the ActionSet timeouts are scheduled on the (non daemon) TrackerExecutor threads
+        System.exit(ok ? 0 : 1);
+    }
+
+    private boolean run() {
+        mRandom = new Random(seed);
+        for (Edge edge : EDGES) {
+            for (int[] plan : killPlans(edge.keys.length)) {
+                for (int round = 0; round < rounds; round++) {
+                    checkKills(edge, plan);
+                }
+            }
+        }
+        System.out.println(String.format("kill: %d scenarios, %d kills, %d violations",
+                mScenarios, mKills, mViolations.size()));
+        int killViolations = mViolations.size();
+        mScenarios = 0;
+        mKills = 0;
+        for (int k = 0; k <= START_TRIP.keys.length; k++) {
+            for (int round = 0; round < rounds; round++) {
+                checkOverlap(k);
+            }
+        }
+        System.out.println(String.format("overlap: %d scenarios, %d kills, %d violations",
+                mScenarios, mKills, mViolations.size() - killViolations));
+        for (String violation : mViolations.subList(0, Math.min(10, mViolations.size()))) {
+            System.out.println("  " + violation);
+        }
+        return mViolations.isEmpty();
+    }
+
+    /*
+     * No kill, every single kill point, and every pair of them
+     */
+    private static List<int[]> killPlans(int nTasks) {
+        List<Integer> points = new ArrayList<Integer>();
+        for (int k = 0; k <= nTasks; k++) {
+            points.add(k);
+        }
+        points.add(BEFORE_FINISH);
+        List<int[]> plans = new ArrayList<int[]>();
+        plans.add(new int[0]);
+        for (int first : points) {
+            plans.add(new int[]{first});
+            for (int second : points) {
+                plans.add(new int[]{first, second});
+            }
+        }
+        return plans;
+    }
+
+    private void checkKills(Edge edge, int[] plan) {
+        mScenarios++;
+        String scenario = edge.name + " killed at " + Arrays.toString(plan);
+        Disk disk = new Disk(edge.from);
+        Transition transition = new Transition(newId(), edge);
+        boolean redelivered = false;
+        for (int killAt : plan) {
+            Process process = new Process(disk, scenario);
+            process.handle(transition, redelivered);
+            if (killAt == BEFORE_FINISH) {
+                process.mKillBeforeFinish = true;
+                process.completeAll();
+            } else {
+                process.complete(killAt);
+            }
+            process.kill();
+            redelivered = true;
+        }
+        Process process = new Process(disk, scenario);
+        process.handle(transition, redelivered);
+        process.completeAll();
+        checkDone(disk, transition, scenario);
+    }
+
+    private void checkOverlap(int killAt) {
+        mScenarios++;
+        String scenario = "start_trip during a failed delete_geofence, killed at " + killAt;
+        Disk disk = new Disk(WAITING);
+        Transition delete = new Transition(newId(), DELETE_GEOFENCE);
+        Transition start = new Transition(newId(), START_TRIP);
+        Process process = new Process(disk, scenario);
+        process.handle(delete, false);
+        process.handle(start, false);
+        // the delete fails, so it stays in the waiting state, which is also where start_trip began
+        process.completeStep(DELETE_GEOFENCE.getStep(ActionSet.GEOFENCE), false);
+        process.completeStep(DELETE_GEOFENCE.getStep(ActionSet.OP_GEOFENCE), true);
+        if (!disk.state.equals(WAITING)) {
+            violation(scenario, "the failed delete moved to " + disk.state);
+        }
+        process.complete(killAt);
+        process.kill();
+        process = new Process(disk, scenario);
+        process.handle(start, true);
+        process.completeAll();
+        checkDone(disk, start, scenario);
+    }
+
+    private void checkDone(Disk disk, Transition transition, String scenario) {
+        Edge edge = transition.edge;
+        if (!disk.state.equals(edge.to)) {
+            violation(scenario, "ended in " + disk.state + " instead of " + edge.to);
+        }
+        Saved saved = disk.journal;
+        if (saved == null || !saved.id.equals(transition.id) || !saved.done) {
+            violation(scenario, "the journal is not done: " + saved);
+        } else {
+            for (ActionSet.Key<Void> key : edge.keys) {
+                if (!saved.completed.contains(edge.getStep(key))) {
+                    violation(scenario, edge.getStep(key) + " never completed");
+                }
+            }
+        }
+        // e.g. killed after finishing, before stopSelf
+        Process process = new Process(disk, scenario);
+        int started = disk.getStartedCount();
+        if (process.handle(transition, true)) {
+            violation(scenario, "the transition was handled again after it was done");
+        }
+        if (disk.getStartedCount() != started) {
+            violation(scenario, "steps were started again after the transition was done");
+        }
+    }
+
+    private String newId() {
+        return "transition-" + (mNextId++);
+    }
+
+    private void violation(String scenario, String msg) {
+        mViolations.add(scenario + ": " + msg);
+    }
+
+    private static final class Edge {
+        private final String name;
+        private final String from;
+        private final String to;
+        private final ActionSet.Key<Void>[] keys;
+
+        @SafeVarargs
+        private Edge(String name, String from, String to, ActionSet.Key<Void>... keys) {
+            this.name = name;
+            this.from = from;
+            this.to = to;
+            this.keys = keys;
+        }
+
+        private String getStep(ActionSet.Key<?> key) {
+            return name + "/" + key.getName();
+        }
+    }
+
+    private static final class Transition {
+        private final String id;
+        private final Edge edge;
+
+        private Transition(String id, Edge edge) {
+            this.id = id;
+            this.edge = edge;
+        }
+    }
+
+    /*
+     * What survives a kill: the state store, the journal entry in the usercache, and the calls
+     * that have been made to play services
+     */
+    private static final class Disk {
+        private String state;
+        private Saved journal = null;
+        private final Map<String, Integer> started = new HashMap<String, Integer>();
+
+        private Disk(String state) {
+            this.state = state;
+        }
+
+        private int getStartedCount() {
+            int count = 0;
+            for (int n : started.values()) {
+                count += n;
+            }
+            return count;
+        }
+    }
+
+    private static final class Saved {
+        private final String id;
+        private final String fromState;
+        private final Set<String> completed;
+        private final boolean done;
+
+        private Saved(Journal journal) {
+            this.id = journal.mId;
+            this.fromState = journal.mFromState;
+            this.completed = new HashSet<String>(journal.mCompleted);
+            this.done = journal.mDone;
+        }
+
+        @Override
+        public String toString() {
+            return "Saved{" + id + " from " + fromState + ", completed = " + completed
+                    + (done ? ", done" : "") + "}";
+        }
+    }
+
+    /*
+     * A copy of TransitionJournal, which saves to the Disk of the process
+     */
+    private static final class Journal implements ActionSet.Journal {
+        private final Process mProcess;
+        private final String mId;
+        private final String mFromState;
+        private final Set<String> mCompleted = new HashSet<String>();
+        private boolean mDone = false;
+
+        private Journal(Process process, String id, String fromState) {
+            this.mProcess = process;
+            this.mId = id;
+            this.mFromState = fromState;
+        }
+
+        private static Journal begin(Process process, String id, String currState, boolean redelivered) {
+            process.mCurrentId = id;
+            if (redelivered) {
+                Saved saved = process.mDisk.journal;
+                if (saved != null && saved.id.equals(id)) {
+                    Journal entry = new Journal(process, saved.id, saved.fromState);
+                    entry.mCompleted.addAll(saved.completed);
+                    entry.mDone = saved.done;
+                    if (!entry.mDone && !currState.equals(saved.fromState)) {
+                        entry.finish();
+                    }
+                    return entry;
+                }
+            }
+            Journal entry = new Journal(process, id, currState);
+            entry.save();
+            return entry;
+        }
+
+        @Override
+        public boolean isCompleted(String step) {
+            return mCompleted.contains(step);
+        }
+
+        @Override
+        public void markCompleted(String step) {
+            if (mCompleted.add(step)) {
+                save();
+            }
+        }
+
+        private void finish() {
+            mDone = true;
+            save();
+        }
+
+        private void save() {
+            if (mProcess.mDead || !mId.equals(mProcess.mCurrentId)) {
+                return;
+            }
+            mProcess.mDisk.journal = new Saved(this);
+        }
+    }
+
+    private static final class Pending {
+        private final String step;
+        private final TaskCompletionSource<Void> source = new TaskCompletionSource<Void>();
+
+        private Pending(String step) {
+            this.step = step;
+        }
+    }
+
+    /*
+     * One run of the service, until it is killed
+     */
+    private final class Process {
+        private final Disk mDisk;
+        private final String mScenario;
+        private final List<Pending> mPending = new ArrayList<Pending>();
+        private String mCurrentId = null;
+        private Journal mCurrent = null;
+        private boolean mKillBeforeFinish = false;
+        private boolean mDead = false;
+
+        private Process(Disk disk, String scenario) {
+            this.mDisk = disk;
+            this.mScenario = scenario;
+        }
+
+        /*
+         * Returns false if the intent was dropped
+         */
+        private boolean handle(Transition transition, boolean redelivered) {
+            final Journal journal = Journal.begin(this, transition.id, mDisk.state, redelivered);
+            if (journal.mDone) {
+                return false;
+            }
+            mCurrent = journal;
+            final Edge edge = transition.edge;
+            ActionSet actions = new ActionSet(CTXT, edge.name, journal);
+            for (ActionSet.Key<Void> key : edge.keys) {
+                actions.add(key, () -> start(journal, edge.getStep(key)));
+            }
+            actions.start().addOnSuccessListener(results ->
+                    setNewState(journal, results.isAllSuccessful() ? edge.to : edge.from));
+            return true;
+        }
+
+        private Task<Void> start(Journal journal, String step) {
+            Saved saved = mDisk.journal;
+            if (saved != null && saved.id.equals(journal.mId) && saved.completed.contains(step)) {
+                violation(mScenario, step + " was started again after it completed");
+            }
+            mDisk.started.merge(step, 1, Integer::sum);
+            Pending pending = new Pending(step);
+            mPending.add(pending);
+            return pending.source.getTask();
+        }
+
+        private void setNewState(Journal journal, String newState) {
+            if (mDead) {
+                return;
+            }
+            mDisk.state = newState;
+            if (mKillBeforeFinish) {
+                kill();
+                return;
+            }
+            (finishCurrent ? mCurrent : journal).finish();
+        }
+
+        /*
+         * Completes n of the pending tasks (or all of them, if there are fewer), in random order
+         */
+        private void complete(int n) {
+            for (int i = 0; i < n && !mPending.isEmpty() && !mDead; i++) {
+                Pending pending = mPending.remove(mRandom.nextInt(mPending.size()));
+                pending.source.setResult(null);
+            }
+        }
+
+        private void completeAll() {
+            complete(Integer.MAX_VALUE);
+        }
+
+        private void completeStep(String step, boolean success) {
+            for (Pending pending : mPending) {
+                if (pending.step.equals(step)) {
+                    mPending.remove(pending);
+                    if (success) {
+                        pending.source.setResult(null);
+                    } else {
+                        pending.source.setException(new Exception(step + " failed"));
+                    }
+                    return;
+                }
+            }
+            violation(mScenario, step + " was not started");
+        }
+
+        private void kill() {
+            if (!mDead) {
+                mDead = true;
+                mKills++;
+            }
+        }
+    }
+}
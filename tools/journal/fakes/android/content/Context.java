@@ -0,0 +1,10 @@
+package android.content;
+
+/**
+ * Only what TrackerExecutor needs from the context
+ */
+public class Context {
+    public Context getApplicationContext() {
+        return this;
+    }
+}
@@ -0,0 +1,75 @@
+package com.google.android.gms.tasks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A task whose listeners are called synchronously, on the thread that completes it, or right away
+ * if it has already completed. So the harness decides exactly when (and whether) each step of a
+ * transition completes.
+ */
+public class Task<TResult> {
+    private final List<OnCompleteListener<TResult>> mListeners = new ArrayList<OnCompleteListener<TResult>>();
+    private boolean mComplete = false;
+    private TResult mResult = null;
+    private Exception mException = null;
+
+    Task() {
+    }
+
+    public synchronized boolean isComplete() {
+        return mComplete;
+    }
+
+    public synchronized boolean isSuccessful() {
+        return mComplete && mException == null;
+    }
+
+    public synchronized TResult getResult() {
+        if (mException != null) {
+            throw new IllegalStateException(mException);
+        }
+        return mResult;
+    }
+
+    public synchronized Exception getException() {
+        return mException;
+    }
+
+    public Task<TResult> addOnCompleteListener(OnCompleteListener<TResult> listener) {
+        synchronized (this) {
+            if (!mComplete) {
+                mListeners.add(listener);
+                return this;
+            }
+        }
+        listener.onComplete(this);
+        return this;
+    }
+
+    public Task<TResult> addOnSuccessListener(OnSuccessListener<? super TResult> listener) {
+        return addOnCompleteListener(t -> {
+            if (t.isSuccessful()) {
+                listener.onSuccess(t.getResult());
+            }
+        });
+    }
+
+    boolean complete(TResult result, Exception exception) {
+        List<OnCompleteListener<TResult>> listeners;
+        synchronized (this) {
+            if (mComplete) {
+                return false;
+            }
+            mComplete = true;
+            mResult = result;
+            mException = exception;
+            listeners = new ArrayList<OnCompleteListener<TResult>>(mListeners);
+            mListeners.clear();
+        }
+        for (OnCompleteListener<TResult> listener : listeners) {
+            listener.onComplete(this);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,29 @@
+package com.google.android.gms.tasks;
+
+public class TaskCompletionSource<TResult> {
+    private final Task<TResult> mTask = new Task<TResult>();
+
+    public Task<TResult> getTask() {
+        return mTask;
+    }
+
+    public void setResult(TResult result) {
+        if (!trySetResult(result)) {
+            throw new IllegalStateException("Task is already complete");
+        }
+    }
+
+    public boolean trySetResult(TResult result) {
+        return mTask.complete(result, null);
+    }
+
+    public void setException(Exception e) {
+        if (!trySetException(e)) {
+            throw new IllegalStateException("Task is already complete");
+        }
+    }
+
+    public boolean trySetException(Exception e) {
+        return mTask.complete(null, e);
+    }
+}
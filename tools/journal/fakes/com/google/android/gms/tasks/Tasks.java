@@ -0,0 +1,9 @@
+package com.google.android.gms.tasks;
+
+public final class Tasks {
+    public static <TResult> Task<TResult> forResult(TResult result) {
+        TaskCompletionSource<TResult> source = new TaskCompletionSource<TResult>();
+        source.setResult(result);
+        return source.getTask();
+    }
+}
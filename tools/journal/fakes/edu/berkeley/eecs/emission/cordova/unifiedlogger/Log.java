@@ -0,0 +1,25 @@
+package edu.berkeley.eecs.emission.cordova.unifiedlogger;
+
+import android.content.Context;
+
+/**
+ * Drops the debug and info messages, and prints the errors to stderr
+ */
+public class Log {
+    public static void d(Context ctxt, String tag, String msg) {
+    }
+
+    public static void i(Context ctxt, String tag, String msg) {
+    }
+
+    public static void w(Context ctxt, String tag, String msg) {
+    }
+
+    public static void e(Context ctxt, String tag, String msg) {
+        System.err.println(tag + ": " + msg);
+    }
+
+    public static void exception(Context ctxt, String tag, Exception e) {
+        System.err.println(tag + ": " + e);
+    }
+}
@@ -0,0 +1,205 @@
+package edu.berkeley.eecs.emission.cordova.tracker.wrapper;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Checks GeoDistance against Location.distanceBetween, on the desktop JVM.
+ *
+ * android.location.Location is a stub in android.jar, so we can't call it here. Instead, we
+ * compare against a copy of Location.computeDistanceAndBearing from AOSP (distance only, with the
+ * same float result), which is kept separate from GeoDistance.exact on purpose.
+ *
+ * The point pairs are random, with a log uniform distance and a uniform bearing, and the first
+ * point anywhere within +/- 85 degrees of latitude (including across the antimeridian). We check:
+ * - exact: the float result is identical to the reference
+ * - fast: within FAST_BOUND_M of the reference for distances up to FAST_MAX_DISTANCE_M, which is
+ *   what the GeoDistance documentation promises. Larger distances are only reported.
+ *
+ * Exits with 1 if any pair is outside the bound. See README.md for how to build and run it.
+ */
+public class GeoDistanceParity {
+    private static final double FAST_BOUND_M = 0.001;
+    private static final double FAST_MAX_DISTANCE_M = 1000;
+    private static final double MAX_LAT = 85;
+    private static final double MIN_DISTANCE_M = 0.1;
+    private static final double MAX_DISTANCE_M = 10000;
+    // used to place the second point, the exact radius doesn't matter
+    private static final double EARTH_RADIUS_M = 6371000;
+
+    private long seed = 42;
+    private int pairs = 1000000;
+
+    private int exactMismatches = 0;
+    private int fastViolations = 0;
+    private double maxFastErrorInBound = 0;
+    private String worstInBound = "";
+    // by decade of distance, starting at MIN_DISTANCE_M
+    private final double[] maxFastErrorByDecade = new double[6];
+
+    public static void main(String[] args) {
+        GeoDistanceParity parity = new GeoDistanceParity();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--seed": parity.seed = Long.parseLong(args[++i]); break;
+                case "--pairs": parity.pairs = Integer.parseInt(args[++i]); break;
+                default:
+                    System.err.println("usage: GeoDistanceParity [--seed 42] [--pairs 1000000]");
+                    System.exit(2);
+            }
+        }
+        System.exit(parity.run() ? 0 : 1);
+    }
+
+    private boolean run() {
+        Random random = new Random(seed);
+        for (int i = 0; i < pairs; i++) {
+            double lat1 = (random.nextDouble() * 2 - 1) * MAX_LAT;
+            double lng1 = (random.nextDouble() * 2 - 1) * 180;
+            double distance = MIN_DISTANCE_M *
+                    Math.pow(MAX_DISTANCE_M / MIN_DISTANCE_M, random.nextDouble());
+            double bearing = random.nextDouble() * 2 * Math.PI;
+            double lat2 = lat1 + Math.toDegrees(distance * Math.cos(bearing) / EARTH_RADIUS_M);
+            double lng2 = lng1 + Math.toDegrees(distance * Math.sin(bearing) /
+                    (EARTH_RADIUS_M * Math.cos(Math.toRadians(lat1))));
+            if (lat2 > MAX_LAT || lat2 < -MAX_LAT) {
+                continue;
+            }
+            if (lng2 > 180) {
+                lng2 -= 360;
+            } else if (lng2 < -180) {
+                lng2 += 360;
+            }
+            check(lat1, lng1, lat2, lng2);
+        }
+
+        System.out.println("exact: " + exactMismatches + " mismatches");
+        System.out.println(String.format(Locale.US,
+                "fast: %d over %.3f m up to %.0f m, max error %.6f m (%s)",
+                fastViolations, FAST_BOUND_M, FAST_MAX_DISTANCE_M, maxFastErrorInBound, worstInBound));
+        for (int i = 0; i < maxFastErrorByDecade.length - 1; i++) {
+            System.out.println(String.format(Locale.US, "fast: max error %.6f m for %.1f - %.1f m",
+                    maxFastErrorByDecade[i], MIN_DISTANCE_M * Math.pow(10, i),
+                    MIN_DISTANCE_M * Math.pow(10, i + 1)));
+        }
+        return exactMismatches == 0 && fastViolations == 0;
+    }
+
+    private void check(double lat1, double lng1, double lat2, double lng2) {
+        float reference = distanceBetween(lat1, lng1, lat2, lng2);
+        if ((float) GeoDistance.exact(lat1, lng1, lat2, lng2) != reference) {
+            if (exactMismatches == 0) {
+                System.out.println("first exact mismatch: " + describe(lat1, lng1, lat2, lng2));
+            }
+            exactMismatches++;
+        }
+        double error = Math.abs(GeoDistance.fast(lat1, lng1, lat2, lng2) - reference);
+        int decade = (int) Math.floor(Math.log10(Math.max(reference, MIN_DISTANCE_M) / MIN_DISTANCE_M));
+        decade = Math.min(decade, maxFastErrorByDecade.length - 1);
+        maxFastErrorByDecade[decade] = Math.max(maxFastErrorByDecade[decade], error);
+        if (reference <= FAST_MAX_DISTANCE_M) {
+            if (error > maxFastErrorInBound) {
+                maxFastErrorInBound = error;
+                worstInBound = describe(lat1, lng1, lat2, lng2);
+            }
+            if (error > FAST_BOUND_M) {
+                if (fastViolations == 0) {
+                    System.out.println("first fast violation: " + describe(lat1, lng1, lat2, lng2));
+                }
+                fastViolations++;
+            }
+        }
+    }
+
+    private static String describe(double lat1, double lng1, double lat2, double lng2) {
+        return String.format(Locale.US, "(%.7f, %.7f) -> (%.7f, %.7f): reference = %.4f exact = %.4f fast = %.4f",
+                lat1, lng1, lat2, lng2, distanceBetween(lat1, lng1, lat2, lng2),
+                GeoDistance.exact(lat1, lng1, lat2, lng2), GeoDistance.fast(lat1, lng1, lat2, lng2));
+    }
+
+    /*
+     * Location.computeDistanceAndBearing from AOSP, without the bearings. Based on
+     * http://www.ngs.noaa.gov/PUBS_LIB/inverse.pdf
+     */
+    private static float distanceBetween(double lat1, double lon1, double lat2, double lon2) {
+        int MAXITERS = 20;
+        // Convert lat/long to radians
+        lat1 *= Math.PI / 180.0;
+        lat2 *= Math.PI / 180.0;
+        lon1 *= Math.PI / 180.0;
+        lon2 *= Math.PI / 180.0;
+
+        double a = 6378137.0; // WGS84 major axis
+        double b = 6356752.3142; // WGS84 semi-major axis
+        double f = (a - b) / a;
+        double aSqMinusBSqOverBSq = (a * a - b * b) / (b * b);
+
+        double L = lon2 - lon1;
+        double A = 0.0;
+        double U1 = Math.atan((1.0 - f) * Math.tan(lat1));
+        double U2 = Math.atan((1.0 - f) * Math.tan(lat2));
+
+        double cosU1 = Math.cos(U1);
+        double cosU2 = Math.cos(U2);
+        double sinU1 = Math.sin(U1);
+        double sinU2 = Math.sin(U2);
+        double cosU1cosU2 = cosU1 * cosU2;
+        double sinU1sinU2 = sinU1 * sinU2;
+
+        double sigma = 0.0;
+        double deltaSigma = 0.0;
+        double cosSigma = 0.0;
+        double cos2SM = 0.0;
+        double cosLambda = 0.0;
+        double sinLambda = 0.0;
+
+        double lambda = L; // initial guess
+        for (int iter = 0; iter < MAXITERS; iter++) {
+            double lambdaOrig = lambda;
+            cosLambda = Math.cos(lambda);
+            sinLambda = Math.sin(lambda);
+            double t1 = cosU2 * sinLambda;
+            double t2 = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+            double sinSqSigma = t1 * t1 + t2 * t2; // (14)
+            double sinSigma = Math.sqrt(sinSqSigma);
+            cosSigma = sinU1sinU2 + cosU1cosU2 * cosLambda; // (15)
+            sigma = Math.atan2(sinSigma, cosSigma); // (16)
+            double sinAlpha = (sinSigma == 0) ? 0.0 :
+                    cosU1cosU2 * sinLambda / sinSigma; // (17)
+            double cosSqAlpha = 1.0 - sinAlpha * sinAlpha;
+            cos2SM = (cosSqAlpha == 0) ? 0.0 :
+                    cosSigma - 2.0 * sinU1sinU2 / cosSqAlpha; // (18)
+
+            double uSquared = cosSqAlpha * aSqMinusBSqOverBSq; // defn
+            A = 1 + (uSquared / 16384.0) * // (3)
+                    (4096.0 + uSquared *
+                            (-768 + uSquared * (320.0 - 175.0 * uSquared)));
+            double B = (uSquared / 1024.0) * // (4)
+                    (256.0 + uSquared *
+                            (-128.0 + uSquared * (74.0 - 47.0 * uSquared)));
+            double C = (f / 16.0) *
+                    cosSqAlpha *
+                    (4.0 + f * (4.0 - 3.0 * cosSqAlpha)); // (10)
+            double cos2SMSq = cos2SM * cos2SM;
+            deltaSigma = B * sinSigma * // (6)
+                    (cos2SM + (B / 4.0) *
+                            (cosSigma * (-1.0 + 2.0 * cos2SMSq) -
+                                    (B / 6.0) * cos2SM *
+                                            (-3.0 + 4.0 * sinSigma * sinSigma) *
+                                            (-3.0 + 4.0 * cos2SMSq)));
+
+            lambda = L +
+                    (1.0 - C) * f * sinAlpha *
+                            (sigma + C * sinSigma *
+                                    (cos2SM + C * cosSigma *
+                                            (-1.0 + 2.0 * cos2SM * cos2SM))); // (11)
+
+            double delta = (lambda - lambdaOrig) / lambda;
+            if (Math.abs(delta) < 1.0e-12) {
+                break;
+            }
+        }
+
+        return (float) (b * A * (sigma - deltaSigma));
+    }
+}
@@ -0,0 +1,229 @@
+package edu.berkeley.eecs.emission.cordova.tracker.location;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import edu.berkeley.eecs.emission.cordova.tracker.wrapper.GeoDistance;
+
+/**
+ * Checks that StationaryDetector makes the same trip end decisions as the reference check that
+ * LocationChangeIntentService used to run on every update, on the desktop JVM.
+ *
+ * The reference (isTripEnded, getDistances and stoppedMoving) was removed from the service, and
+ * referenceIsTripEnded is now its only copy. It takes the last n points and the points written in
+ * [now - tripEndSecs - 10, now] from the window, drops the ones before the last transition, and
+ * checks that all of them are within the radius of the newest point,
+ * with the float distances from SimpleLocation.distanceTo. The window is evicted the same way as
+ * RecentLocationWindow.add, and the detector is fed in lockstep with it.
+ *
+ * We generate random traces (moving, stopped with gps noise, arriving at a stop, leaving a stop,
+ * and hovering around the radius), with a fix every filter time (1 or 30 secs, with jitter), the
+ * fix ts occasionally out of order, the check run a random time after the write (sometimes before
+ * it, to cover delayed wakeups), and the last transition at a random point in the trace. The
+ * decisions must match at every point.
+ *
+ * Exits with 1 if any decision differs. See README.md for how to build and run it.
+ */
+public class StationaryDetectorParity {
+    // Same as RecentLocationWindow
+    private static final int RETENTION_FUZZ_SECS = 60;
+    private static final int MAX_ENTRIES = 2000;
+    // Same as the service
+    private static final int N_POINTS = 10;
+    private static final int RADIUS = 100;
+    private static final int POINTS_PER_TRACE = 600;
+    private static final double METERS_PER_DEGREE = 111320;
+
+    private enum Shape { MOVING, STOPPED, ARRIVING, LEAVING, HOVERING }
+
+    private long seed = 42;
+    private int traces = 2000;
+
+    private long decisions = 0;
+    private long tripEnds = 0;
+    private long mismatches = 0;
+
+    private static class Point {
+        final double lat, lng, ts, writeTs;
+
+        Point(double lat, double lng, double ts, double writeTs) {
+            this.lat = lat;
+            this.lng = lng;
+            this.ts = ts;
+            this.writeTs = writeTs;
+        }
+    }
+
+    public static void main(String[] args) {
+        StationaryDetectorParity parity = new StationaryDetectorParity();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--seed": parity.seed = Long.parseLong(args[++i]); break;
+                case "--traces": parity.traces = Integer.parseInt(args[++i]); break;
+                default:
+                    System.err.println("usage: StationaryDetectorParity [--seed 42] [--traces 2000]");
+                    System.exit(2);
+            }
+        }
+        System.exit(parity.run() ? 0 : 1);
+    }
+
+    private boolean run() {
+        Random random = new Random(seed);
+        Shape[] shapes = Shape.values();
+        int[] tripEndMins = {5, 10};
+        int[] filterTimeSecs = {1, 30};
+        for (int i = 0; i < traces; i++) {
+            Shape shape = shapes[i % shapes.length];
+            int tripEndSecs = tripEndMins[(i / shapes.length) % 2] * 60;
+            int filterSecs = filterTimeSecs[(i / shapes.length / 2) % 2];
+            List<Point> trace = generate(random, shape, filterSecs);
+            double lastTransitionTs = trace.get(random.nextInt(trace.size() / 4)).ts;
+            replay(random, trace, shape, tripEndSecs, lastTransitionTs);
+        }
+        System.out.println(String.format(Locale.US,
+                "%d traces, %d decisions, %d trip ends, %d mismatches", traces, decisions, tripEnds, mismatches));
+        return mismatches == 0;
+    }
+
+    private List<Point> generate(Random random, Shape shape, int filterSecs) {
+        double lat = (random.nextDouble() * 2 - 1) * 60;
+        double lng = (random.nextDouble() * 2 - 1) * 180;
+        double metersPerDegreeLng = METERS_PER_DEGREE * Math.cos(Math.toRadians(lat));
+        double speed = 1 + random.nextDouble() * 20;
+        double heading = random.nextDouble() * 2 * Math.PI;
+        double noise = 3 + random.nextDouble() * 40;
+        int switchAt = POINTS_PER_TRACE / 4 + random.nextInt(POINTS_PER_TRACE / 2);
+        double x = 0, y = 0;
+        double ts = 1500000000 + random.nextInt(100000000);
+        List<Point> trace = new ArrayList<Point>();
+        for (int i = 0; i < POINTS_PER_TRACE; i++) {
+            double dt = filterSecs * (0.5 + random.nextDouble());
+            boolean moving;
+            switch (shape) {
+                case MOVING: moving = true; break;
+                case STOPPED: moving = false; break;
+                case ARRIVING: moving = i < switchAt; break;
+                case LEAVING: moving = i >= switchAt; break;
+                default: moving = random.nextInt(3) == 0; break;
+            }
+            if (moving) {
+                double step = shape == Shape.HOVERING ? RADIUS / 4.0 : speed * dt;
+                heading += random.nextGaussian() * 0.2;
+                x += step * Math.cos(heading);
+                y += step * Math.sin(heading);
+            }
+            ts += dt;
+            double fixLat = lat + (y + random.nextGaussian() * noise) / METERS_PER_DEGREE;
+            double fixLng = lng + (x + random.nextGaussian() * noise) / metersPerDegreeLng;
+            // the fix ts can lag behind the write, and can be out of order
+            double fixTs = random.nextInt(50) == 0 ? ts - filterSecs * 2 : ts - random.nextDouble();
+            trace.add(new Point(fixLat, fixLng, fixTs, ts));
+        }
+        return trace;
+    }
+
+    private void replay(Random random, List<Point> trace, Shape shape, int tripEndSecs,
+                        double lastTransitionTs) {
+        StationaryDetector detector = new StationaryDetector();
+        List<Point> window = new ArrayList<Point>();
+        for (Point point : trace) {
+            window.add(point);
+            detector.push(point.lat, point.lng, point.ts, point.writeTs);
+            double cutoffTs = point.writeTs - tripEndSecs - RETENTION_FUZZ_SECS;
+            while (window.size() > MAX_ENTRIES ||
+                    (window.size() > N_POINTS && window.get(0).writeTs < cutoffTs)) {
+                window.remove(0);
+                detector.evictOldest();
+            }
+
+            // usually shortly after the write, but the check can also see a point from the future
+            double nowSecs = point.writeTs + (random.nextInt(20) == 0 ? -5 : random.nextDouble() * 5);
+            boolean expected = referenceIsTripEnded(window, nowSecs, lastTransitionTs, tripEndSecs);
+            boolean actual = detector.isTripEnded(nowSecs, lastTransitionTs, N_POINTS, tripEndSecs, RADIUS);
+            decisions++;
+            if (expected) {
+                tripEnds++;
+            }
+            if (expected != actual) {
+                if (mismatches < 10) {
+                    System.out.println(String.format(Locale.US,
+                            "mismatch: %s trace, trip end %d secs, now %.3f, last transition %.3f, "
+                                    + "window of %d: expected %b, got %b",
+                            shape, tripEndSecs, nowSecs, lastTransitionTs, window.size(), expected, actual));
+                }
+                mismatches++;
+            }
+        }
+    }
+
+    /*
+     * The window is oldest first, the usercache queries (and so the reference) are newest first
+     */
+    private static boolean referenceIsTripEnded(List<Point> window, double nowSecs,
+                                                double lastTransitionTs, int tripEndSecs) {
+        List<Point> lastPoints = new ArrayList<Point>();
+        for (int i = window.size() - 1; i >= 0 && lastPoints.size() < N_POINTS; i--) {
+            lastPoints.add(window.get(i));
+        }
+        List<Point> intervalPoints = new ArrayList<Point>();
+        double startWriteTs = nowSecs - tripEndSecs - 10;
+        for (int i = window.size() - 1; i >= 0; i--) {
+            Point point = window.get(i);
+            if (point.writeTs < startWriteTs) {
+                break;
+            }
+            if (point.writeTs <= nowSecs) {
+                intervalPoints.add(point);
+            }
+        }
+        List<Point> last10Points = filterAfterTransition(lastPoints, lastTransitionTs);
+        List<Point> points5MinsAgo = filterAfterTransition(intervalPoints, lastTransitionTs);
+
+        if (last10Points.size() < 10 || points5MinsAgo.isEmpty()) {
+            return false;
+        }
+        double last5MinsSpan = points5MinsAgo.get(0).ts - points5MinsAgo.get(points5MinsAgo.size() - 1).ts;
+        return stoppedMoving(getDistances(last10Points)) && last5MinsSpan > (tripEndSecs - 60) &&
+                stoppedMoving(getDistances(points5MinsAgo));
+    }
+
+    private static List<Point> filterAfterTransition(List<Point> orig, double lastTransitionTs) {
+        List<Point> filtered = new ArrayList<Point>();
+        for (Point point : orig) {
+            if (point.ts > lastTransitionTs) {
+                filtered.add(point);
+            }
+        }
+        return filtered;
+    }
+
+    private static double[] getDistances(List<Point> points) {
+        if (points.size() < 2) {
+            return new double[0];
+        }
+        double[] distances = new double[points.size() - 1];
+        Point lastPoint = points.get(0);
+        for (int i = 0; i < points.size() - 1; i++) {
+            Point point = points.get(i + 1);
+            // SimpleLocation.distanceTo
+            distances[i] = (float) GeoDistance.fast(lastPoint.lat, lastPoint.lng, point.lat, point.lng);
+        }
+        return distances;
+    }
+
+    private static boolean stoppedMoving(double[] distances) {
+        if (distances.length < 1) {
+            return false;
+        }
+        double maxDistance = distances[0];
+        for (int i = 1; i < distances.length; i++) {
+            if (distances[i] > maxDistance) {
+                maxDistance = distances[i];
+            }
+        }
+        return maxDistance < RADIUS;
+    }
+}
@@ -0,0 +1,293 @@
+package edu.berkeley.eecs.emission.cordova.tracker.wrapper;
+
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.ReflectionAccessFilter;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.internal.ConstructorConstructor;
+import com.google.gson.internal.Excluder;
+import com.google.gson.internal.bind.JsonAdapterAnnotationTypeAdapterFactory;
+import com.google.gson.internal.bind.ReflectiveTypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Checks the hand-written gson TypeAdapters of the wrapper classes against reflective gson, which
+ * is what used to (de)serialize them, on the desktop JVM.
+ *
+ * The @JsonAdapter annotation can't be turned off, so the reflective adapters come from gson's
+ * own ReflectiveTypeAdapterFactory, registered ahead of the annotation. That is internal API, so
+ * use the gson version from plugin.xml.
+ *
+ * For every wrapper, we generate random documents from the declared fields, so a field that is
+ * added to the class but not to the adapter is caught. Each field is either missing, an explicit
+ * null, a valid value, a quoted value (for numbers and booleans), or occasionally an invalid
+ * value, and there are unknown fields as well. We check that:
+ * - both read the same field values, or both fail with the same exception
+ * - writing the result gives the same JSON, with and without serializeNulls. Reflective gson
+ *   writes the fields in declaration order on the JVM, but sorted by name on android (the dex
+ *   format sorts them), so we compare with the reflective keys sorted.
+ *
+ * SimpleLocation.filter is a constant, which the adapter always writes as "time", so we only
+ * generate that value for it.
+ *
+ * Exits with 1 if anything differs. See README.md for how to build and run it.
+ */
+public class WrapperGsonParity {
+    private static final Class<?>[] WRAPPERS = {
+            SimpleLocation.class, MotionActivity.class, Battery.class, Transition.class,
+            StatsEvent.class, ConsentConfig.class
+    };
+
+    private long seed = 42;
+    private int docs = 20000;
+
+    private final Gson adapterGson = new Gson();
+    private final Gson adapterGsonNulls = new GsonBuilder().serializeNulls().create();
+    private final Gson reflectiveGson;
+    private final Gson reflectiveGsonNulls;
+
+    private long reads = 0;
+    private long failedReads = 0;
+    private long mismatches = 0;
+
+    public static void main(String[] args) {
+        WrapperGsonParity parity = new WrapperGsonParity();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--seed": parity.seed = Long.parseLong(args[++i]); break;
+                case "--docs": parity.docs = Integer.parseInt(args[++i]); break;
+                default:
+                    System.err.println("usage: WrapperGsonParity [--seed 42] [--docs 20000]");
+                    System.exit(2);
+            }
+        }
+        System.exit(parity.run() ? 0 : 1);
+    }
+
+    private WrapperGsonParity() {
+        TypeAdapterFactory reflective = reflectiveFactory();
+        reflectiveGson = new GsonBuilder().registerTypeAdapterFactory(reflective).create();
+        reflectiveGsonNulls = new GsonBuilder().registerTypeAdapterFactory(reflective)
+                .serializeNulls().create();
+    }
+
+    private static TypeAdapterFactory reflectiveFactory() {
+        List<ReflectionAccessFilter> filters = Collections.emptyList();
+        ConstructorConstructor constructors =
+                new ConstructorConstructor(Collections.emptyMap(), true, filters);
+        ReflectiveTypeAdapterFactory factory = new ReflectiveTypeAdapterFactory(constructors,
+                FieldNamingPolicy.IDENTITY, Excluder.DEFAULT,
+                new JsonAdapterAnnotationTypeAdapterFactory(constructors), filters);
+        return new TypeAdapterFactory() {
+            @Override
+            public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+                for (Class<?> wrapper : WRAPPERS) {
+                    if (wrapper == type.getRawType()) {
+                        return factory.create(gson, type);
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    private boolean run() {
+        Random random = new Random(seed);
+        for (Class<?> wrapper : WRAPPERS) {
+            if (!wrapper.isAnnotationPresent(JsonAdapter.class)) {
+                System.out.println(wrapper.getSimpleName() + " has no @JsonAdapter, nothing to check");
+                continue;
+            }
+            List<Field> fields = getSerializedFields(wrapper);
+            for (int i = 0; i < docs; i++) {
+                check(wrapper, fields, generate(random, wrapper, fields));
+            }
+        }
+        System.out.println(reads + " documents, " + failedReads + " invalid, " + mismatches + " mismatches");
+        return mismatches == 0;
+    }
+
+    private void check(Class<?> wrapper, List<Field> fields, String doc) {
+        reads++;
+        Object fromAdapter;
+        Object fromReflective;
+        try {
+            fromReflective = reflectiveGson.fromJson(doc, wrapper);
+        } catch (RuntimeException e) {
+            failedReads++;
+            try {
+                adapterGson.fromJson(doc, wrapper);
+                mismatch(wrapper, doc, "reflective failed with " + e + ", adapter did not");
+            } catch (RuntimeException adapterException) {
+                if (adapterException.getClass() != e.getClass()) {
+                    mismatch(wrapper, doc, "reflective failed with " + e + ", adapter with " + adapterException);
+                }
+            }
+            return;
+        }
+        try {
+            fromAdapter = adapterGson.fromJson(doc, wrapper);
+        } catch (RuntimeException e) {
+            mismatch(wrapper, doc, "adapter failed with " + e + ", reflective did not");
+            return;
+        }
+
+        for (Field field : fields) {
+            try {
+                Object adapterValue = field.get(fromAdapter);
+                Object reflectiveValue = field.get(fromReflective);
+                if (!Objects.equals(adapterValue, reflectiveValue)) {
+                    mismatch(wrapper, doc, "read " + field.getName() + " = " + adapterValue
+                            + ", reflective read " + reflectiveValue);
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        checkWrite(wrapper, doc, fromReflective, adapterGson, reflectiveGson);
+        checkWrite(wrapper, doc, fromReflective, adapterGsonNulls, reflectiveGsonNulls);
+    }
+
+    private void checkWrite(Class<?> wrapper, String doc, Object obj, Gson adapter, Gson reflective) {
+        String reflectiveJson;
+        try {
+            reflectiveJson = sortKeys(reflective.toJson(obj, wrapper));
+        } catch (RuntimeException e) {
+            try {
+                adapter.toJson(obj, wrapper);
+                mismatch(wrapper, doc, "reflective write failed with " + e + ", adapter did not");
+            } catch (RuntimeException adapterException) {
+                if (adapterException.getClass() != e.getClass()) {
+                    mismatch(wrapper, doc, "reflective write failed with " + e
+                            + ", adapter with " + adapterException);
+                }
+            }
+            return;
+        }
+        String adapterJson;
+        try {
+            adapterJson = adapter.toJson(obj, wrapper);
+        } catch (RuntimeException e) {
+            mismatch(wrapper, doc, "adapter write failed with " + e + ", reflective did not");
+            return;
+        }
+        if (!adapterJson.equals(reflectiveJson)) {
+            mismatch(wrapper, doc, "wrote " + adapterJson + ", reflective wrote " + reflectiveJson);
+        }
+    }
+
+    private void mismatch(Class<?> wrapper, String doc, String what) {
+        if (mismatches < 10) {
+            System.out.println("mismatch for " + wrapper.getSimpleName() + " " + doc + ": " + what);
+        }
+        mismatches++;
+    }
+
+    /*
+     * Keeps the text of the values (so the number formatting is still compared), but not the
+     * order of the keys
+     */
+    private static String sortKeys(String json) {
+        JsonObject orig = JsonParser.parseString(json).getAsJsonObject();
+        Map<String, JsonElement> sorted = new TreeMap<String, JsonElement>();
+        for (Map.Entry<String, JsonElement> entry : orig.entrySet()) {
+            sorted.put(entry.getKey(), entry.getValue());
+        }
+        JsonObject result = new JsonObject();
+        for (Map.Entry<String, JsonElement> entry : sorted.entrySet()) {
+            result.add(entry.getKey(), entry.getValue());
+        }
+        return result.toString();
+    }
+
+    private static List<Field> getSerializedFields(Class<?> wrapper) {
+        List<Field> fields = new ArrayList<Field>();
+        for (Field field : wrapper.getDeclaredFields()) {
+            int modifiers = field.getModifiers();
+            if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                continue;
+            }
+            field.setAccessible(true);
+            fields.add(field);
+        }
+        return fields;
+    }
+
+    private static String generate(Random random, Class<?> wrapper, List<Field> fields) {
+        List<String> members = new ArrayList<String>();
+        for (Field field : fields) {
+            int choice = random.nextInt(100);
+            if (choice < 10) {
+                continue;
+            }
+            String value;
+            if (wrapper == SimpleLocation.class && field.getName().equals("filter")) {
+                value = "\"time\"";
+            } else if (choice < 25) {
+                value = "null";
+            } else {
+                value = generateValue(random, field.getType(), choice < 40, choice >= 97);
+            }
+            members.add(quote(field.getName()) + ":" + value);
+        }
+        if (random.nextInt(4) == 0) {
+            members.add("\"unknown\":{\"nested\":[1,\"two\",null]}");
+        }
+        Collections.shuffle(members, random);
+        return "{" + String.join(",", members) + "}";
+    }
+
+    private static String generateValue(Random random, Class<?> type, boolean quoted, boolean invalid) {
+        String value;
+        if (type == String.class) {
+            switch (random.nextInt(5)) {
+                case 0: return "true";
+                case 1: return Integer.toString(random.nextInt());
+                case 2: return quote("2016-02-01T10:20:30.123-08:00");
+                case 3: return quote("\u00e9\"\\/\n" + random.nextInt(100));
+                default: return quote("local.transition." + random.nextInt(10));
+            }
+        } else if (invalid) {
+            value = random.nextBoolean() ? "abc" : "1.5";
+            if (type == boolean.class) {
+                return "1";
+            }
+        } else if (type == int.class) {
+            value = Integer.toString(random.nextInt(10) == 0 ? random.nextInt() : random.nextInt(200) - 100);
+        } else if (type == long.class) {
+            value = Long.toString(random.nextLong());
+        } else if (type == double.class) {
+            value = random.nextInt(50) == 0 ? "NaN" :
+                    Double.toString((random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(20) - 5));
+        } else if (type == float.class) {
+            value = random.nextInt(50) == 0 ? "1e40" :
+                    Float.toString((float) ((random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(10) - 3)));
+        } else if (type == boolean.class) {
+            value = Boolean.toString(random.nextBoolean());
+        } else {
+            throw new IllegalArgumentException("no generator for " + type);
+        }
+        return quoted ? quote(value) : value;
+    }
+
+    private static String quote(String value) {
+        return new Gson().toJson(value);
+    }
+}
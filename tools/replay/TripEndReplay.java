@@ -0,0 +1,535 @@
+package edu.berkeley.eecs.emission.cordova.tracker.location;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+import edu.berkeley.eecs.emission.cordova.tracker.wrapper.GeoDistance;
+
+/**
+ * Replays exported location and transition entries through the trip end logic of
+ * LocationChangeIntentService on a virtual clock, on the desktop JVM.
+ *
+ * This is not part of the plugin (it is not listed in plugin.xml). It is in the location package
+ * so that it can drive the package private StationaryDetector, which is what
+ * LocationChangeIntentService uses for the trip end check, and which makes the same decisions as
+ * the reference isTripEnded/filterAfterTransition. See README.md for how to build and run it.
+ *
+ * The input is one or more JSON files with usercache entries (either a JSON array or one entry
+ * per line), i.e. objects with metadata.key, metadata.write_ts and data. We use:
+ * - background/location: the raw points, which we run through the same accuracy and duplicate
+ *   filters as the service. Every point is treated as a separate wakeup at its write_ts.
+ * - statemachine/transition: exited_geofence starts a trip (and is the last transition for
+ *   filterAfterTransition), stopped_moving is the end that was recorded on the phone.
+ *
+ * For every trip, we print when the trip end was detected, the recorded end (if any), and the
+ * detection latency, i.e. the time from the first point of the final stop to the detection.
+ * To catch trips that we end too early, we also print how far the recorded points moved away from
+ * the end after we detected it. At the end, we print a summary with the processing time per point.
+ *
+ * With --base-radius, the radius is computed from the accuracies and the spread of the recent
+ * points, the same way as with android_trip_end_base_radius_m. See TripEndRadius.
+ *
+ * With --jitter-suppression, the valid points also go through a copy of the DwellPointIndex check,
+ * which decides which of them are saved. They are all used for the trip end check, like in a
+ * process that keeps running. With --cold as well, only the saved points are used, like in a
+ * process that restarts (and rebuilds its RecentLocationWindow from the usercache) before every
+ * wakeup, which is the worst case.
+ */
+public class TripEndReplay {
+    private static final String LOCATION_KEY = "background/location";
+    private static final String TRANSITION_KEY = "statemachine/transition";
+    private static final String EXITED_GEOFENCE = "local.transition.exited_geofence";
+    private static final String STOPPED_MOVING = "local.transition.stopped_moving";
+    // Same as RecentLocationWindow
+    private static final int RETENTION_FUZZ_SECS = 60;
+    private static final int MAX_ENTRIES = 2000;
+
+    private int tripEndSecs = 5 * 60;
+    private int filterTimeMs = 30 * 1000;
+    private int accuracyThreshold = 200;
+    private int radius = 100;
+    private int baseRadius = 0;
+    private boolean jitterSuppression = false;
+    private boolean cold = false;
+
+    private static class Entry implements Comparable<Entry> {
+        final boolean isLocation;
+        final double writeTs;
+        // location
+        double lat, lng, ts, accuracy;
+        // transition
+        String transition;
+
+        Entry(boolean isLocation, double writeTs) {
+            this.isLocation = isLocation;
+            this.writeTs = writeTs;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return Double.compare(writeTs, other.writeTs);
+        }
+    }
+
+    private static class Trip {
+        double startTs;
+        double detectedEndTs = -1;
+        double recordedEndTs = -1;
+        double stopTs = -1;
+        int nPoints = 0;
+        int nValidPoints = 0;
+        double[] endPoint = null;
+        double movedAfterEnd = 0;
+    }
+
+    public static void main(String[] args) throws IOException {
+        TripEndReplay replay = new TripEndReplay();
+        List<String> files = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--trip-end-mins": replay.tripEndSecs = Integer.parseInt(args[++i]) * 60; break;
+                case "--filter-time-ms": replay.filterTimeMs = Integer.parseInt(args[++i]); break;
+                case "--accuracy-threshold": replay.accuracyThreshold = Integer.parseInt(args[++i]); break;
+                case "--radius": replay.radius = Integer.parseInt(args[++i]); break;
+                case "--base-radius": replay.baseRadius = Integer.parseInt(args[++i]); break;
+                case "--jitter-suppression": replay.jitterSuppression = true; break;
+                case "--cold": replay.cold = true; break;
+                default: files.add(args[i]);
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: TripEndReplay [--trip-end-mins 5] [--filter-time-ms 30000]"
+                    + " [--accuracy-threshold 200] [--radius 100] [--base-radius 0]"
+                    + " [--jitter-suppression [--cold]] dump.json...");
+            System.exit(1);
+        }
+
+        List<Entry> entries = new ArrayList<Entry>();
+        for (String file : files) {
+            readEntries(file, entries);
+        }
+        Entry[] sorted = entries.toArray(new Entry[0]);
+        // stable, so the entries with the same write_ts stay in file order
+        Arrays.sort(sorted);
+        replay.run(sorted);
+    }
+
+    private void run(Entry[] entries) {
+        int pointsToQuery = tripEndSecs * 1000 / filterTimeMs;
+        StationaryDetector detector = new StationaryDetector();
+        // {lat, lng, writeTs} of the valid points, the same as the RecentLocationWindow
+        ArrayDeque<double[]> window = new ArrayDeque<double[]>();
+        // the accuracies of the last pointsToQuery valid points, for the trip end radius
+        List<Float> recentAccuracies = new ArrayList<Float>();
+        float[] accuracyScratch = new float[Math.max(pointsToQuery, 1)];
+        List<Trip> trips = new ArrayList<Trip>();
+        // the valid points of the current trip, to find the start of the final stop
+        List<double[]> tripPoints = new ArrayList<double[]>();
+        long[] pointNanos = new long[16];
+        int nTimed = 0;
+        JitterModel jitter = new JitterModel();
+        long nSuppressed = 0;
+
+        Trip currTrip = null;
+        double lastTransitionTs = 0;
+        long startNanos = System.nanoTime();
+
+        for (Entry entry : entries) {
+            if (!entry.isLocation) {
+                if (EXITED_GEOFENCE.equals(entry.transition)) {
+                    lastTransitionTs = entry.writeTs;
+                    currTrip = new Trip();
+                    currTrip.startTs = entry.writeTs;
+                    trips.add(currTrip);
+                    tripPoints.clear();
+                } else if (STOPPED_MOVING.equals(entry.transition) && currTrip != null
+                        && currTrip.recordedEndTs < 0) {
+                    currTrip.recordedEndTs = entry.writeTs;
+                }
+                continue;
+            }
+
+            if (currTrip == null) {
+                // the dump starts in the middle of a trip
+                currTrip = new Trip();
+                currTrip.startTs = entry.writeTs;
+                trips.add(currTrip);
+            }
+            if (currTrip.detectedEndTs >= 0) {
+                // we would have stopped tracking, so ignore the points until the next trip starts,
+                // except to check whether we ended too early
+                if (entry.accuracy < accuracyThreshold) {
+                    currTrip.movedAfterEnd = Math.max(currTrip.movedAfterEnd, GeoDistance.fast(
+                            currTrip.endPoint[0], currTrip.endPoint[1], entry.lat, entry.lng));
+                }
+                continue;
+            }
+            currTrip.nPoints++;
+
+            long before = System.nanoTime();
+            double nowSecs = entry.writeTs;
+            for (int i = 0; i < recentAccuracies.size(); i++) {
+                accuracyScratch[i] = recentAccuracies.get(i);
+            }
+            double[] still = stillPoints(window, nowSecs);
+            int tripEndRadius = TripEndRadius.compute(baseRadius, radius, accuracyScratch,
+                    recentAccuracies.size(), still[0], (int) still[1]);
+            boolean tripEnded = detector.isTripEnded(nowSecs, lastTransitionTs, pointsToQuery,
+                    tripEndSecs, tripEndRadius);
+            boolean validPoint = false;
+            if (entry.accuracy < accuracyThreshold) {
+                validPoint = !isDuplicate(entry, window, pointsToQuery);
+            }
+            boolean inWindow = validPoint;
+            if (validPoint && jitterSuppression && jitter.suppress(entry)) {
+                nSuppressed++;
+                inWindow = !cold;
+            }
+            if (inWindow) {
+                detector.push(entry.lat, entry.lng, entry.ts, nowSecs);
+                window.addLast(new double[]{entry.lat, entry.lng, nowSecs});
+                double cutoffTs = nowSecs - tripEndSecs - RETENTION_FUZZ_SECS;
+                while (window.size() > MAX_ENTRIES ||
+                        (window.size() > pointsToQuery && window.peekFirst()[2] < cutoffTs)) {
+                    window.removeFirst();
+                    detector.evictOldest();
+                }
+                recentAccuracies.add((float) entry.accuracy);
+                if (recentAccuracies.size() > pointsToQuery) {
+                    recentAccuracies.remove(0);
+                }
+            }
+            long elapsed = System.nanoTime() - before;
+            if (nTimed == pointNanos.length) {
+                pointNanos = Arrays.copyOf(pointNanos, nTimed * 2);
+            }
+            pointNanos[nTimed++] = elapsed;
+
+            if (validPoint) {
+                currTrip.nValidPoints++;
+                tripPoints.add(new double[]{entry.lat, entry.lng, entry.ts});
+                if (tripEnded) {
+                    currTrip.detectedEndTs = nowSecs;
+                    currTrip.stopTs = findStopTs(tripPoints);
+                    currTrip.endPoint = tripPoints.get(tripPoints.size() - 1);
+                }
+            }
+        }
+        long totalNanos = System.nanoTime() - startNanos;
+        if (jitterSuppression) {
+            System.err.println(String.format(Locale.US, "jitter suppression: suppressed = %d, %s",
+                    nSuppressed, cold ? "not in the window (cold)" : "in the window (warm)"));
+        }
+        report(trips, Arrays.copyOf(pointNanos, nTimed), totalNanos);
+    }
+
+    /*
+     * The same check as DwellPointIndex.suppress, with a map instead of the open addressing table:
+     * the last saved point in each cell, in the order in which the cells were last updated.
+     */
+    private static class JitterModel {
+        private static final double MIN_RADIUS = 5;
+        private static final double MAX_RADIUS = 25;
+        private static final double CELL_SIZE = MAX_RADIUS;
+        private static final double MAX_SUPPRESS_SECS = 60;
+        private static final int MAX_CELLS = 256;
+        private static final double METERS_PER_DEGREE = 6371008.8 * Math.PI / 180;
+
+        // {lat, lng, ts, accuracy}
+        private final LinkedHashMap<Long, double[]> mCells = new LinkedHashMap<Long, double[]>();
+
+        boolean suppress(Entry entry) {
+            Iterator<double[]> oldest = mCells.values().iterator();
+            while (oldest.hasNext() && oldest.next()[2] < entry.ts - MAX_SUPPRESS_SECS) {
+                oldest.remove();
+            }
+            long row = row(entry.lat);
+            for (long r = row - 1; r <= row + 1; r++) {
+                long col = col(entry.lng, r);
+                for (long c = col - 1; c <= col + 1; c++) {
+                    double[] saved = mCells.get(key(r, c));
+                    if (saved != null && isJitter(entry, saved)) {
+                        return true;
+                    }
+                }
+            }
+            long key = key(row, col(entry.lng, row));
+            mCells.remove(key);
+            mCells.put(key, new double[]{entry.lat, entry.lng, entry.ts, entry.accuracy});
+            if (mCells.size() > MAX_CELLS) {
+                mCells.remove(mCells.keySet().iterator().next());
+            }
+            return false;
+        }
+
+        private static boolean isJitter(Entry entry, double[] saved) {
+            double age = entry.ts - saved[2];
+            if (age < 0 || age >= MAX_SUPPRESS_SECS) {
+                return false;
+            }
+            double radius = Math.min((float) entry.accuracy, (float) saved[3]);
+            radius = Math.max(MIN_RADIUS, Math.min(MAX_RADIUS, radius));
+            return (float) GeoDistance.fast(entry.lat, entry.lng, saved[0], saved[1]) <= radius;
+        }
+
+        private static long row(double lat) {
+            return (long) Math.floor(lat * METERS_PER_DEGREE / CELL_SIZE);
+        }
+
+        private static long col(double lng, long row) {
+            double rowLat = (row + 0.5) * CELL_SIZE / METERS_PER_DEGREE;
+            double cosLat = Math.max(Math.cos(Math.toRadians(rowLat)), 0.01);
+            return (long) Math.floor(lng * METERS_PER_DEGREE * cosLat / CELL_SIZE);
+        }
+
+        private static long key(long row, long col) {
+            return (row << 32) ^ (col & 0xffffffffL);
+        }
+    }
+
+    /*
+     * The same as RecentLocationWindow.getTripEndRadius: {the max distance of the points written
+     * in the last TripEndRadius.STILL_SECS from the newest one, the number of those points}
+     */
+    private static double[] stillPoints(ArrayDeque<double[]> window, double nowSecs) {
+        double stillSinceTs = nowSecs - TripEndRadius.STILL_SECS;
+        Iterator<double[]> it = window.descendingIterator();
+        if (!it.hasNext()) {
+            return new double[]{0, 0};
+        }
+        double[] newest = it.next();
+        if (newest[2] < stillSinceTs || newest[2] > nowSecs) {
+            return new double[]{0, 0};
+        }
+        double spread = 0;
+        int nPoints = 1;
+        while (it.hasNext()) {
+            double[] curr = it.next();
+            if (curr[2] < stillSinceTs) {
+                break;
+            }
+            spread = Math.max(spread, (float) GeoDistance.fast(newest[0], newest[1], curr[0], curr[1]));
+            nPoints++;
+        }
+        return new double[]{spread, nPoints};
+    }
+
+    /*
+     * The same duplicate check as LocationChangeIntentService.handleLocationUpdate (without
+     * smoothing): the service gets the last pointsToQuery points, newest first, and compares the
+     * new point with the last entry of that array, i.e. the oldest of them, not the newest point.
+     */
+    private static boolean isDuplicate(Entry entry, ArrayDeque<double[]> window, int pointsToQuery) {
+        if (window.isEmpty() || pointsToQuery <= 0) {
+            // Insert at least one entry before we can start comparing for duplicates
+            return false;
+        }
+        Iterator<double[]> it = window.descendingIterator();
+        double[] lastLoc = it.next();
+        for (int i = 1; i < pointsToQuery && it.hasNext(); i++) {
+            lastLoc = it.next();
+        }
+        return (float) GeoDistance.fast(entry.lat, entry.lng, lastLoc[0], lastLoc[1]) == 0;
+    }
+
+    /*
+     * The ts of the first point of the final stop, i.e. the point after the last one that is
+     * further than the radius from the end of the trip.
+     */
+    private double findStopTs(List<double[]> tripPoints) {
+        double[] last = tripPoints.get(tripPoints.size() - 1);
+        int i = tripPoints.size() - 1;
+        while (i > 0) {
+            double[] prev = tripPoints.get(i - 1);
+            if (GeoDistance.fast(prev[0], prev[1], last[0], last[1]) > radius) {
+                break;
+            }
+            i--;
+        }
+        return tripPoints.get(i)[2];
+    }
+
+    private void report(List<Trip> trips, long[] pointNanos, long totalNanos) {
+        System.out.println("trip,start_ts,detected_end_ts,recorded_end_ts,stop_ts,latency_secs,"
+                + "moved_after_m,points,valid_points");
+        List<Double> latencies = new ArrayList<Double>();
+        // relative to the recorded end, for the trips that have one
+        List<Double> delays = new ArrayList<Double>();
+        int nMissed = 0;
+        int nEarly = 0;
+        int nBeforeRecorded = 0;
+        for (int i = 0; i < trips.size(); i++) {
+            Trip t = trips.get(i);
+            if (t.detectedEndTs >= 0 && t.recordedEndTs >= 0) {
+                if (t.detectedEndTs < t.recordedEndTs) {
+                    nBeforeRecorded++;
+                } else {
+                    delays.add(t.detectedEndTs - t.recordedEndTs);
+                }
+            }
+            double latency = t.detectedEndTs >= 0 ? t.detectedEndTs - t.stopTs : -1;
+            if (t.detectedEndTs >= 0) {
+                // the latency of an early end is meaningless
+                if (t.movedAfterEnd > 2 * radius) {
+                    nEarly++;
+                } else {
+                    latencies.add(latency);
+                }
+            } else {
+                nMissed++;
+            }
+            System.out.println(String.format(Locale.US, "%d,%.3f,%.3f,%.3f,%.3f,%.1f,%.1f,%d,%d", i,
+                    t.startTs, t.detectedEndTs, t.recordedEndTs, t.stopTs, latency,
+                    t.movedAfterEnd, t.nPoints, t.nValidPoints));
+        }
+
+        double[] lat = new double[latencies.size()];
+        for (int i = 0; i < lat.length; i++) {
+            lat[i] = latencies.get(i);
+        }
+        Arrays.sort(lat);
+        Arrays.sort(pointNanos);
+        System.err.println(String.format(Locale.US,
+                "trips = %d, ended = %d, not ended = %d, ended early (moved > %d m after) = %d",
+                trips.size(), lat.length + nEarly, nMissed, 2 * radius, nEarly));
+        if (lat.length > 0) {
+            System.err.println(String.format(Locale.US,
+                    "latency secs: mean = %.1f, p50 = %.1f, p90 = %.1f, max = %.1f",
+                    mean(lat), percentile(lat, 0.5), percentile(lat, 0.9), lat[lat.length - 1]));
+        }
+        if (nBeforeRecorded + delays.size() > 0) {
+            double[] delay = new double[delays.size()];
+            for (int i = 0; i < delay.length; i++) {
+                delay[i] = delays.get(i);
+            }
+            Arrays.sort(delay);
+            System.err.println(String.format(Locale.US,
+                    "vs recorded end: before = %d, after = %d, delay secs: mean = %.1f, p50 = %.1f, p90 = %.1f",
+                    nBeforeRecorded, delay.length, delay.length == 0 ? 0 : mean(delay),
+                    delay.length == 0 ? 0 : percentile(delay, 0.5),
+                    delay.length == 0 ? 0 : percentile(delay, 0.9)));
+        }
+        if (pointNanos.length > 0) {
+            double[] us = new double[pointNanos.length];
+            for (int i = 0; i < us.length; i++) {
+                us[i] = pointNanos[i] / 1000.0;
+            }
+            System.err.println(String.format(Locale.US,
+                    "per point usecs: n = %d, mean = %.2f, p50 = %.2f, p99 = %.2f, max = %.2f",
+                    us.length, mean(us), percentile(us, 0.5), percentile(us, 0.99), us[us.length - 1]));
+        }
+        System.err.println(String.format(Locale.US, "total replay time = %.1f ms",
+                totalNanos / 1e6));
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double v : values) {
+            sum += v;
+        }
+        return sum / values.length;
+    }
+
+    // values must be sorted
+    private static double percentile(double[] values, double p) {
+        int idx = (int) Math.ceil(p * values.length) - 1;
+        return values[Math.max(0, Math.min(values.length - 1, idx))];
+    }
+
+    private static void readEntries(String file, List<Entry> entries) throws IOException {
+        try (JsonReader in = new JsonReader(new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8)))) {
+            // lenient, so that we can read one entry per line
+            in.setLenient(true);
+            if (in.peek() == JsonToken.BEGIN_ARRAY) {
+                in.beginArray();
+                while (in.hasNext()) {
+                    readEntry(in, entries);
+                }
+                in.endArray();
+            } else {
+                while (in.peek() != JsonToken.END_DOCUMENT) {
+                    readEntry(in, entries);
+                }
+            }
+        }
+    }
+
+    private static void readEntry(JsonReader in, List<Entry> entries) throws IOException {
+        String key = null;
+        double writeTs = Double.NaN;
+        Entry data = new Entry(false, 0);
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (name.equals("metadata")) {
+                in.beginObject();
+                while (in.hasNext()) {
+                    String mName = in.nextName();
+                    if (mName.equals("key")) {
+                        key = in.nextString();
+                    } else if (mName.equals("write_ts")) {
+                        writeTs = in.nextDouble();
+                    } else {
+                        in.skipValue();
+                    }
+                }
+                in.endObject();
+            } else if (name.equals("data") && in.peek() == JsonToken.BEGIN_OBJECT) {
+                readData(in, data);
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+
+        if (Double.isNaN(writeTs)) {
+            return;
+        }
+        if (LOCATION_KEY.equals(key)) {
+            Entry loc = new Entry(true, writeTs);
+            loc.lat = data.lat;
+            loc.lng = data.lng;
+            loc.ts = data.ts;
+            loc.accuracy = data.accuracy;
+            entries.add(loc);
+        } else if (TRANSITION_KEY.equals(key) && data.transition != null) {
+            Entry transition = new Entry(false, writeTs);
+            transition.transition = data.transition;
+            entries.add(transition);
+        }
+    }
+
+    private static void readData(JsonReader in, Entry data) throws IOException {
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "latitude": data.lat = in.nextDouble(); break;
+                case "longitude": data.lng = in.nextDouble(); break;
+                case "ts": data.ts = in.nextDouble(); break;
+                case "accuracy": data.accuracy = in.nextDouble(); break;
+                case "transition": data.transition = in.nextString(); break;
+                default: in.skipValue();
+            }
+        }
+        in.endObject();
+    }
+}
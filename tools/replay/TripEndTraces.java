@@ -0,0 +1,165 @@
+package edu.berkeley.eecs.emission.cordova.tracker.location;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates synthetic usercache dumps for TripEndReplay, so that changes to the trip end check
+ * (e.g. android_trip_end_base_radius_m) can be evaluated from the tree, without a device or real
+ * user data. See README.md for the evaluation.
+ *
+ * Every trip starts with an exited_geofence transition, moves in a random walk for 10 - 30 mins
+ * and then dwells for 20 mins, with a fix every 30 secs. The stopped_moving transition is written
+ * at the first fix of the dwell, so the recorded end in the replay is the ground truth. The fixes have gaussian noise for the accuracy of the environment (good = 5 m,
+ * medium = 15 m, poor = 40 m, with 5% outliers at 4x the noise), and 30% of the trips have a
+ * slow stretch of 7 mins at 0.25 - 0.45 m/s (crawling in traffic, wandering through a market),
+ * after which they keep moving. So an end that is detected in the slow stretch shows up as ended
+ * early in the replay, since the points then move away from it.
+ *
+ * With --short-stops, 30% of the trips also stop for 1 - 3 mins in the middle (waiting at a
+ * crossing or a light), and then keep moving, so an end that is detected there is early as well.
+ * With --no-slow-stretches, the trips don't have the slow stretch, so that the early ends at the
+ * short stops can be counted on their own.
+ *
+ * With --env, all the trips are in the same environment, otherwise they are in a good
+ * environment half of the time, and in a medium or poor one a quarter of the time each. The
+ * output is one entry per line, and is the same for the same arguments.
+ */
+public class TripEndTraces {
+    private static final double METERS_PER_DEGREE = 111000;
+    private static final int FIX_SECS = 30;
+    private static final int DWELL_FIXES = 40;
+    private static final int SLOW_FIXES = 14;
+    private static final int SHORT_STOP_MIN_FIXES = 2;
+    private static final int SHORT_STOP_MAX_FIXES = 6;
+    private static final String[] ENVIRONMENTS = {"good", "good", "medium", "poor"};
+
+    private long seed = 7;
+    private int trips = 400;
+    private String env = null;
+    private boolean shortStops = false;
+    private boolean slowStretches = true;
+
+    private PrintWriter mOut;
+    private Random mRandom;
+    private double mLat = 37.87;
+    private double mLng = -122.27;
+
+    public static void main(String[] args) throws IOException {
+        TripEndTraces traces = new TripEndTraces();
+        String file = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--seed": traces.seed = Long.parseLong(args[++i]); break;
+                case "--trips": traces.trips = Integer.parseInt(args[++i]); break;
+                case "--env": traces.env = args[++i]; break;
+                case "--short-stops": traces.shortStops = true; break;
+                case "--no-slow-stretches": traces.slowStretches = false; break;
+                default: file = args[i];
+            }
+        }
+        if (file == null) {
+            System.err.println("Usage: TripEndTraces [--seed 7] [--trips 400] [--env good|medium|poor]"
+                    + " [--short-stops] [--no-slow-stretches] out.json");
+            System.exit(1);
+        }
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            traces.generate(out);
+        }
+    }
+
+    private void generate(PrintWriter out) {
+        mOut = out;
+        mRandom = new Random(seed);
+        double ts = 1.7e9;
+        int[] counts = new int[3];
+        for (int trip = 0; trip < trips; trip++) {
+            transition("exited_geofence", ts);
+            String tripEnv = ENVIRONMENTS[mRandom.nextInt(ENVIRONMENTS.length)];
+            if (env != null) {
+                tripEnv = env;
+            }
+            double accuracy = tripEnv.equals("good") ? 5 : tripEnv.equals("medium") ? 15 : 40;
+            counts[tripEnv.equals("good") ? 0 : tripEnv.equals("medium") ? 1 : 2]++;
+            double heading = mRandom.nextDouble() * 2 * Math.PI;
+            double speed = mRandom.nextBoolean() ? 1.4 : 12;
+            int nMoving = 20 + mRandom.nextInt(41);
+            int slowAt = mRandom.nextDouble() < 0.3 ? 5 + mRandom.nextInt(nMoving - 9) : -1;
+            if (!slowStretches) {
+                slowAt = -1;
+            }
+            // drawn only with --short-stops, so that the other traces stay the same
+            int stopAt = -1;
+            int stopFixes = 0;
+            if (shortStops) {
+                stopAt = mRandom.nextDouble() < 0.3 ? 5 + mRandom.nextInt(nMoving - 9) : -1;
+                stopFixes = SHORT_STOP_MIN_FIXES
+                        + mRandom.nextInt(SHORT_STOP_MAX_FIXES - SHORT_STOP_MIN_FIXES + 1);
+            }
+            for (int i = 0; i < nMoving; i++) {
+                ts += FIX_SECS;
+                if (i == slowAt) {
+                    for (int k = 0; k < SLOW_FIXES; k++) {
+                        ts += FIX_SECS;
+                        move(0.25 + mRandom.nextDouble() * 0.2, heading);
+                        fix(ts, accuracy);
+                    }
+                }
+                if (i == stopAt) {
+                    for (int k = 0; k < stopFixes; k++) {
+                        ts += FIX_SECS;
+                        fix(ts, accuracy);
+                    }
+                }
+                move(speed, heading);
+                heading += mRandom.nextGaussian() * 0.2;
+                fix(ts, accuracy);
+            }
+            for (int k = 0; k < DWELL_FIXES; k++) {
+                ts += FIX_SECS;
+                if (k == 0) {
+                    transition("stopped_moving", ts);
+                }
+                fix(ts, accuracy);
+            }
+            ts += 3600;
+        }
+        System.err.println(String.format(Locale.US, "%d trips: good = %d, medium = %d, poor = %d",
+                trips, counts[0], counts[1], counts[2]));
+    }
+
+    private void move(double speed, double heading) {
+        mLat += speed * FIX_SECS * Math.cos(heading) / METERS_PER_DEGREE;
+        mLng += speed * FIX_SECS * Math.sin(heading) /
+                (METERS_PER_DEGREE * Math.cos(Math.toRadians(mLat)));
+    }
+
+    private void fix(double ts, double envAccuracy) {
+        double accuracy = envAccuracy * (0.8 + mRandom.nextDouble() * 0.5);
+        // the accuracy is the 68% radius, so the noise per axis is a bit smaller
+        double sigma = accuracy / 1.5;
+        if (mRandom.nextDouble() < 0.05) {
+            sigma *= 4;
+        }
+        double lat = mLat + mRandom.nextGaussian() * sigma / METERS_PER_DEGREE;
+        double lng = mLng + mRandom.nextGaussian() * sigma /
+                (METERS_PER_DEGREE * Math.cos(Math.toRadians(mLat)));
+        mOut.println(String.format(Locale.US,
+                "{\"metadata\":{\"key\":\"background/location\",\"write_ts\":%.3f},"
+                        + "\"data\":{\"latitude\":%.8f,\"longitude\":%.8f,\"ts\":%.3f,\"accuracy\":%.2f}}",
+                ts + 0.3, lat, lng, ts, accuracy));
+    }
+
+    private void transition(String transition, double ts) {
+        mOut.println(String.format(Locale.US,
+                "{\"metadata\":{\"key\":\"statemachine/transition\",\"write_ts\":%.3f},"
+                        + "\"data\":{\"transition\":\"local.transition.%s\",\"ts\":%.3f}}",
+                ts, transition, ts));
+    }
+}